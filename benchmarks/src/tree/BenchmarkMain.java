@@ -0,0 +1,41 @@
+package tree;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the usual JMH command line, always adding
+ * the GC profiler so that the bytes allocated per operation are reported
+ * beside the throughput. For example, to run only the smaller trees:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar TreeBenchmarks -p size=10,1000
+ * </pre>
+ *
+ * @author Anders Schneider
+ */
+public class BenchmarkMain {
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args JMH options; <code>-h</code> lists them.
+     * @throws CommandLineOptionException If the options are not valid.
+     * @throws IOException If a listing cannot be written.
+     * @throws RunnerException If a benchmark fails.
+     */
+    public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException {
+    	CommandLineOptions options = new CommandLineOptions(args);
+    	if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+    			|| options.shouldListResultFormats() || options.shouldListWithParams()) {
+    		org.openjdk.jmh.Main.main(args);
+    		return;
+    	}
+    	new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+    }
+}
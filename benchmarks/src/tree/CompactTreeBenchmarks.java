@@ -0,0 +1,59 @@
+package tree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks comparing a parse into a Tree with a parse of the same
+ * text into a CompactTree, over trees of each shape in <code>Shapes</code>.
+ * Nearly everything a parse allocates is kept in the tree it returns, so
+ * the bytes allocated per operation that the GC profiler reports are close
+ * to the heap each kind of tree occupies.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CompactTreeBenchmarks {
+    @Param({Shapes.WIDE, Shapes.DEEP, Shapes.BALANCED})
+    String shape;
+
+    @Param({"1000", "100000", "5000000"})
+    int size;
+
+    private String text;
+
+    /**
+     * Builds the text parsed by every iteration.
+     */
+    @Setup(Level.Trial)
+    public void buildText() {
+    	text = Shapes.text(shape, size);
+    }
+
+    @Benchmark
+    public Tree<String> parseTree() {
+        return Tree.parse(text, true);
+    }
+
+    @Benchmark
+    public CompactTree<String> parseCompact() {
+        return Tree.parseCompact(text);
+    }
+}
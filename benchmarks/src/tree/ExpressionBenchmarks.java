@@ -0,0 +1,108 @@
+package tree;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of constructing, evaluating and printing Expressions of
+ * each shape in <code>Shapes</code> and of sizes from 10 to 10,000,000
+ * nodes. Evaluation stays in the tree-walking tier, so that it measures
+ * <code>Expression</code> itself rather than the compiled tiers.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class ExpressionBenchmarks {
+    @Param({Shapes.WIDE, Shapes.DEEP, Shapes.BALANCED})
+    String shape;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    int size;
+
+    private final int[] values = {7};
+    private final long[] longValues = {7};
+    private String text;
+    private Expression expression;
+    private Expression checked;
+    private Expression exact;
+    private IncrementalEvaluator incremental;
+    private int deepestLeaf;
+    private int edits;
+
+    /**
+     * Builds the Expression used by every iteration.
+     */
+    @Setup(Level.Trial)
+    public void buildExpression() {
+    	text = Shapes.text(shape, size);
+    	expression = new Expression(text, TierPolicy.DISABLED);
+    	checked = new Expression(text, Arithmetic.CHECKED);
+    	exact = new Expression(text, Arithmetic.EXACT);
+    	incremental = expression.compileIncremental();
+    	incremental.evaluate(values);
+
+    	// A parent comes before its children, so depths can be found in one pass
+    	int[] depths = new int[incremental.size()];
+    	for (int node = 1; node < depths.length; node++) {
+    		depths[node] = depths[incremental.getParent(node)] + 1;
+    		if (depths[node] > depths[deepestLeaf]) {deepestLeaf = node;}
+    	}
+    }
+
+    @Benchmark
+    public Expression construct() {
+        return new Expression(text, TierPolicy.DISABLED);
+    }
+
+    @Benchmark
+    public int evaluate() {
+        return expression.evaluate(values);
+    }
+
+    @Benchmark
+    public long evaluateChecked() {
+    	// The balanced shape overflows a long, so this times finding that out
+    	try {
+    		return checked.evaluateLong(longValues);
+    	} catch (ArithmeticException e) {
+    		return Long.MIN_VALUE;
+    	}
+    }
+
+    @Benchmark
+    public BigInteger evaluateExact() {
+        return exact.evaluateBig(longValues);
+    }
+
+    /**
+     * Changes the deepest leaf, and gets the new value.
+     */
+    @Benchmark
+    public int updateLeaf() {
+    	incremental.setValue(deepestLeaf, (++edits & 1) == 0 ? "3" : "4");
+        return incremental.evaluate(values);
+    }
+
+    @Benchmark
+    public String toText() {
+        return expression.toString();
+    }
+}
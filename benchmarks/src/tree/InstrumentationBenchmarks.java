@@ -0,0 +1,81 @@
+package tree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the cost of <code>Instrumentation</code> on the
+ * smallest Expressions, where it is largest in proportion. With
+ * <code>listener=none</code> the results should match those of the same
+ * operations in <code>TreeBenchmarks</code> and
+ * <code>ExpressionBenchmarks</code>; with <code>listener=metrics</code> a
+ * <code>MetricsRegistry</code> is installed.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InstrumentationBenchmarks {
+    @Param({"none", "metrics"})
+    String listener;
+
+    @Param({Shapes.WIDE, Shapes.BALANCED})
+    String shape;
+
+    @Param({"10", "1000"})
+    int size;
+
+    private final int[] values = {7};
+    private String text;
+    private Expression expression;
+
+    /**
+     * Installs the listener and builds the Expression.
+     */
+    @Setup(Level.Trial)
+    public void install() {
+    	Instrumentation.install("metrics".equals(listener) ? new MetricsRegistry() : null);
+    	text = Shapes.text(shape, size);
+    	expression = new Expression(text, TierPolicy.DISABLED);
+    }
+
+    /**
+     * Removes the listener.
+     */
+    @TearDown(Level.Trial)
+    public void uninstall() {
+        Instrumentation.install(null);
+    }
+
+    @Benchmark
+    public Tree<String> parse() {
+        return Tree.parse(text, false);
+    }
+
+    @Benchmark
+    public Expression construct() {
+        return new Expression(text, TierPolicy.DISABLED);
+    }
+
+    @Benchmark
+    public int evaluate() {
+        return expression.evaluate(values);
+    }
+}
@@ -0,0 +1,110 @@
+package tree;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks comparing the time taken to get an Expression ready to
+ * evaluate by parsing its text with the time taken to open it from a
+ * MappedTree file, and evaluation of each, over Expressions of each shape
+ * in <code>Shapes</code>.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class MappedTreeBenchmarks {
+    @Param({Shapes.WIDE, Shapes.DEEP, Shapes.BALANCED})
+    String shape;
+
+    @Param({"1000", "100000", "5000000"})
+    int size;
+
+    private final int[] values = {7};
+    private String text;
+    private Path file;
+    private Expression parsed;
+    private MappedTree mapped;
+
+    /**
+     * Parses the Expression and writes it to a temporary file, both of
+     * which are used by every iteration.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+    	text = Shapes.text(shape, size);
+    	parsed = new Expression(text, TierPolicy.DISABLED);
+    	file = Files.createTempFile("expression", ".bin");
+    	MappedTree.write(parsed, file);
+    	mapped = MappedTree.open(file);
+    	if (mapped.evaluate(values) != parsed.evaluate(values)) {throw new AssertionError(shape);}
+    }
+
+    /**
+     * Deletes the temporary file.
+     *
+     * @throws IOException If it cannot be deleted.
+     */
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+    	Files.delete(file);
+    }
+
+    @Benchmark
+    public Expression parse() {
+        return new Expression(text, TierPolicy.DISABLED);
+    }
+
+    /**
+     * Maps the file, which reads only its header.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    @Benchmark
+    public MappedTree open() throws IOException {
+        return MappedTree.open(file);
+    }
+
+    @Benchmark
+    public int evaluateParsed() {
+        return parsed.evaluate(values);
+    }
+
+    @Benchmark
+    public int evaluateMapped() {
+        return mapped.evaluate(values);
+    }
+
+    /**
+     * Opens the file and evaluates it once, as a program that needs one
+     * value from a large Expression would.
+     *
+     * @throws IOException If the file cannot be read.
+     */
+    @Benchmark
+    public int openAndEvaluate() throws IOException {
+        return MappedTree.open(file).evaluate(values);
+    }
+}
@@ -0,0 +1,79 @@
+package tree;
+
+/**
+ * Builds the text of arithmetic expressions of a given shape and about a
+ * given number of nodes, for use by the benchmarks both as Expressions
+ * and as Trees. Every shape has the variable <code>x</code> among its
+ * leaves.
+ *
+ * @author Anders Schneider
+ */
+final class Shapes {
+    /** One "+" node whose children are all leaves. */
+    static final String WIDE = "wide";
+    /** A chain of "-" nodes, each with a leaf as its second child. */
+    static final String DEEP = "deep";
+    /** A complete binary tree of alternating "+" and "*" nodes. */
+    static final String BALANCED = "balanced";
+
+    private Shapes() {}
+
+    /**
+     * Returns the text of an expression of the given shape.
+     *
+     * @param shape <code>WIDE</code>, <code>DEEP</code> or <code>BALANCED</code>.
+     * @param nodes The number of nodes wanted; the result may have one fewer.
+     * @return The text of the expression.
+     * @throws IllegalArgumentException If the shape is unknown.
+     */
+    static String text(String shape, int nodes) {
+    	StringBuilder sb = new StringBuilder();
+    	if (WIDE.equals(shape)) {
+    		sb.append("+(x");
+    		for (int i = 2; i < nodes; i++) {
+    			sb.append(' ').append(i % 1000);
+    		}
+    		sb.append(')');
+    	} else if (DEEP.equals(shape)) {
+    		int depth = (nodes - 1) / 2;
+    		for (int i = 0; i < depth; i++) {
+    			sb.append("-(");
+    		}
+    		sb.append('x');
+    		for (int i = 0; i < depth; i++) {
+    			sb.append(' ').append(i % 1000).append(')');
+    		}
+    	} else if (BALANCED.equals(shape)) {
+    		balanced(sb, Math.max((nodes + 1) / 2, 1), 0);
+    	} else {
+    		throw new IllegalArgumentException("Unknown shape: " + shape);
+    	}
+    	return sb.toString();
+    }
+
+    /**
+     * Appends a complete binary tree with the given number of leaves. The
+     * recursion is only as deep as the logarithm of the number of leaves.
+     *
+     * @param sb Where the text is appended.
+     * @param leaves The number of leaves.
+     * @param index The index of the first leaf, which chooses its value.
+     */
+    private static void balanced(StringBuilder sb, int leaves, int index) {
+    	if (leaves == 1) {
+    		if (index == 0) {
+    			sb.append('x');
+    		} else {
+    			sb.append(index % 1000);
+    		}
+    		return;
+    	}
+
+    	int left = leaves / 2;
+    	sb.append(Integer.numberOfLeadingZeros(leaves) % 2 == 0 ? "+(" : "*(");
+    	balanced(sb, left, index);
+    	sb.append(' ');
+    	balanced(sb, leaves - left, index + left);
+    	sb.append(')');
+    }
+}
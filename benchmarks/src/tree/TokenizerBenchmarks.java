@@ -0,0 +1,122 @@
+package tree;
+
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of tokenizing and parsing the text of a Tree, comparing
+ * the original <code>StringTokenizer</code>-based tokenizer with
+ * <code>PushbackStringTokenizer</code> and <code>CharTokenizer</code>. The
+ * GC profiler reports the bytes each allocates per operation.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TokenizerBenchmarks {
+    @Param({Shapes.WIDE, Shapes.BALANCED})
+    String shape;
+
+    @Param({"1000", "1000000"})
+    int size;
+
+    private String text;
+
+    /**
+     * Builds the text tokenized by every iteration.
+     */
+    @Setup(Level.Trial)
+    public void buildText() {
+    	text = Shapes.text(shape, size);
+    }
+
+    @Benchmark
+    public int legacyTokenizer() {
+    	LegacyTokenizer tokenizer = new LegacyTokenizer(text);
+    	int count = 0;
+    	while (tokenizer.next() != null) {
+    		count++;
+    	}
+        return count;
+    }
+
+    @Benchmark
+    public int pushbackTokenizer() {
+    	Tree.PushbackStringTokenizer tokenizer = new Tree.PushbackStringTokenizer(text);
+    	int count = 0;
+    	while (tokenizer.next() != null) {
+    		count++;
+    	}
+        return count;
+    }
+
+    /**
+     * Finds the kind of each token without making a String of it.
+     */
+    @Benchmark
+    public int charTokenizer() {
+    	CharTokenizer tokenizer = new CharTokenizer(text, false);
+    	int count = 0;
+    	while (tokenizer.advance() != CharTokenizer.END) {
+    		count++;
+    	}
+        return count;
+    }
+
+    @Benchmark
+    public Tree<String> parse() {
+        return Tree.parse(text);
+    }
+
+    @Benchmark
+    public Tree<String> parseInterned() {
+        return Tree.parse(text, true);
+    }
+
+    /**
+     * The tokenizer used by <code>Tree.parse</code> before
+     * <code>CharTokenizer</code>, kept here for comparison.
+     */
+    private static class LegacyTokenizer {
+        private final StringTokenizer tokenizer;
+
+        /**
+         * Constructs a LegacyTokenizer.
+         *
+         * @param input The string to be tokenized.
+         */
+        LegacyTokenizer(String input) {
+            tokenizer = new StringTokenizer(input, " \t\n\r\f()", true);
+        }
+
+        /**
+         * Returns the next token, skipping whitespace tokens.
+         *
+         * @return The next token, or <code>null</code> if there are no more.
+         */
+        String next() {
+        	while (tokenizer.hasMoreTokens()) {
+        		String token = tokenizer.nextToken().trim();
+        		if (token.length() > 0) {return token;}
+        	}
+        	return null;
+        }
+    }
+}
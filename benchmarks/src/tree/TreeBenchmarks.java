@@ -0,0 +1,170 @@
+package tree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the main operations of Tree, over trees of each shape
+ * in <code>Shapes</code> and of sizes from 10 to 10,000,000 nodes.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TreeBenchmarks {
+    // The number of children added in each iteration of addChild
+    private static final int ADD_BATCH = 1000;
+
+    @Param({Shapes.WIDE, Shapes.DEEP, Shapes.BALANCED})
+    String shape;
+
+    @Param({"10", "1000", "100000", "10000000"})
+    int size;
+
+    private String text;
+    private Tree<String> tree;
+    private Tree<String> copy;
+    private Tree<String> leaf;
+    private Tree<String> absent;
+    private boolean toggle;
+
+    /**
+     * Builds the trees, each of which is used by every iteration.
+     */
+    @Setup(Level.Trial)
+    public void buildTrees() {
+    	text = Shapes.text(shape, size);
+    	tree = Tree.parse(text, false);
+    	copy = Tree.parse(text, false);
+    	absent = new Tree<String>("absent");
+
+    	// The first leaf, which is the deepest in every shape
+    	leaf = tree;
+    	while (leaf.getNumberOfChildren() > 0) {
+    		leaf = leaf.getChild(0);
+    	}
+    }
+
+    @Benchmark
+    public Tree<String> parse() {
+        return Tree.parse(text, false);
+    }
+
+    @Benchmark
+    public String toText() {
+        return tree.toString();
+    }
+
+    @Benchmark
+    public boolean equalsCopy() {
+        return tree.equals(copy);
+    }
+
+    @Benchmark
+    public int hashCodeCached() {
+        return tree.hashCode();
+    }
+
+    /**
+     * Changes the deepest leaf, so that the hash codes of its ancestors
+     * must be computed again.
+     */
+    @Benchmark
+    public int hashCodeAfterEdit() {
+    	toggle = !toggle;
+    	leaf.setValue(toggle ? "y" : "x");
+        return tree.hashCode();
+    }
+
+    /**
+     * Adds a child below the deepest leaf, which checks every ancestor for
+     * a cycle. Each iteration times a batch of additions to a fresh leaf,
+     * so the tree grows by a batch an iteration rather than without limit.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, batchSize = ADD_BATCH)
+    @Measurement(iterations = 5, batchSize = ADD_BATCH)
+    public Tree<String> addChild(FreshLeaf fresh) {
+    	Tree<String> child = new Tree<String>("1");
+    	fresh.leaf.addChild(child);
+        return child;
+    }
+
+    /**
+     * Searches the whole tree for a node that is not in it.
+     */
+    @Benchmark
+    public boolean containsAbsent() {
+        return tree.contains(absent);
+    }
+
+    @Benchmark
+    public int preorder() {
+    	int count = 0;
+    	for (Tree<String> node : tree.preorder()) {
+    		count++;
+    	}
+        return count;
+    }
+
+    @Benchmark
+    public int postorder() {
+    	int count = 0;
+    	for (Tree<String> node : tree.postorder()) {
+    		count++;
+    	}
+        return count;
+    }
+
+    @Benchmark
+    public int levelOrder() {
+    	int count = 0;
+    	for (Tree<String> node : tree.levelOrder()) {
+    		count++;
+    	}
+        return count;
+    }
+
+    @Benchmark
+    public long nodesParallel() {
+        return tree.nodes().parallel().count();
+    }
+
+    /**
+     * A new leaf below the deepest leaf of the tree, for each iteration of
+     * <code>addChild</code>.
+     */
+    @State(Scope.Thread)
+    public static class FreshLeaf {
+        Tree<String> leaf;
+
+        /**
+         * Adds the leaf to which this iteration's children are added.
+         *
+         * @param trees The trees being measured.
+         */
+        @Setup(Level.Iteration)
+        public void attach(TreeBenchmarks trees) {
+        	leaf = new Tree<String>("x");
+        	trees.leaf.addChild(leaf);
+        }
+    }
+}
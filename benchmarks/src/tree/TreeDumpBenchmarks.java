@@ -0,0 +1,97 @@
+package tree;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of writing out a large Tree with <code>writeTo</code> and
+ * <code>print</code>, through a buffered writer that discards its output,
+ * and with <code>toString</code>. Every node of the tree has up to ten
+ * children, so the leaves of the largest are about seven levels deep.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class TreeDumpBenchmarks {
+    @Param({"1000", "100000", "10000000"})
+    int size;
+
+    private Tree<String> tree;
+
+    /**
+     * Builds the tree written by every iteration.
+     */
+    @Setup(Level.Trial)
+    public void buildTree() {
+    	List<Tree<String>> all = new ArrayList<Tree<String>>(size);
+    	all.add(new Tree<String>("root"));
+    	for (int i = 1; i < size; i++) {
+    		Tree<String> node = new Tree<String>("n" + i % 1000);
+    		all.get((i - 1) / 10).adopt(node);
+    		all.add(node);
+    	}
+    	tree = all.get(0);
+    }
+
+    @Benchmark
+    public Writer writeTo() throws IOException {
+    	Writer out = discard();
+    	tree.writeTo(out);
+    	out.flush();
+        return out;
+    }
+
+    @Benchmark
+    public Writer print() throws IOException {
+    	Writer out = discard();
+    	tree.print(out);
+    	out.flush();
+        return out;
+    }
+
+    @Benchmark
+    public String toText() {
+        return tree.toString();
+    }
+
+    /**
+     * Returns a buffered writer that throws away what is written to it.
+     *
+     * @return The writer.
+     */
+    private static Writer discard() {
+    	OutputStream nowhere = new OutputStream() {
+    		@Override
+    		public void write(int b) {}
+
+    		@Override
+    		public void write(byte[] b, int off, int len) {}
+    	};
+    	return new BufferedWriter(new OutputStreamWriter(nowhere, StandardCharsets.UTF_8), 1 << 16);
+    }
+}
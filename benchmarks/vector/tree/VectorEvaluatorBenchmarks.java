@@ -0,0 +1,102 @@
+package tree;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks comparing <code>VectorEvaluator</code> with the scalar
+ * evaluation paths of <code>Expression</code> over a table of rows. Built
+ * only by <code>mvn -Pvector package</code>, as it needs Java 17 and the
+ * <code>jdk.incubator.vector</code> module.
+ *
+ * @author Anders Schneider
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorEvaluatorBenchmarks {
+    private static final String EXPRESSION = "+(*(x 3) -(y x) /(y 7) *(x y 2) -(z /(x 3)))";
+
+    @Param({"1000", "1000000"})
+    int rows;
+
+    private Map<String, int[]> columns;
+    private int[][] byIndex;
+    private int[] out;
+    private Expression expression;
+    private VectorEvaluator vector;
+    private Program program;
+
+    /**
+     * Fills the columns, and checks that every path gives the same results.
+     */
+    @Setup(Level.Trial)
+    public void buildColumns() {
+    	Random random = new Random(594);
+    	columns = new HashMap<String, int[]>();
+    	for (String name : new String[] {"x", "y", "z"}) {
+    		int[] column = new int[rows];
+    		for (int r = 0; r < rows; r++) {column[r] = random.nextInt();}
+    		columns.put(name, column);
+    	}
+
+    	expression = new Expression(EXPRESSION, TierPolicy.DISABLED);
+    	vector = new VectorEvaluator(expression);
+    	program = expression.compile();
+    	byIndex = expression.columnsByIndex(columns, rows);
+    	out = new int[rows];
+
+    	int[] expected = new int[rows];
+    	expression.evaluate(columns, expected);
+    	vector.evaluate(columns, out);
+    	for (int r = 0; r < rows; r++) {
+    		if (out[r] != expected[r]) {
+    			throw new AssertionError("Row " + r + ": " + out[r] + " != " + expected[r]);
+    		}
+    	}
+    }
+
+    /**
+     * Evaluates the Program once for each row.
+     */
+    @Benchmark
+    public int[] programRows() {
+    	int[] values = new int[byIndex.length];
+    	int[] stack = program.newStack();
+    	for (int r = 0; r < rows; r++) {
+    		for (int v = 0; v < values.length; v++) {values[v] = byIndex[v][r];}
+    		out[r] = program.evaluate(values, stack);
+    	}
+        return out;
+    }
+
+    @Benchmark
+    public int[] expressionColumns() {
+    	expression.evaluate(columns, out);
+        return out;
+    }
+
+    @Benchmark
+    public int[] vectorColumns() {
+    	vector.evaluate(columns, out);
+        return out;
+    }
+}
@@ -0,0 +1,37 @@
+package tree;
+
+/**
+ * The arithmetic an <code>Expression</code> is evaluated in, chosen when it
+ * is constructed. The result type is chosen by the caller:
+ * <code>evaluate()</code> returns an <code>int</code>,
+ * <code>evaluateLong()</code> a <code>long</code> and
+ * <code>evaluateBig()</code> a <code>BigInteger</code>. In the checked modes
+ * a result that does not fit the type asked for throws
+ * <code>ArithmeticException</code> rather than being truncated.
+ *
+ * @author Anders Schneider
+ */
+public enum Arithmetic {
+    /**
+     * 32-bit <code>int</code> arithmetic, which wraps silently on overflow,
+     * as <code>Expression</code> always has. Literals must fit in an
+     * <code>int</code>. This is the only mode that can be promoted to a
+     * faster tier, optimized or compiled, and it can only give an
+     * <code>int</code> result.
+     */
+    WRAPPING,
+    /**
+     * 64-bit <code>long</code> arithmetic, which throws
+     * <code>ArithmeticException</code> as soon as any operation overflows.
+     * Literals must fit in a <code>long</code>. Nothing is allocated for
+     * the values themselves.
+     */
+    CHECKED,
+    /**
+     * Exact arithmetic on integers of any size. Each operation is done on
+     * <code>long</code>s until it overflows; only that subtree's value is
+     * then held as a <code>BigInteger</code>, and values small enough for a
+     * <code>long</code> go back to being one. Literals may be of any size.
+     */
+    EXACT
+}
@@ -0,0 +1,305 @@
+package tree;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates a file of expressions, one per line, on a fixed pool of worker
+ * threads, and writes the value of each line, or why it has none, to an
+ * output file in the same order. Run with:
+ * <pre>
+ * java -jar trees-and-expressions.jar input output [threads [arithmetic]]
+ * </pre>
+ * The input is read in chunks of lines, each of which is parsed and
+ * evaluated as a single task. The thread reading the input also writes the
+ * output, a chunk at a time in input order, and stops reading while the
+ * chunks not yet written fill the pool twice over, so only a bounded number
+ * of lines is ever held in memory, however long the file.
+ * <p>
+ * Line <code>n</code> of the output is the value of line <code>n</code> of
+ * the input, or <code>error: </code> and the message of the exception that
+ * its construction or evaluation threw. Expressions must not have variables.
+ *
+ * @author Anders Schneider
+ */
+public class BatchEvaluator {
+    /** The number of lines in a chunk, if no other is given. */
+    public static final int DEFAULT_CHUNK_LINES = 1024;
+
+    private final int threads;
+    private final int chunkLines;
+    private final Arithmetic arithmetic;
+
+    /**
+     * Constructs a BatchEvaluator that uses a thread for each processor and
+     * <code>WRAPPING</code> arithmetic.
+     */
+    public BatchEvaluator() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_LINES, Arithmetic.WRAPPING);
+    }
+
+    /**
+     * Constructs a BatchEvaluator.
+     *
+     * @param threads The number of worker threads.
+     * @param chunkLines The number of lines evaluated by each task.
+     * @param arithmetic The arithmetic each line is evaluated in.
+     * @throws IllegalArgumentException If <code>threads</code> or
+     *         <code>chunkLines</code> is not positive.
+     */
+    public BatchEvaluator(int threads, int chunkLines, Arithmetic arithmetic) {
+    	if (threads < 1) {throw new IllegalArgumentException("Threads must be positive: " + threads);}
+    	if (chunkLines < 1) {throw new IllegalArgumentException("Chunk lines must be positive: " + chunkLines);}
+
+    	this.threads = threads;
+    	this.chunkLines = chunkLines;
+    	this.arithmetic = arithmetic;
+    }
+
+    /**
+     * Evaluates every line of one file, writing the results to another.
+     * Both are UTF-8.
+     *
+     * @param input The file of expressions.
+     * @param output The file of results, which is replaced if it exists.
+     * @return How many lines were evaluated, and how quickly.
+     * @throws IOException If a file cannot be read or written, or the
+     *         calling thread is interrupted.
+     */
+    public Report evaluate(Path input, Path output) throws IOException {
+    	try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+    			Writer out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+    		return evaluate(in, out);
+    	}
+    }
+
+    /**
+     * Evaluates every line read from a reader, writing the results to a
+     * writer, which is flushed but not closed.
+     *
+     * @param in Where the expressions are read.
+     * @param out Where the results are written.
+     * @return How many lines were evaluated, and how quickly.
+     * @throws IOException If the input cannot be read or the output
+     *         written, or the calling thread is interrupted.
+     */
+    public Report evaluate(BufferedReader in, Writer out) throws IOException {
+    	long start = System.nanoTime();
+    	long lines = 0;
+    	AtomicLong errors = new AtomicLong();
+    	ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+    	ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+    		@Override
+    		public Thread newThread(Runnable r) {
+    			Thread t = new Thread(r, "Batch evaluation");
+    			t.setDaemon(true);
+    			return t;
+    		}
+    	});
+
+    	try {
+    		while (true) {
+    			String[] chunk = new String[chunkLines];
+    			int size = 0;
+    			String line;
+    			while (size < chunkLines && (line = in.readLine()) != null) {
+    				chunk[size++] = line;
+    			}
+    			if (size == 0) {break;}
+
+    			lines += size;
+    			pending.add(pool.submit(new Chunk(chunk, size, errors)));
+    			// Stop reading until the oldest chunk can be written
+    			if (pending.size() >= 2 * threads) {write(pending.poll(), out);}
+    			if (size < chunkLines) {break;}
+    		}
+    		while (!pending.isEmpty()) {
+    			write(pending.poll(), out);
+    		}
+    		out.flush();
+    	} finally {
+    		pool.shutdownNow();
+    	}
+
+        return new Report(lines, errors.get(), System.nanoTime() - start);
+    }
+
+    /**
+     * Writes the results of a chunk once they are ready.
+     *
+     * @param results The results.
+     * @param out Where they are written.
+     * @throws IOException If they cannot be written, or the calling thread
+     *         is interrupted while it waits for them.
+     */
+    private static void write(Future<String> results, Writer out) throws IOException {
+    	try {
+    		out.write(results.get());
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    		throw new InterruptedIOException("Interrupted while evaluating");
+    	} catch (ExecutionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof Error) {throw (Error) cause;}
+    		throw (RuntimeException) cause;
+    	}
+    }
+
+    /**
+     * Evaluates one expression in this BatchEvaluator's arithmetic.
+     *
+     * @param line The text of the expression.
+     * @return Its value.
+     */
+    private String evaluate(String line) {
+    	switch (arithmetic) {
+    	case WRAPPING:
+    		return Integer.toString(new Expression(line, TierPolicy.DISABLED).evaluate());
+    	case CHECKED:
+    		return Long.toString(new Expression(line, arithmetic).evaluateLong());
+    	default:
+    		return new Expression(line, arithmetic).evaluateBig().toString();
+    	}
+    }
+
+    /**
+     * A task that evaluates a chunk of lines, giving their results as the
+     * text to be written for them.
+     */
+    private final class Chunk implements Callable<String> {
+        private final String[] lines;
+        private final int size;
+        private final AtomicLong errors;
+
+        /**
+         * Constructs a task.
+         *
+         * @param lines The lines.
+         * @param size The number of lines.
+         * @param errors The count of lines without a value, added to by the task.
+         */
+        Chunk(String[] lines, int size, AtomicLong errors) {
+        	this.lines = lines;
+        	this.size = size;
+        	this.errors = errors;
+        }
+
+        @Override
+        public String call() {
+        	StringBuilder sb = new StringBuilder(size * 8);
+        	int failed = 0;
+        	for (int i = 0; i < size; i++) {
+        		try {
+        			sb.append(evaluate(lines[i]));
+        		} catch (RuntimeException e) {
+        			sb.append("error: ").append(e.getMessage());
+        			failed++;
+        		}
+        		sb.append('\n');
+        	}
+        	errors.addAndGet(failed);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * How many lines a batch evaluated, and how quickly.
+     */
+    public static final class Report {
+        private final long lines;
+        private final long errors;
+        private final long nanos;
+
+        /**
+         * Constructs a Report.
+         *
+         * @param lines The number of lines read.
+         * @param errors The number of them without a value.
+         * @param nanos The time taken, in nanoseconds.
+         */
+        Report(long lines, long errors, long nanos) {
+        	this.lines = lines;
+        	this.errors = errors;
+        	this.nanos = nanos;
+        }
+
+        /**
+         * Returns the number of lines read.
+         *
+         * @return The number of lines.
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * Returns the number of lines written as errors.
+         *
+         * @return The number of errors.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns the time taken, from the first line read to the last written.
+         *
+         * @return The time, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the number of lines evaluated per second.
+         *
+         * @return The throughput.
+         */
+        public double getLinesPerSecond() {
+            return nanos == 0 ? 0 : lines * 1e9 / nanos;
+        }
+
+        /* (non-Javadoc)
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            return String.format("%d lines, %d errors, in %.3f s (%.0f lines/s)",
+            		lines, errors, nanos / 1e9, getLinesPerSecond());
+        }
+    }
+
+    /**
+     * Evaluates a file, reporting the throughput on standard error.
+     *
+     * @param args The input file, the output file, and optionally the
+     *        number of threads and then <code>WRAPPING</code>,
+     *        <code>CHECKED</code> or <code>EXACT</code>.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static void main(String[] args) throws IOException {
+    	if (args.length < 2 || args.length > 4) {
+    		System.err.println("Usage: BatchEvaluator input output [threads [WRAPPING|CHECKED|EXACT]]");
+    		System.exit(2);
+    	}
+
+    	int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+    	Arithmetic arithmetic = args.length > 3 ? Arithmetic.valueOf(args[3]) : Arithmetic.WRAPPING;
+    	BatchEvaluator batch = new BatchEvaluator(threads, DEFAULT_CHUNK_LINES, arithmetic);
+    	System.err.println(batch.evaluate(Paths.get(args[0]), Paths.get(args[1])));
+    }
+}
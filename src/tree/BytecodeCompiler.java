@@ -0,0 +1,317 @@
+package tree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates a JVM class whose <code>evaluate(int[])</code> method is the
+ * straight-line arithmetic of a compiled <code>Expression</code>, so that
+ * the JIT can inline it and fold its constants. Variables are read from
+ * the method's array argument; <code>evaluate()</code> passes
+ * <code>null</code>, so it must only be used when there are no variables.
+ * <p>
+ * Every generated class is defined by its own small class loader, which is
+ * referenced only by the class itself. Once the returned Evaluator is no
+ * longer reachable, the class and its loader can be unloaded, so compiling
+ * many expressions does not leak metaspace.
+ * <p>
+ * A JVM method may hold at most 65535 bytes of code and a class at most
+ * 65535 constants; a Program too large to fit is returned unchanged, to be
+ * interpreted.
+ *
+ * @author Anders Schneider
+ */
+public final class BytecodeCompiler {
+    private static final String CLASS_NAME = "tree/GeneratedEvaluator";
+    private static final int MAX_CODE_LENGTH = 65535;
+    private static final int MAX_CONSTANTS = 65535;
+
+    // Constant pool entries shared by every generated class
+    private static final int THIS_CLASS = 1;
+    private static final int OBJECT_CLASS = 3;
+    private static final int EVALUATOR_CLASS = 5;
+    private static final int INIT_NAME = 7;
+    private static final int VOID_DESCRIPTOR = 8;
+    private static final int CODE_NAME = 9;
+    private static final int EVALUATE_NAME = 10;
+    private static final int INT_DESCRIPTOR = 11;
+    private static final int OBJECT_INIT = 12;
+    private static final int VALUES_DESCRIPTOR = 14;
+    private static final int THIS_EVALUATE = 15;
+    private static final int FIRST_INTEGER = 17;
+
+    private BytecodeCompiler() {}
+
+    /**
+     * Generates and loads a class that evaluates the given Program.
+     *
+     * @param program The Program to be compiled.
+     * @return An Evaluator running generated code, or <code>program</code>
+     *         itself if it is too large to be compiled.
+     */
+    public static Evaluator compile(Program program) {
+    	byte[] classFile = generate(program);
+    	if (classFile == null) {return program;}
+
+    	try {
+    		Class<?> c = new Loader().define(classFile);
+    		return (Evaluator) c.getConstructor().newInstance();
+    	} catch (ReflectiveOperationException e) {
+    		throw new IllegalStateException("Cannot load generated evaluator", e);
+    	}
+    }
+
+    /**
+     * Returns the bytes of a class file that evaluates the given Program,
+     * or <code>null</code> if the Program exceeds the JVM's limits.
+     *
+     * @param program The Program to be translated.
+     * @return A class file, or <code>null</code>.
+     */
+    static byte[] generate(Program program) {
+    	int[] code = program.getCode();
+    	Map<Integer, Integer> integers = new HashMap<Integer, Integer>();
+    	ByteArrayOutputStream body = new ByteArrayOutputStream(code.length);
+
+    	int pc = 0;
+    	while (pc < code.length) {
+    		int op = code[pc++];
+    		switch (op) {
+    		case Program.PUSH:
+    			push(body, code[pc++], integers);
+    			break;
+    		case Program.LOAD:
+    			body.write(0x2b); // aload_1
+    			push(body, code[pc++], integers);
+    			body.write(0x2e); // iaload
+    			break;
+    		case Program.ADD:
+    			body.write(0x60); // iadd
+    			break;
+    		case Program.SUB:
+    			body.write(0x64); // isub
+    			break;
+    		case Program.MUL:
+    			body.write(0x68); // imul
+    			break;
+    		case Program.DIV:
+    			body.write(0x6c); // idiv
+    			break;
+    		default:
+    			throw new IllegalStateException("Bad opcode: " + op);
+    		}
+    	}
+    	body.write(0xac); // ireturn
+
+    	if (body.size() > MAX_CODE_LENGTH
+    			|| FIRST_INTEGER + integers.size() > MAX_CONSTANTS) {
+    		return null;
+    	}
+
+    	try {
+    		// A LOAD briefly holds the array and index above the other operands
+    		return assemble(body.toByteArray(), program.getMaxStack() + 1, integers);
+    	} catch (IOException e) {
+    		throw new IllegalStateException(e);
+    	}
+    }
+
+    /**
+     * Writes the shortest instruction that pushes the given constant.
+     *
+     * @param body The method body being written.
+     * @param constant The value to be pushed.
+     * @param integers The constant pool indices of the <code>int</code>
+     *        constants allocated so far.
+     */
+    private static void push(ByteArrayOutputStream body, int constant,
+            Map<Integer, Integer> integers) {
+    	if (constant >= -1 && constant <= 5) {
+    		body.write(0x03 + constant); // iconst_<n>
+    	} else if (constant == (byte) constant) {
+    		body.write(0x10); // bipush
+    		body.write(constant);
+    	} else if (constant == (short) constant) {
+    		body.write(0x11); // sipush
+    		body.write(constant >> 8);
+    		body.write(constant);
+    	} else {
+    		Integer index = integers.get(constant);
+    		if (index == null) {
+    			index = FIRST_INTEGER + integers.size();
+    			integers.put(constant, index);
+    		}
+    		if (index < 256) {
+    			body.write(0x12); // ldc
+    			body.write(index);
+    		} else {
+    			body.write(0x13); // ldc_w
+    			body.write(index >> 8);
+    			body.write(index);
+    		}
+    	}
+    }
+
+    /**
+     * Lays out a complete class file around the given method body.
+     *
+     * @param body The bytecode of <code>evaluate(int[])</code>.
+     * @param maxStack The operand stack size needed by <code>body</code>.
+     * @param integers The <code>int</code> constants used by <code>body</code>.
+     * @return The class file.
+     * @throws IOException Never; the output is in memory.
+     */
+    private static byte[] assemble(byte[] body, int maxStack,
+            Map<Integer, Integer> integers) throws IOException {
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length + 512);
+    	DataOutputStream out = new DataOutputStream(bytes);
+
+    	out.writeInt(0xCAFEBABE);
+    	out.writeShort(0);  // minor version
+    	out.writeShort(51); // Java 7, which needs no stack map for straight-line code
+
+    	// Constant pool
+    	int[] values = new int[integers.size()];
+    	for (Map.Entry<Integer, Integer> e : integers.entrySet()) {
+    		values[e.getValue() - FIRST_INTEGER] = e.getKey();
+    	}
+    	out.writeShort(FIRST_INTEGER + values.length);
+    	writeClass(out, THIS_CLASS + 1, CLASS_NAME);
+    	writeClass(out, OBJECT_CLASS + 1, "java/lang/Object");
+    	writeClass(out, EVALUATOR_CLASS + 1, "tree/Evaluator");
+    	writeUtf8(out, "<init>");
+    	writeUtf8(out, "()V");
+    	writeUtf8(out, "Code");
+    	writeUtf8(out, "evaluate");
+    	writeUtf8(out, "()I");
+    	out.writeByte(10); // CONSTANT_Methodref
+    	out.writeShort(OBJECT_CLASS);
+    	out.writeShort(OBJECT_INIT + 1);
+    	out.writeByte(12); // CONSTANT_NameAndType
+    	out.writeShort(INIT_NAME);
+    	out.writeShort(VOID_DESCRIPTOR);
+    	writeUtf8(out, "([I)I");
+    	out.writeByte(10); // CONSTANT_Methodref
+    	out.writeShort(THIS_CLASS);
+    	out.writeShort(THIS_EVALUATE + 1);
+    	out.writeByte(12); // CONSTANT_NameAndType
+    	out.writeShort(EVALUATE_NAME);
+    	out.writeShort(VALUES_DESCRIPTOR);
+    	for (int value : values) {
+    		out.writeByte(3); // CONSTANT_Integer
+    		out.writeInt(value);
+    	}
+
+    	out.writeShort(0x0031); // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+    	out.writeShort(THIS_CLASS);
+    	out.writeShort(OBJECT_CLASS);
+    	out.writeShort(1);
+    	out.writeShort(EVALUATOR_CLASS);
+    	out.writeShort(0); // fields
+
+    	out.writeShort(3); // methods
+    	byte[] init = {
+    		0x2a,                                         // aload_0
+    		(byte) 0xb7, 0, OBJECT_INIT,                  // invokespecial
+    		(byte) 0xb1                                   // return
+    	};
+    	byte[] evaluate = {
+    		0x2a,                                         // aload_0
+    		0x01,                                         // aconst_null
+    		(byte) 0xb6, 0, THIS_EVALUATE,                // invokevirtual
+    		(byte) 0xac                                   // ireturn
+    	};
+    	writeMethod(out, 0x0001, INIT_NAME, VOID_DESCRIPTOR, 1, 1, init);
+    	writeMethod(out, 0x0011, EVALUATE_NAME, INT_DESCRIPTOR, 2, 1, evaluate);
+    	writeMethod(out, 0x0011, EVALUATE_NAME, VALUES_DESCRIPTOR, maxStack, 2, body);
+
+    	out.writeShort(0); // class attributes
+    	out.flush();
+    	return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a <code>CONSTANT_Class</code> entry followed by its name.
+     *
+     * @param out The class file being written.
+     * @param nameIndex The index that the name entry will have.
+     * @param name The internal name of the class.
+     * @throws IOException Never; the output is in memory.
+     */
+    private static void writeClass(DataOutputStream out, int nameIndex, String name)
+            throws IOException {
+    	out.writeByte(7); // CONSTANT_Class
+    	out.writeShort(nameIndex);
+    	writeUtf8(out, name);
+    }
+
+    /**
+     * Writes a <code>CONSTANT_Utf8</code> entry.
+     *
+     * @param out The class file being written.
+     * @param s The string to be written.
+     * @throws IOException Never; the output is in memory.
+     */
+    private static void writeUtf8(DataOutputStream out, String s) throws IOException {
+    	out.writeByte(1); // CONSTANT_Utf8
+    	out.writeUTF(s);
+    }
+
+    /**
+     * Writes a method with a single <code>Code</code> attribute.
+     *
+     * @param out The class file being written.
+     * @param access The method's access flags.
+     * @param name The constant pool index of the method's name.
+     * @param descriptor The constant pool index of the method's descriptor.
+     * @param maxStack The operand stack size needed by <code>code</code>.
+     * @param maxLocals The number of local variables, including <code>this</code>.
+     * @param code The method's bytecode.
+     * @throws IOException Never; the output is in memory.
+     */
+    private static void writeMethod(DataOutputStream out, int access, int name,
+            int descriptor, int maxStack, int maxLocals, byte[] code) throws IOException {
+    	out.writeShort(access);
+    	out.writeShort(name);
+    	out.writeShort(descriptor);
+    	out.writeShort(1);
+    	out.writeShort(CODE_NAME);
+    	out.writeInt(12 + code.length);
+    	out.writeShort(maxStack);
+    	out.writeShort(maxLocals);
+    	out.writeInt(code.length);
+    	out.write(code);
+    	out.writeShort(0); // exception table
+    	out.writeShort(0); // code attributes
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * A class loader that defines exactly one generated class, so that the
+     * class can be unloaded as soon as it is no longer used.
+     */
+    private static class Loader extends ClassLoader {
+
+        /**
+         * Constructs a Loader that resolves everything else through the
+         * loader of this package.
+         */
+        Loader() {
+            super(BytecodeCompiler.class.getClassLoader());
+        }
+
+        /**
+         * Defines the generated class.
+         *
+         * @param classFile The bytes of the class file.
+         * @return The newly defined class.
+         */
+        Class<?> define(byte[] classFile) {
+            return defineClass(CLASS_NAME.replace('/', '.'), classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package tree;
+
+/**
+ * A tokenizer over a <code>CharSequence</code> (such as a String, or a
+ * <code>char[]</code> wrapped by <code>CharBuffer.wrap</code>) that reports
+ * the kind and position of each token without allocating anything for
+ * parentheses or whitespace. A String is created only when the value of a
+ * value token is asked for.
+ * <p>
+ * When interning is on, equal values share a single String, and a value
+ * already seen is returned without allocating; this suits inputs such as
+ * Expressions, in which a few operators and numbers repeat many times.
+ *
+ * @author Anders Schneider
+ */
+final class CharTokenizer {
+    /** The kind of token returned at the end of the input. */
+    static final int END = 0;
+    /** The kind of a left parenthesis. */
+    static final int LEFT = 1;
+    /** The kind of a right parenthesis. */
+    static final int RIGHT = 2;
+    /** The kind of a sequence of non-whitespace, non-parenthesis characters. */
+    static final int VALUE = 3;
+
+    private final CharSequence input;
+    private final int length;
+    private int position = 0;
+    private int start = 0;
+    private int end = 0;
+
+    // Open-addressing table of the distinct values seen, if interning
+    private String[] table;
+    private int count = 0;
+
+    /**
+     * Constructs a tokenizer that uses whitespace and parentheses as
+     * delimiters.
+     *
+     * @param input The characters to be tokenized.
+     * @param intern Whether equal values should share one String.
+     */
+    CharTokenizer(CharSequence input, boolean intern) {
+        this.input = input;
+        this.length = input.length();
+        this.table = intern ? new String[16] : null;
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return The kind of the token: <code>LEFT</code>, <code>RIGHT</code>,
+     *         <code>VALUE</code>, or <code>END</code> if there are no more.
+     */
+    int advance() {
+    	while (position < length && isWhitespace(input.charAt(position))) {
+    		position++;
+    	}
+
+    	start = position;
+    	if (position == length) {
+    		end = position;
+    		return END;
+    	}
+
+    	char c = input.charAt(position++);
+    	if (c == '(') {
+    		end = position;
+    		return LEFT;
+    	} else if (c == ')') {
+    		end = position;
+    		return RIGHT;
+    	}
+
+    	while (position < length && !isDelimiter(input.charAt(position))) {
+    		position++;
+    	}
+    	end = position;
+    	return VALUE;
+    }
+
+    /**
+     * Tests whether there is another token, skipping any whitespace before it.
+     *
+     * @return <code>true</code> if <code>advance()</code> would not return
+     *         <code>END</code>.
+     */
+    boolean hasNext() {
+    	while (position < length && isWhitespace(input.charAt(position))) {
+    		position++;
+    	}
+    	return position < length;
+    }
+
+    /**
+     * Returns the offset of the first character of the current token.
+     *
+     * @return The start of the current token.
+     */
+    int start() {
+        return start;
+    }
+
+    /**
+     * Returns the offset after the last character of the current token.
+     *
+     * @return The end of the current token.
+     */
+    int end() {
+        return end;
+    }
+
+    /**
+     * Returns the characters of the current token as a String, interned if
+     * this tokenizer interns values.
+     *
+     * @return The text of the current token.
+     */
+    String value() {
+    	if (table == null) {return input.subSequence(start, end).toString();}
+
+    	int hash = 0;
+    	for (int i = start; i < end; i++) {
+    		hash = 31 * hash + input.charAt(i);
+    	}
+
+    	int mask = table.length - 1;
+    	int slot = mix(hash) & mask;
+    	for (String s = table[slot]; s != null; s = table[slot]) {
+    		if (s.hashCode() == hash && matches(s)) {return s;}
+    		slot = (slot + 1) & mask;
+    	}
+
+    	String s = input.subSequence(start, end).toString();
+    	table[slot] = s;
+    	if (++count * 2 > table.length) {grow();}
+    	return s;
+    }
+
+    /**
+     * Tests whether the given String has the characters of the current token.
+     *
+     * @param s A String of the same hash code as the current token.
+     * @return <code>true</code> iff the characters are the same.
+     */
+    private boolean matches(String s) {
+    	if (s.length() != end - start) {return false;}
+
+    	for (int i = 0; i < s.length(); i++) {
+    		if (s.charAt(i) != input.charAt(start + i)) {return false;}
+    	}
+    	return true;
+    }
+
+    /**
+     * Doubles the size of the intern table.
+     */
+    private void grow() {
+    	String[] old = table;
+    	table = new String[old.length * 2];
+    	int mask = table.length - 1;
+
+    	for (String s : old) {
+    		if (s == null) {continue;}
+    		int slot = mix(s.hashCode()) & mask;
+    		while (table[slot] != null) {
+    			slot = (slot + 1) & mask;
+    		}
+    		table[slot] = s;
+    	}
+    }
+
+    /**
+     * Spreads the bits of a String hash code, whose low bits are poor for
+     * short strings, over the whole word.
+     *
+     * @param hash A hash code.
+     * @return The mixed hash code.
+     */
+    private static int mix(int hash) {
+    	hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Tests whether the character separates tokens without being one.
+     *
+     * @param c The character.
+     * @return <code>true</code> iff <code>c</code> is whitespace.
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    /**
+     * Tests whether the character ends a value token.
+     *
+     * @param c The character.
+     * @return <code>true</code> iff <code>c</code> is whitespace or a parenthesis.
+     */
+    static boolean isDelimiter(char c) {
+        return isWhitespace(c) || c == '(' || c == ')';
+    }
+}
@@ -0,0 +1,644 @@
+package tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable tree stored in a handful of primitive arrays rather than as
+ * objects. A node is an <code>int</code>: the nodes are numbered from 0 in
+ * preorder, so the root is 0 and every subtree is a contiguous range of
+ * numbers. For each node the arrays hold its parent, first child, next
+ * sibling and number of children, and the index of its value in a
+ * dictionary that holds each distinct value once.
+ * <p>
+ * A node costs 20 bytes plus its share of the dictionary, against about
+ * 85 bytes for a typical Tree node and its <code>ArrayList</code> before
+ * its value is counted, which suits trees of many millions of nodes. The
+ * nodes can be read through the <code>int</code>-based methods of this
+ * class, or through <code>Node</code> views, which have the read methods
+ * of Tree.
+ * <code>getChild(node, index)</code> follows sibling links, so it takes
+ * time proportional to <code>index</code>; iterating over the children
+ * takes constant time per child.
+ *
+ * @author Anders Schneider
+ * @param <V> The type of value held in each node.
+ */
+public final class CompactTree<V> {
+    /** The number given by the navigation methods for a missing node. */
+    public static final int NONE = -1;
+
+    private final int size;
+    private final int[] parent;
+    private final int[] firstChild;
+    private final int[] nextSibling;
+    private final int[] childCount;
+    private final int[] valueIndex;
+    private final Object[] dictionary;
+    private int hash;
+
+    /**
+     * Constructs a CompactTree, taking ownership of the arrays.
+     *
+     * @param size The number of nodes.
+     * @param parent The parent of each node.
+     * @param firstChild The first child of each node.
+     * @param nextSibling The next sibling of each node.
+     * @param childCount The number of children of each node.
+     * @param valueIndex The index of each node's value in the dictionary.
+     * @param dictionary The distinct values.
+     */
+    private CompactTree(int size, int[] parent, int[] firstChild, int[] nextSibling,
+            int[] childCount, int[] valueIndex, Object[] dictionary) {
+        this.size = size;
+        this.parent = parent;
+        this.firstChild = firstChild;
+        this.nextSibling = nextSibling;
+        this.childCount = childCount;
+        this.valueIndex = valueIndex;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Returns a CompactTree with the same shape and values as the given
+     * Tree. A subtree that occurs more than once in the Tree is stored
+     * each time it occurs.
+     *
+     * @param tree The Tree to be converted.
+     * @return The equivalent CompactTree.
+     */
+    public static <V> CompactTree<V> from(Tree<V> tree) {
+    	Builder<V> builder = new Builder<V>();
+    	if (tree.getNumberOfChildren() == 0) {
+    		builder.leaf(tree.getValue());
+    		return builder.build();
+    	}
+
+    	builder.begin(tree.getValue());
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.getNumberOfChildren()) {
+    			Tree<V> child = node.getChild(i);
+    			if (child.getNumberOfChildren() == 0) {
+    				builder.leaf(child.getValue());
+    			} else {
+    				builder.begin(child.getValue());
+    				path.push(child);
+    			}
+    		} else {
+    			builder.end();
+    			path.pop();
+    		}
+    	}
+    	return builder.build();
+    }
+
+    /**
+     * Returns a new Tree with the same shape and values as this one.
+     *
+     * @return The equivalent Tree.
+     */
+    public Tree<V> toTree() {
+    	@SuppressWarnings("unchecked")
+    	Tree<V>[] nodes = (Tree<V>[]) new Tree<?>[size];
+    	for (int node = 0; node < size; node++) {
+    		nodes[node] = new Tree<V>(getValue(node));
+    		if (node > 0) {nodes[parent[node]].adopt(nodes[node]);}
+    	}
+    	return nodes[0];
+    }
+
+    /**
+     * Returns the number of nodes in this tree.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the number of distinct values in this tree.
+     *
+     * @return The size of the dictionary of values.
+     */
+    public int getNumberOfValues() {
+        return dictionary.length;
+    }
+
+    /**
+     * Returns the value in the given node.
+     *
+     * @param node A node of this tree.
+     * @return The value in the node.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    @SuppressWarnings("unchecked")
+    public V getValue(int node) {
+    	checkNode(node);
+        return (V) dictionary[valueIndex[node]];
+    }
+
+    /**
+     * Returns the number of children that the given node has.
+     *
+     * @param node A node of this tree.
+     * @return A count of the node's immediate children.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getNumberOfChildren(int node) {
+    	checkNode(node);
+        return childCount[node];
+    }
+
+    /**
+     * Returns the <code>index</code>'th child of the given node.
+     *
+     * @param node A node of this tree.
+     * @param index The position of the child that is to be returned.
+     * @return The child at that position.
+     * @throws IndexOutOfBoundsException If there is no such node, or if
+     *     <code>index</code> is negative or is greater than or equal to the
+     *     number of children of the node.
+     */
+    public int getChild(int node, int index) {
+    	checkNode(node);
+    	if (index < 0 || index >= childCount[node]) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + childCount[node]);
+    	}
+
+    	int child = firstChild[node];
+    	for (int i = 0; i < index; i++) {
+    		child = nextSibling[child];
+    	}
+    	return child;
+    }
+
+    /**
+     * Returns the parent of the given node.
+     *
+     * @param node A node of this tree.
+     * @return The parent, or <code>NONE</code> for the root.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getParent(int node) {
+    	checkNode(node);
+        return parent[node];
+    }
+
+    /**
+     * Returns the first child of the given node.
+     *
+     * @param node A node of this tree.
+     * @return The first child, or <code>NONE</code> for a leaf.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getFirstChild(int node) {
+    	checkNode(node);
+        return firstChild[node];
+    }
+
+    /**
+     * Returns the child of the same parent that follows the given node.
+     *
+     * @param node A node of this tree.
+     * @return The next sibling, or <code>NONE</code> for a last child.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getNextSibling(int node) {
+    	checkNode(node);
+        return nextSibling[node];
+    }
+
+    /**
+     * Returns a view of the root.
+     *
+     * @return The root node.
+     */
+    public Node<V> getRoot() {
+        return new Node<V>(this, 0);
+    }
+
+    /**
+     * Tests whether the input argument is a CompactTree having the same
+     * shape and containing the same values as this one.
+     *
+     * @param obj The object to be compared to this tree.
+     * @return <code>true</code> if the object is equal to this tree,
+     *         <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object obj) {
+    	if (!(obj instanceof CompactTree<?>)) {return false;}
+
+    	CompactTree<?> other = (CompactTree<?>) obj;
+    	if (this == other) {return true;}
+
+    	// Numbered in preorder, equal trees have the same parent arrays
+    	if (size != other.size || hashCode() != other.hashCode()) {return false;}
+    	if (!Arrays.equals(parent, other.parent)) {return false;}
+
+    	for (int node = 0; node < size; node++) {
+    		Object a = dictionary[valueIndex[node]];
+    		Object b = other.dictionary[other.valueIndex[node]];
+    		if (a == null ? b != null : !a.equals(b)) {return false;}
+    	}
+    	return true;
+    }
+
+    /**
+     * Returns the same hash code as an equal Tree, computed once.
+     *
+     * @return integer hash code
+     */
+    @Override
+    public int hashCode() {
+    	int h = hash;
+    	if (h != 0) {return h;}
+
+    	// Children are numbered after their parents, so each is hashed first
+    	int[] hashes = new int[size];
+    	for (int node = size - 1; node >= 0; node--) {
+    		Object value = dictionary[valueIndex[node]];
+    		int nodeHash = value == null ? 0 : value.hashCode();
+    		for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+    			nodeHash = 31 * nodeHash + hashes[child];
+    		}
+    		hashes[node] = nodeHash;
+    	}
+
+    	hash = hashes[0];
+    	return hashes[0];
+    }
+
+    /**
+     * Returns a one-line string representing this tree, in the form used
+     * by <code>Tree.toString()</code>.
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return getRoot().toString();
+    }
+
+    /**
+     * Writes the one-line string representing this tree, as returned by
+     * <code>toString()</code>, to the given sink.
+     *
+     * @param out Where the string is written.
+     * @throws IOException If <code>out</code> cannot be written.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        writeTo(0, out);
+    }
+
+    /**
+     * Writes the one-line string representing a subtree to the given sink.
+     *
+     * @param root The root of the subtree.
+     * @param out Where the string is written.
+     * @throws IOException If <code>out</code> cannot be written.
+     */
+    private void writeTo(int root, Appendable out) throws IOException {
+    	// The subtree is the nodes from root up to its size
+    	int node = root;
+    	while (true) {
+    		out.append(dictionary[valueIndex[node]].toString());
+    		if (childCount[node] > 0) {
+    			out.append(" (");
+    			node = firstChild[node];
+    			continue;
+    		}
+
+    		// Close every subtree that ends with this leaf
+    		while (node != root && nextSibling[node] == NONE) {
+    			out.append(')');
+    			node = parent[node];
+    		}
+    		if (node == root) {return;}
+    		out.append(' ');
+    		node = nextSibling[node];
+    	}
+    }
+
+    /**
+     * Throws if a node number is out of range.
+     *
+     * @param node The node number.
+     * @throws IndexOutOfBoundsException If it is not a node of this tree.
+     */
+    private void checkNode(int node) {
+    	if (node < 0 || node >= size) {
+    		throw new IndexOutOfBoundsException("Node: " + node + ", Size: " + size);
+    	}
+    }
+
+    /**
+     * Returns an assembler with which <code>Tree.parse</code> builds
+     * CompactTrees.
+     *
+     * @return A new assembler.
+     */
+    static Tree.Assembler<CompactTree<String>> assembler() {
+    	final Builder<String> builder = new Builder<String>();
+    	return new Tree.Assembler<CompactTree<String>>() {
+    		@Override
+    		public void begin(String value) {
+    			builder.begin(value);
+    		}
+
+    		@Override
+    		public void leaf(String value) {
+    			builder.leaf(value);
+    		}
+
+    		@Override
+    		public void end() {
+    			builder.end();
+    		}
+
+    		@Override
+    		public CompactTree<String> result() {
+    			return builder.build();
+    		}
+    	};
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * A view of one node of a CompactTree, with the read methods of Tree.
+     * Views are created as they are asked for; two views of the same node
+     * are equal.
+     *
+     * @param <V> The type of value held in each node.
+     */
+    public static final class Node<V> implements Iterable<Node<V>> {
+        private final CompactTree<V> tree;
+        private final int node;
+
+        /**
+         * Constructs a view.
+         *
+         * @param tree The tree.
+         * @param node The number of the node in the tree.
+         */
+        Node(CompactTree<V> tree, int node) {
+            this.tree = tree;
+            this.node = node;
+        }
+
+        /**
+         * Returns the number of this node in its tree.
+         *
+         * @return The node number.
+         */
+        public int getIndex() {
+            return node;
+        }
+
+        /**
+         * Returns the value in this node.
+         *
+         * @return The value in this node.
+         */
+        public V getValue() {
+            return tree.getValue(node);
+        }
+
+        /**
+         * Returns the number of children that this node has.
+         *
+         * @return A count of this node's immediate children.
+         */
+        public int getNumberOfChildren() {
+            return tree.childCount[node];
+        }
+
+        /**
+         * Returns the <code>index</code>'th child of this node.
+         *
+         * @param index The position of the child that is to be returned.
+         * @return The child at that position.
+         * @throws IndexOutOfBoundsException If <code>index</code> is negative or
+         *     is greater than or equal to the number of children of this node.
+         */
+        public Node<V> getChild(int index) {
+            return new Node<V>(tree, tree.getChild(node, index));
+        }
+
+        /**
+         * Returns an iterator for the children of this node.
+         *
+         * @return An iterator for this node's immediate children.
+         */
+        @Override
+        public Iterator<Node<V>> iterator() {
+        	return new Iterator<Node<V>>() {
+        		private int next = tree.firstChild[node];
+
+        		@Override
+        		public boolean hasNext() {
+        			return next != NONE;
+        		}
+
+        		@Override
+        		public Node<V> next() {
+        			if (next == NONE) {throw new NoSuchElementException();}
+        			Node<V> child = new Node<V>(tree, next);
+        			next = tree.nextSibling[next];
+        			return child;
+        		}
+
+        		@Override
+        		public void remove() {
+        			throw new UnsupportedOperationException();
+        		}
+        	};
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+        	if (!(obj instanceof Node<?>)) {return false;}
+        	Node<?> other = (Node<?>) obj;
+        	return tree == other.tree && node == other.node;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(tree) * 31 + node;
+        }
+
+        /**
+         * Returns a one-line string representing the subtree rooted at this
+         * node, in the form used by <code>Tree.toString()</code>.
+         *
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+        	StringBuilder builder = new StringBuilder();
+        	try {
+        		tree.writeTo(node, builder);
+        	} catch (IOException e) {
+        		throw new AssertionError(e);
+        	}
+        	return builder.toString();
+        }
+    }
+
+    /**
+     * Assembles a CompactTree from the top down, in the same way as
+     * <code>Tree.Builder</code>: the first node added is the root, and
+     * <code>begin</code> and <code>end</code> bracket the children of a node.
+     *
+     * @param <V> The type of value held in each node.
+     */
+    public static final class Builder<V> {
+        private int size = 0;
+        private int[] parent = new int[16];
+        private int[] firstChild = new int[16];
+        private int[] nextSibling = new int[16];
+        private int[] childCount = new int[16];
+        private int[] valueIndex = new int[16];
+        private final Map<Object, Integer> codes = new HashMap<Object, Integer>();
+        private final ArrayList<Object> dictionary = new ArrayList<Object>();
+        // The nodes begun and not ended, and the last child of each so far
+        private int[] open = new int[16];
+        private int[] lastChild = new int[16];
+        private int depth = 0;
+        private boolean built = false;
+
+        /**
+         * Adds a node, whose children are the nodes added before the
+         * matching <code>end()</code>.
+         *
+         * @param value The value of the node.
+         * @return This builder.
+         * @throws IllegalStateException If the tree already has a complete root.
+         */
+        public Builder<V> begin(V value) {
+        	int node = add(value);
+        	if (depth == open.length) {
+        		open = Arrays.copyOf(open, depth * 2);
+        		lastChild = Arrays.copyOf(lastChild, depth * 2);
+        	}
+        	open[depth] = node;
+        	lastChild[depth] = NONE;
+        	depth++;
+        	return this;
+        }
+
+        /**
+         * Adds a node without children.
+         *
+         * @param value The value of the node.
+         * @return This builder.
+         * @throws IllegalStateException If the tree already has a complete root.
+         */
+        public Builder<V> leaf(V value) {
+        	add(value);
+        	return this;
+        }
+
+        /**
+         * Ends the innermost node begun and not yet ended.
+         *
+         * @return This builder.
+         * @throws IllegalStateException If there is no such node.
+         */
+        public Builder<V> end() {
+        	if (depth == 0) {throw new IllegalStateException("No node to end");}
+        	depth--;
+        	return this;
+        }
+
+        /**
+         * Returns the tree built. The builder cannot be used afterwards.
+         *
+         * @return The CompactTree.
+         * @throws IllegalStateException If the tree is empty, if a node begun
+         *         has not been ended, or if the tree has already been built.
+         */
+        public CompactTree<V> build() {
+        	checkNotBuilt();
+        	if (size == 0) {throw new IllegalStateException("Empty tree");}
+        	if (depth > 0) {
+        		throw new IllegalStateException("Node not ended: " + dictionary.get(valueIndex[open[depth - 1]]));
+        	}
+
+        	built = true;
+        	return new CompactTree<V>(size, Arrays.copyOf(parent, size),
+        			Arrays.copyOf(firstChild, size), Arrays.copyOf(nextSibling, size),
+        			Arrays.copyOf(childCount, size), Arrays.copyOf(valueIndex, size),
+        			dictionary.toArray());
+        }
+
+        /**
+         * Adds a node as the last child of the innermost open node, or as
+         * the root.
+         *
+         * @param value The value of the node.
+         * @return The number of the node.
+         */
+        private int add(V value) {
+        	checkNotBuilt();
+        	if (depth == 0 && size > 0) {throw new IllegalStateException("Tree already has a root");}
+
+        	if (size == parent.length) {
+        		int capacity = size * 2;
+        		parent = Arrays.copyOf(parent, capacity);
+        		firstChild = Arrays.copyOf(firstChild, capacity);
+        		nextSibling = Arrays.copyOf(nextSibling, capacity);
+        		childCount = Arrays.copyOf(childCount, capacity);
+        		valueIndex = Arrays.copyOf(valueIndex, capacity);
+        	}
+
+        	int node = size++;
+        	Integer code = codes.get(value);
+        	if (code == null) {
+        		code = dictionary.size();
+        		codes.put(value, code);
+        		dictionary.add(value);
+        	}
+        	valueIndex[node] = code;
+        	firstChild[node] = NONE;
+        	nextSibling[node] = NONE;
+        	childCount[node] = 0;
+
+        	if (depth == 0) {
+        		parent[node] = NONE;
+        	} else {
+        		int p = open[depth - 1];
+        		parent[node] = p;
+        		childCount[p]++;
+        		if (lastChild[depth - 1] == NONE) {
+        			firstChild[p] = node;
+        		} else {
+        			nextSibling[lastChild[depth - 1]] = node;
+        		}
+        		lastChild[depth - 1] = node;
+        	}
+        	return node;
+        }
+
+        /**
+         * Throws if the tree has been built.
+         *
+         * @throws IllegalStateException If it has.
+         */
+        private void checkNotBuilt() {
+        	if (built) {throw new IllegalStateException("Tree already built");}
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package tree;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Evaluates an <code>Expression</code> whose tree has been hash-consed into
+ * a DAG by a <code>TreeInterner</code>, computing the value of each
+ * distinct subtree only once per evaluation, however many times it occurs.
+ * <p>
+ * The distinct nodes are numbered in post-order, so every node comes after
+ * its children, and an evaluation simply computes the value of each node in
+ * turn into a table indexed by node number. Like <code>Program</code>, the
+ * single-argument <code>evaluate</code> methods reuse a table owned by this
+ * DagEvaluator and must not be called from more than one thread at a time.
+ *
+ * @author Anders Schneider
+ */
+public final class DagEvaluator implements Evaluator {
+    private static final int CONSTANT = 0;
+    private static final int LOAD = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int[] NO_VALUES = new int[0];
+
+    private final String[] variables;
+    private final int[] ops;
+    // The constant, the variable index, or the start of the operands in args
+    private final int[] operands;
+    // The end of the operands in args
+    private final int[] ends;
+    private final int[] args;
+    private final int[] results;
+
+    /**
+     * Constructs a DagEvaluator from already-numbered nodes.
+     *
+     * @param builder The numbered nodes.
+     * @param variables The names of the variables, by index.
+     */
+    private DagEvaluator(Builder builder, String[] variables) {
+        this.variables = variables;
+        this.ops = builder.ops;
+        this.operands = builder.operands;
+        this.ends = builder.ends;
+        this.args = builder.args;
+        this.results = new int[ops.length];
+    }
+
+    /**
+     * Interns the given Tree, which must represent a valid Expression, and
+     * numbers its distinct nodes.
+     *
+     * @param tree The tree to be compiled.
+     * @param slots The index of each variable in the tree.
+     * @return The compiled DagEvaluator.
+     */
+    static DagEvaluator compile(Tree<String> tree, Map<String, Integer> slots) {
+    	TreeInterner<String> interner = new TreeInterner<String>();
+    	Tree<String> root = interner.intern(tree);
+
+    	Builder builder = new Builder(interner.size(), slots);
+    	builder.number(root);
+    	return new DagEvaluator(builder, slots.keySet().toArray(new String[slots.size()]));
+    }
+
+    /**
+     * Evaluates the DAG, which must not have any variables.
+     *
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalStateException If the Expression has variables.
+     */
+    @Override
+    public int evaluate() {
+    	if (variables.length > 0) {
+    		throw new IllegalStateException("Unbound variable: " + variables[0]);
+    	}
+        return evaluate(NO_VALUES, results);
+    }
+
+    /**
+     * Evaluates the DAG with the given variable values.
+     *
+     * @param values The value of each variable, by index.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    @Override
+    public int evaluate(int[] values) {
+        return evaluate(values, results);
+    }
+
+    /**
+     * Evaluates the DAG using the given table of node values, which must
+     * have at least <code>size()</code> elements.
+     *
+     * @param values The value of each variable, by index.
+     * @param results Where the value of each node is kept.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    public int evaluate(int[] values, int[] results) {
+    	int n = ops.length;
+
+    	for (int i = 0; i < n; i++) {
+    		int operand = operands[i];
+    		int result;
+
+    		switch (ops[i]) {
+    		case CONSTANT:
+    			result = operand;
+    			break;
+    		case LOAD:
+    			result = values[operand];
+    			break;
+    		case ADD:
+    			result = 0;
+    			for (int k = operand; k < ends[i]; k++) {result += results[args[k]];}
+    			break;
+    		case MUL:
+    			result = 1;
+    			for (int k = operand; k < ends[i]; k++) {result *= results[args[k]];}
+    			break;
+    		case SUB:
+    			result = results[args[operand]] - results[args[operand + 1]];
+    			break;
+    		case DIV:
+    			result = results[args[operand]] / results[args[operand + 1]];
+    			break;
+    		default:
+    			throw new IllegalStateException("Bad opcode: " + ops[i]);
+    		}
+    		results[i] = result;
+    	}
+
+    	return results[n - 1];
+    }
+
+    /**
+     * Returns the number of distinct nodes, each of which is computed once
+     * per evaluation.
+     *
+     * @return The number of nodes in the DAG.
+     */
+    public int size() {
+        return ops.length;
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * Numbers the distinct nodes of an interned expression DAG in post-order.
+     */
+    private static class Builder {
+        private final Map<String, Integer> slots;
+        private final Map<Tree<String>, Integer> numbers =
+            new IdentityHashMap<Tree<String>, Integer>();
+        final int[] ops;
+        final int[] operands;
+        final int[] ends;
+        int[] args = new int[16];
+        // The numbers of the children of the nodes on the path, in order
+        private int[] pending = new int[16];
+        private int count = 0;
+        private int argCount = 0;
+        private int pendingCount = 0;
+
+        /**
+         * Constructs a Builder.
+         *
+         * @param size The number of distinct nodes.
+         * @param slots The index of each variable.
+         */
+        Builder(int size, Map<String, Integer> slots) {
+            this.slots = slots;
+            this.ops = new int[size];
+            this.operands = new int[size];
+            this.ends = new int[size];
+        }
+
+        /**
+         * Numbers the nodes of the DAG below the given root, each after its
+         * children, without recursion.
+         *
+         * @param root A canonical node.
+         */
+        void number(Tree<String> root) {
+        	TreePath<String> path = new TreePath<String>();
+        	path.push(root);
+        	while (!path.isEmpty()) {
+        		Tree<String> node = path.top();
+        		int i = path.advance();
+
+        		if (i < node.getNumberOfChildren()) {
+        			Tree<String> child = node.getChild(i);
+        			Integer number = numbers.get(child);
+        			if (number == null) {
+        				path.push(child);
+        			} else {
+        				pend(number);
+        			}
+        		} else {
+        			path.pop();
+        			pend(add(node, i));
+        		}
+        	}
+        }
+
+        /**
+         * Numbers a node whose children have been numbered.
+         *
+         * @param node A canonical node.
+         * @param children The number of its children, whose numbers are the
+         *        last that are pending, and are taken from there.
+         * @return The node's number.
+         */
+        private int add(Tree<String> node, int children) {
+        	String val = node.getValue();
+        	int op;
+        	int operand;
+
+        	if (children > 0) {
+        		op = "+".equals(val) ? ADD : "*".equals(val) ? MUL : "-".equals(val) ? SUB : DIV;
+        		operand = argCount;
+        		pendingCount -= children;
+        		for (int i = 0; i < children; i++) {
+        			if (argCount == args.length) {args = Arrays.copyOf(args, args.length * 2);}
+        			args[argCount++] = pending[pendingCount + i];
+        		}
+        	} else if (slots.containsKey(val)) {
+        		op = LOAD;
+        		operand = slots.get(val);
+        	} else {
+        		op = CONSTANT;
+        		operand = Integer.parseInt(val);
+        	}
+
+        	ops[count] = op;
+        	operands[count] = operand;
+        	ends[count] = argCount;
+        	numbers.put(node, count);
+        	return count++;
+        }
+
+        /**
+         * Holds the number of a child until its parent is numbered.
+         *
+         * @param number The child's number.
+         */
+        private void pend(int number) {
+        	if (pendingCount == pending.length) {pending = Arrays.copyOf(pending, pendingCount * 2);}
+        	pending[pendingCount++] = number;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package tree;
+
+/**
+ * Something that can compute the value of a compiled <code>Expression</code>.
+ * 
+ * @author Anders Schneider
+ */
+public interface Evaluator {
+
+    /**
+     * Computes the value of the compiled Expression, which must not have
+     * any variables.
+     * 
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    int evaluate();
+
+    /**
+     * Computes the value of the compiled Expression for the given values of
+     * its variables.
+     * 
+     * @param values The value of each variable, in the order given by
+     *        <code>Expression.getVariables()</code>.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    int evaluate(int[] values);
+}
@@ -1,7 +1,17 @@
 package tree;
 
+import java.io.IOException;
+import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import tree.TierPolicy.Tier;
 
 /**
  * Class for representing simple arithmetic expressions.
@@ -11,97 +21,1093 @@ import java.util.Iterator;
 public class Expression {
     Tree<String> expressionTree;
     
+    private static final int[] NO_VALUES = new int[0];
+    private static final long[] NO_LONGS = new long[0];
+    // The operand stack of each thread for the PROGRAM tier, grown to the
+    // largest any Program it has run needs
+    private static final ThreadLocal<int[]> STACKS = new ThreadLocal<int[]>();
+    
+    // The index of each variable, in order of first appearance
+    private final Map<String, Integer> slots = new LinkedHashMap<String, Integer>();
+    private final TierPolicy policy;
+    private final Arithmetic arithmetic;
+    // The literals too large for an int, in preorder
+    private final List<BigInteger> literals = new ArrayList<BigInteger>();
+    private final AtomicBoolean promoting = new AtomicBoolean();
+    private volatile Tier tier = Tier.TREE;
+    private volatile Tier lastTier = Tier.BYTECODE;
+    private volatile Program program;
+    private volatile Evaluator generated;
+    // The Program that evaluates columns, compiled when first needed; two
+    // callers may both compile it, which is harmless
+    private volatile Program columnar;
+    // Counted without synchronization; concurrent callers may lose a few counts
+    private long evaluations;
+    // The size and depth of the tree, measured once it is instrumented
+    private volatile int[] shape;
+    // The code of each node of the tree, in preorder: an operator, or for
+    // a leaf its number, or the complement of its variable's index, or
+    // LARGE for a literal too large for an int
+    final int[] codes;
+    
+    static final int ADD = 0;
+    static final int SUB = 1;
+    static final int MUL = 2;
+    static final int DIV = 3;
+    private static final int INVALID = Integer.MIN_VALUE;
+    private static final int LARGE = Integer.MIN_VALUE + 1;
+    
     /**
      * Constructs a Tree<String> representing the given arithmetic expression,
      * then verifies that the newly created Tree is valid as an expression.
      * If the Tree is invalid, throws an IllegalArgumentException.<br>
      * Here are the validity rules:<ul>
      * <li>The value of each node must be one of "+", "-", "*", "/",
-     *     or a String representing an unsigned integer.</li>
+     *     a String representing an unsigned integer, or a variable name
+     *     (a Java identifier, such as "x" or "price2").</li>
      * <li>If a node has value "+" or "*", it must have two or more children.</li>
      * <li>If a node has value "-" or "/", it must have exactly two children.</li>
-     * <li>If a node contains a numeric string, it must be a leaf.</li></ul>
+     * <li>If a node contains a numeric string or a variable, it must be a leaf.</li></ul>
      * Note that the input parameter uses prefix notation, for example:
      * "+ (5 10 -( *(15 20) 25) 30)"
      * @param expression The String representation of the expression to be constructed.
      */
     public Expression(String expression) {
-        expressionTree = Tree.parse(expression);
-        if (!valid(expressionTree)) {
+        this(expression, TierPolicy.DEFAULT);
+    }
+
+    /**
+     * Constructs an Expression, as <code>Expression(String)</code> does, that
+     * promotes itself to faster evaluation tiers according to the given policy.
+     * @param expression The String representation of the expression to be constructed.
+     * @param policy When and where to compile this Expression.
+     */
+    public Expression(String expression, TierPolicy policy) {
+        this(expression, policy, Arithmetic.WRAPPING);
+    }
+
+    /**
+     * Constructs an Expression, as <code>Expression(String)</code> does, that
+     * is evaluated in the given arithmetic. A <code>CHECKED</code> Expression
+     * may have literals as large as a <code>long</code>, and an
+     * <code>EXACT</code> one literals of any size.
+     * @param expression The String representation of the expression to be constructed.
+     * @param arithmetic The arithmetic it is evaluated in.
+     */
+    public Expression(String expression, Arithmetic arithmetic) {
+        this(expression, TierPolicy.DEFAULT, arithmetic);
+    }
+
+    /**
+     * Constructs an Expression.
+     * @param expression The String representation of the expression to be constructed.
+     * @param policy When and where to compile this Expression.
+     * @param arithmetic The arithmetic it is evaluated in.
+     */
+    private Expression(String expression, TierPolicy policy, Arithmetic arithmetic) {
+        this.policy = policy;
+        this.arithmetic = arithmetic;
+        Parser parser = new Parser(expression);
+        expressionTree = Tree.parse(expression, true, parser);
+        codes = parser.getCodes();
+    }
+
+    /**
+     * Constructs an Expression from an already-parsed Tree, which it takes
+     * ownership of.
+     * @param tree The tree of the expression.
+     * @param expression The text of the expression, for error messages.
+     * @param policy When and where to compile this Expression.
+     */
+    private Expression(Tree<String> tree, String expression, TierPolicy policy) {
+        this.policy = policy;
+        this.arithmetic = Arithmetic.WRAPPING;
+        expressionTree = tree;
+        
+        Instrumentation.Listener listener = Instrumentation.listener;
+        if (listener == null) {
+        	codes = decode(expressionTree);
+        } else {
+        	long start = System.nanoTime();
+        	codes = decode(expressionTree);
+        	long end = System.nanoTime();
+        	shape = Instrumentation.measure(expressionTree);
+        	listener.record(Instrumentation.Operation.VALIDATE, start, end, shape[0], shape[1]);
+        }
+        
+        if (codes == null) {
             throw new IllegalArgumentException("Invalid expression: " + expression);
         }
     }
 
     /**
-     * Tests whether the given Tree represents a valid Expression.
+     * Tests whether the given Tree represents a valid Expression, assigning
+     * an index to each new variable that it finds, and decodes its nodes.
      * @param tree The input tree.
-     * @return <code>true</code> iff the Tree is a valid Expression.
+     * @return The code of each node, in preorder, or <code>null</code> if
+     *         the Tree is not a valid Expression.
      */
-    private boolean valid(Tree<String> tree) {
-    	int numChil = tree.getNumberOfChildren();
+    private int[] decode(Tree<String> tree) {
+    	int[] decoded = new int[16];
+    	int size = 0;
     	
-    	// Make sure number of children is within allowable range for give operator
-    	if ("+".equals(tree.getValue()) || "*".equals(tree.getValue())){
-    		if (numChil < 2) {return false;}
-    	} else if ("/".equals(tree.getValue()) || "-".equals(tree.getValue())) {
-    		if (numChil != 2) {return false;}
-    	} else {
-    		int num;
+    	// Check validity of each node, in preorder
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	Tree<String> node = tree;
+    	while (true) {
+    		int code = code(node);
+    		if (code == INVALID) {return null;}
+    		if (size == decoded.length) {decoded = Arrays.copyOf(decoded, size * 2);}
+    		decoded[size++] = code;
     		
-    		try {
-    			num = Integer.parseInt(tree.getValue());
-    		} catch (NumberFormatException e) {
-    			return false;
+    		node = null;
+    		while (node == null && !path.isEmpty()) {
+    			Tree<String> top = path.top();
+    			int i = path.advance();
+    			if (i < top.getNumberOfChildren()) {
+    				node = top.getChild(i);
+    				path.push(node);
+    			} else {
+    				path.pop();
+    			}
     		}
-    		
-    		if (num < 0) {return false;}
-    		if (tree.getNumberOfChildren() > 0) {return false;}
+    		if (node == null) {return Arrays.copyOf(decoded, size);}
     	}
+    }
+    
+    /**
+     * Decodes the given node, apart from its children, if it is valid in an
+     * Expression, assigning an index to it if it is a new variable.
+     * @param tree The node to be decoded.
+     * @return Its code, or <code>INVALID</code>.
+     */
+    private int code(Tree<String> tree) {
+    	int numChil = tree.getNumberOfChildren();
+    	int operator = operatorCode(tree.getValue());
     	
-    	// Check validity of children of this node
-    	for (int i = 0; i < numChil; i++) {
-    		if (!valid(tree.getChild(i))) {return false;}
+    	// Make sure number of children is within allowable range for given operator
+    	if (operator == ADD || operator == MUL) {
+    		return numChil < 2 ? INVALID : operator;
+    	} else if (operator == SUB || operator == DIV) {
+    		return numChil != 2 ? INVALID : operator;
+    	}
+    	
+    	return numChil > 0 ? INVALID : leafCode(tree.getValue());
+    }
+    
+    /**
+     * Decodes an operator.
+     * @param value The value of a node.
+     * @return The code of the operator, or <code>INVALID</code> if the
+     *         value is not one.
+     */
+    private static int operatorCode(String value) {
+    	if (value.length() != 1) {return INVALID;}
+    	
+    	switch (value.charAt(0)) {
+    	case '+':
+    		return ADD;
+    	case '-':
+    		return SUB;
+    	case '*':
+    		return MUL;
+    	case '/':
+    		return DIV;
+    	default:
+    		return INVALID;
+    	}
+    }
+    
+    /**
+     * Decodes a number or variable, assigning an index to a new variable.
+     * @param value The value of a leaf.
+     * @return The number, the complement of the index of the variable,
+     *         <code>LARGE</code>, or <code>INVALID</code> if the value is neither.
+     */
+    private int leafCode(String value) {
+    	if (isVariable(value)) {
+    		Integer slot = slots.get(value);
+    		if (slot == null) {
+    			slot = slots.size();
+    			slots.put(value, slot);
+    		}
+    		return ~slot;
+    	}
+    	
+    	int num;
+    	try {
+    		num = Integer.parseInt(value);
+    	} catch (NumberFormatException e) {
+    		return largeCode(value);
+    	}
+    	return num < 0 ? INVALID : num;
+    }
+    
+    /**
+     * Decodes a number too large for an int, which only a
+     * <code>CHECKED</code> or <code>EXACT</code> Expression may have, and
+     * keeps it in <code>literals</code>.
+     * @param value The value of a leaf.
+     * @return <code>LARGE</code>, or <code>INVALID</code> if the value is
+     *         not a number this Expression may have.
+     */
+    private int largeCode(String value) {
+    	if (arithmetic == Arithmetic.WRAPPING) {return INVALID;}
+    	
+    	BigInteger num;
+    	try {
+    		num = new BigInteger(value);
+    	} catch (NumberFormatException e) {
+    		return INVALID;
+    	}
+    	if (num.signum() < 0 || (arithmetic == Arithmetic.CHECKED && num.bitLength() > 63)) {
+    		return INVALID;
+    	}
+    	literals.add(num);
+    	return LARGE;
+    }
+    
+    /**
+     * Tests whether the given string is a variable name, that is, a Java
+     * identifier.
+     * @param s The string to be tested.
+     * @return <code>true</code> iff the string is a variable name.
+     */
+    static boolean isVariable(String s) {
+    	if (s.length() == 0 || !Character.isJavaIdentifierStart(s.charAt(0))) {return false;}
+    	
+    	for (int i = 1; i < s.length(); i++) {
+    		if (!Character.isJavaIdentifierPart(s.charAt(i))) {return false;}
     	}
     	
     	return true;
     }
     
     /**
-     * Evaluates this Expression.
+     * Returns the number of nodes in the tree of this Expression, that is,
+     * the number of operators, numbers and variables in it.
+     * @return The size of this Expression.
+     */
+    public int size() {
+        return size(expressionTree);
+    }
+    
+    /**
+     * Counts the nodes of the given Tree.
+     * @param tree The tree to be measured.
+     * @return The number of nodes in the tree.
+     */
+    private static int size(Tree<String> tree) {
+    	int size = 1;
+    	
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int i = path.advance();
+    		
+    		if (i < node.getNumberOfChildren()) {
+    			path.push(node.getChild(i));
+    			size++;
+    		} else {
+    			path.pop();
+    		}
+    	}
+    	return size;
+    }
+    
+    /**
+     * Returns a simplified Expression that always has the same value as this
+     * one, including throwing <code>ArithmeticException</code> for the same
+     * divisions by zero. Constant subtrees are folded, nested "+" and "*"
+     * are flattened, and identities such as <code>*(1 x)</code> and
+     * <code>*(0 x)</code> are removed. Compare <code>size()</code> before
+     * and after to measure the reduction.
+     * @return A simplified copy of this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     * @see Optimizer
+     */
+    public Expression optimize() {
+    	requireWrapping();
+    	Tree<String> simple = Optimizer.simplify(expressionTree);
+        return new Expression(simple, simple.toString(), policy);
+    }
+    
+    /**
+     * Returns the names of the variables in this Expression, in order of
+     * first appearance. This is the order expected by <code>evaluate(int[])</code>.
+     * @return The variable names.
+     */
+    public List<String> getVariables() {
+        return new ArrayList<String>(slots.keySet());
+    }
+    
+    /**
+     * Returns the arithmetic this Expression is evaluated in.
+     * @return The arithmetic.
+     */
+    public Arithmetic getArithmetic() {
+        return arithmetic;
+    }
+    
+    /**
+     * Checks that this Expression is evaluated in <code>int</code>
+     * arithmetic that wraps, as the compiled forms of it are.
+     * @throws IllegalStateException If it is not.
+     */
+    void requireWrapping() {
+    	if (arithmetic != Arithmetic.WRAPPING) {
+    		throw new IllegalStateException("Not a WRAPPING Expression");
+    	}
+    }
+    
+    /**
+     * Checks that this Expression has no variables.
+     * @throws IllegalStateException If it has.
+     */
+    private void requireNoVariables() {
+    	if (!slots.isEmpty()) {
+    		throw new IllegalStateException("Unbound variable: " + slots.keySet().iterator().next());
+    	}
+    }
+    
+    /**
+     * Evaluates this Expression, in the fastest tier it has been compiled
+     * to so far. Every call is counted, and once the count reaches the
+     * threshold of the next tier, that tier is compiled in the background.
+     * An Expression that is not <code>WRAPPING</code> is always evaluated
+     * by walking its tree.
      * @return The value of this Expression.
+     * @throws IllegalStateException If this Expression has variables.
+     * @throws ArithmeticException If this Expression is not <code>WRAPPING</code>
+     *         and overflows, or its value does not fit in an <code>int</code>.
      */
     public int evaluate() {
-        return evaluate(expressionTree);
+    	requireNoVariables();
+    	return evaluate(NO_VALUES);
+    }
+    
+    /**
+     * Evaluates this Expression with the given variable bindings.
+     * @param bindings The value of each variable.
+     * @return The value of this Expression.
+     * @throws IllegalStateException If a variable has no binding.
+     */
+    public int evaluate(Map<String, Integer> bindings) {
+    	int[] values = new int[slots.size()];
+    	
+    	for (Map.Entry<String, Integer> e : slots.entrySet()) {
+    		Integer value = bindings.get(e.getKey());
+    		if (value == null) {throw new IllegalStateException("Unbound variable: " + e.getKey());}
+    		values[e.getValue()] = value;
+    	}
+    	
+    	return evaluate(values);
+    }
+    
+    /**
+     * Evaluates this Expression with the given variable values, as
+     * <code>evaluate()</code> does.
+     * @param values The value of each variable, in the order given by
+     *        <code>getVariables()</code>.
+     * @return The value of this Expression.
+     * @throws IllegalArgumentException If there are too few values.
+     */
+    public int evaluate(int[] values) {
+    	if (values.length < slots.size()) {
+    		throw new IllegalArgumentException("Expected " + slots.size() + " values");
+    	}
+    	
+    	if (arithmetic != Arithmetic.WRAPPING) {
+    		long[] wide = new long[values.length];
+    		for (int i = 0; i < values.length; i++) {
+    			wide[i] = values[i];
+    		}
+    		return Math.toIntExact(evaluateChecked(wide).toLong());
+    	}
+    	
+    	Instrumentation.Listener listener = Instrumentation.listener;
+    	if (listener != null) {return evaluate(values, listener);}
+    	
+    	return run(values);
+    }
+    
+    /**
+     * Evaluates this Expression in its current tier, counting the call
+     * towards promotion to the next.
+     * @param values The value of each variable, by index.
+     * @return The value of this Expression.
+     */
+    private int run(int[] values) {
+    	long count = ++evaluations;
+    	Tier current = tier;
+    	if (current != lastTier && count >= policy.getThreshold(next(current))) {
+    		promote(current, count);
+    	}
+    	
+    	Evaluator e = generated;
+    	if (e != null) {return e.evaluate(values);}
+    	
+    	Program p = program;
+    	if (p != null) {return p.evaluate(values, stack(p.getMaxStack()));}
+    	
+        return evaluateTree(values);
+    }
+    
+    /**
+     * Returns the calling thread's operand stack for the PROGRAM tier, so
+     * that evaluation in that tier allocates nothing once the thread has
+     * a stack large enough.
+     * @param size The number of operands the stack must hold.
+     * @return The stack.
+     */
+    private static int[] stack(int size) {
+    	int[] stack = STACKS.get();
+    	if (stack == null || stack.length < size) {
+    		stack = new int[size];
+    		STACKS.set(stack);
+    	}
+    	return stack;
+    }
+    
+    /**
+     * Evaluates this Expression, as <code>evaluate(int[])</code> does, and
+     * reports the evaluation to the given listener.
+     * @param values The value of each variable, by index.
+     * @param listener Where the evaluation is reported.
+     * @return The value of this Expression.
+     */
+    private int evaluate(int[] values, Instrumentation.Listener listener) {
+    	int[] measured = measure();
+    	long start = System.nanoTime();
+    	int result = run(values);
+    	listener.record(Instrumentation.Operation.EVALUATE, start, System.nanoTime(), measured[0], measured[1]);
+    	return result;
+    }
+    
+    /**
+     * Returns the size and depth of the tree of this Expression, measuring
+     * it the first time.
+     * @return Its number of nodes, then its depth.
+     */
+    private int[] measure() {
+    	int[] measured = shape;
+    	if (measured == null) {
+    		measured = Instrumentation.measure(expressionTree);
+    		shape = measured;
+    	}
+    	return measured;
+    }
+    
+    /**
+     * Evaluates this <code>CHECKED</code> or <code>EXACT</code> Expression,
+     * which must not have variables, as a <code>long</code>.
+     * @return The value of this Expression.
+     * @throws IllegalStateException If this Expression is <code>WRAPPING</code>,
+     *         or has variables.
+     * @throws ArithmeticException If it overflows, or its value does not
+     *         fit in a <code>long</code>.
+     */
+    public long evaluateLong() {
+    	requireNoVariables();
+    	return evaluateLong(NO_LONGS);
+    }
+    
+    /**
+     * Evaluates this <code>CHECKED</code> or <code>EXACT</code> Expression
+     * with the given variable values, as a <code>long</code>.
+     * @param values The value of each variable, in the order given by
+     *        <code>getVariables()</code>.
+     * @return The value of this Expression.
+     * @throws IllegalStateException If this Expression is <code>WRAPPING</code>.
+     * @throws IllegalArgumentException If there are too few values.
+     * @throws ArithmeticException If it overflows, or its value does not
+     *         fit in a <code>long</code>.
+     */
+    public long evaluateLong(long[] values) {
+        return evaluateChecked(values).toLong();
+    }
+    
+    /**
+     * Evaluates this <code>CHECKED</code> or <code>EXACT</code> Expression,
+     * which must not have variables, as a <code>BigInteger</code>.
+     * @return The value of this Expression.
+     * @throws IllegalStateException If this Expression is <code>WRAPPING</code>,
+     *         or has variables.
+     * @throws ArithmeticException If a <code>CHECKED</code> Expression overflows.
+     */
+    public BigInteger evaluateBig() {
+    	requireNoVariables();
+    	return evaluateBig(NO_LONGS);
     }
     
     /**
-     * Evaluates the given Tree, which must represent a valid Expression.
+     * Evaluates this <code>CHECKED</code> or <code>EXACT</code> Expression
+     * with the given variable values, as a <code>BigInteger</code>.
+     * @param values The value of each variable, in the order given by
+     *        <code>getVariables()</code>.
      * @return The value of this Expression.
+     * @throws IllegalStateException If this Expression is <code>WRAPPING</code>.
+     * @throws IllegalArgumentException If there are too few values.
+     * @throws ArithmeticException If a <code>CHECKED</code> Expression overflows.
+     */
+    public BigInteger evaluateBig(long[] values) {
+        return evaluateChecked(values).toBig();
+    }
+    
+    /**
+     * Evaluates this <code>CHECKED</code> or <code>EXACT</code> Expression,
+     * counting and reporting the evaluation as <code>evaluate()</code> does.
+     * @param values The value of each variable, by index.
+     * @return The operand stack, holding only the value of this Expression.
+     */
+    private Operands evaluateChecked(long[] values) {
+    	if (arithmetic == Arithmetic.WRAPPING) {
+    		throw new IllegalStateException("Not a CHECKED or EXACT Expression");
+    	}
+    	if (values.length < slots.size()) {
+    		throw new IllegalArgumentException("Expected " + slots.size() + " values");
+    	}
+    	evaluations++;
+    	
+    	Instrumentation.Listener listener = Instrumentation.listener;
+    	if (listener == null) {return evaluateTree(values);}
+    	
+    	int[] measured = measure();
+    	long start = System.nanoTime();
+    	Operands result = evaluateTree(values);
+    	listener.record(Instrumentation.Operation.EVALUATE, start, System.nanoTime(), measured[0], measured[1]);
+    	return result;
+    }
+    
+    /**
+     * Evaluates this Expression once for every row of a table of variable
+     * values, storing the value for row <code>r</code> in <code>out[r]</code>.
+     * The Expression is compiled on the first call, and the Program kept for
+     * later ones; it is applied to blocks of rows at a time, so the cost per
+     * row is far lower than that of calling <code>evaluate(Map)</code> for
+     * each row.
+     * @param columns The values of each variable, by name, then by row.
+     * @param out Where the value of each row is stored.
+     * @throws IllegalArgumentException If a variable has no column, or its
+     *         column is shorter than <code>out</code>.
+     * @throws ArithmeticException If any row divides by zero; the contents
+     *         of <code>out</code> are then unspecified.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
      */
-    private int evaluate(Tree<String> tree) {
-    	int result;
+    public void evaluate(Map<String, int[]> columns, int[] out) {
+    	requireWrapping();
+    	int[][] byIndex = columnsByIndex(columns, out.length);
     	
-    	String val = tree.getValue();
-    	Iterator iter = tree.iterator();
+    	Program p = columnar;
+    	if (p == null) {
+    		p = program;
+    		if (p == null) {p = compile();}
+    		columnar = p;
+    	}
+    	p.evaluate(byIndex, out);
+    }
+    
+    /**
+     * Arranges the given columns by variable index, checking that every
+     * variable has a column with at least <code>rows</code> values.
+     * @param columns The values of each variable, by name, then by row.
+     * @param rows The number of rows to be evaluated.
+     * @return The columns, by variable index.
+     * @throws IllegalArgumentException If a variable has no column, or its
+     *         column is too short.
+     */
+    int[][] columnsByIndex(Map<String, int[]> columns, int rows) {
+    	int[][] byIndex = new int[slots.size()][];
     	
-    	if ("+".equals(val)) {
-    		result = 0;
-    		while (iter.hasNext()) {
-    			result += evaluate((Tree<String>) iter.next());
+    	for (Map.Entry<String, Integer> e : slots.entrySet()) {
+    		int[] column = columns.get(e.getKey());
+    		if (column == null) {
+    			throw new IllegalArgumentException("Missing column: " + e.getKey());
     		}
-    	} else if ("*".equals(val)) {
-    		result = 1;
-    		while (iter.hasNext()) {
-    			result = result * evaluate((Tree<String>) iter.next());
+    		if (column.length < rows) {
+    			throw new IllegalArgumentException("Column too short: " + e.getKey());
     		}
-    	} else if ("-".equals(val)) {
-    		result = evaluate(tree.getChild(0)) - evaluate(tree.getChild(1));
-    	} else if ("/".equals(val)) {
-    		result = evaluate(tree.getChild(0)) / evaluate(tree.getChild(1));
+    		byIndex[e.getValue()] = column;
+    	}
+    	
+    	return byIndex;
+    }
+    
+    /**
+     * Returns the tier that <code>evaluate()</code> currently uses.
+     * @return The current evaluation tier.
+     */
+    public Tier getTier() {
+        return tier;
+    }
+    
+    /**
+     * Returns the (approximate, if called concurrently) number of times
+     * <code>evaluate()</code> has been called.
+     * @return The evaluation count.
+     */
+    public long getEvaluationCount() {
+        return evaluations;
+    }
+    
+    /**
+     * Returns the tier after the given one.
+     * @param tier Any tier but the last.
+     * @return The next tier.
+     */
+    private static Tier next(Tier tier) {
+        return Tier.values()[tier.ordinal() + 1];
+    }
+    
+    /**
+     * Compiles this Expression to the tier after <code>from</code> on the
+     * policy's executor, unless a promotion is already in progress. If the
+     * compilation fails, or the executor rejects it, this Expression stays
+     * in <code>from</code> and is not promoted again.
+     * @param from The current tier.
+     * @param count The evaluation count that triggered the promotion.
+     */
+    private void promote(final Tier from, final long count) {
+    	if (!promoting.compareAndSet(false, true)) {return;}
+    	
+    	Runnable task = new Runnable() {
+    		@Override
+    		public void run() {
+    			Tier to = next(from);
+    			try {
+    				if (to == Tier.PROGRAM) {
+    					program = compile();
+    				} else {
+    					Evaluator e = BytecodeCompiler.compile(program);
+    					if (e instanceof Program) {
+    						// Too large for bytecode; stay interpreted
+    						lastTier = Tier.PROGRAM;
+    						return;
+    					}
+    					generated = e;
+    				}
+    				tier = to;
+    			} catch (RuntimeException | LinkageError e) {
+    				// Stay in this tier, as when too large, rather than fail
+    				// the same way on every later evaluation
+    				lastTier = from;
+    				return;
+    			} finally {
+    				promoting.set(false);
+    			}
+    			
+    			TierPolicy.Listener listener = policy.getListener();
+    			if (listener != null) {
+    				listener.promoted(Expression.this, from, to, count);
+    			}
+    		}
+    	};
+    	
+    	try {
+    		policy.getExecutor().execute(task);
+    	} catch (RejectedExecutionException e) {
+    		// The executor will not run promotions, so stop asking it to
+    		lastTier = from;
+    		promoting.set(false);
+    	}
+    }
+    
+    /**
+     * Compiles this Expression into a flat postfix <code>Program</code>
+     * that can be evaluated repeatedly without walking the tree or parsing
+     * any numbers. The result of evaluating the Program is always the same
+     * as that of <code>evaluate()</code>, which remains the reference
+     * implementation.
+     * @return The compiled form of this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     */
+    public Program compile() {
+    	requireWrapping();
+    	return Program.compile(expressionTree, slots);
+    }
+    
+    /**
+     * Compiles this Expression into a DAG in which structurally equal
+     * subtrees are shared, so that each distinct subtree is computed only
+     * once per evaluation, however many times it is repeated.
+     * @return A DagEvaluator for this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     * @see TreeInterner
+     */
+    public DagEvaluator compileDag() {
+    	requireWrapping();
+    	return DagEvaluator.compile(expressionTree, slots);
+    }
+    
+    /**
+     * Compiles this Expression into an IncrementalEvaluator, which keeps
+     * the value of every subtree, so that a change to one leaf, or to the
+     * value of one variable, recomputes only the nodes above it.
+     * @return An IncrementalEvaluator for this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     */
+    public IncrementalEvaluator compileIncremental() {
+    	requireWrapping();
+    	return IncrementalEvaluator.compile(expressionTree, slots);
+    }
+    
+    /**
+     * Prepares this Expression for evaluation on a shared
+     * <code>ForkJoinPool</code>, splitting work among subtrees of at least
+     * <code>ParallelEvaluator.DEFAULT_THRESHOLD</code> nodes.
+     * @return A ParallelEvaluator for this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     */
+    public ParallelEvaluator compileParallel() {
+        return compileParallel(null, ParallelEvaluator.DEFAULT_THRESHOLD);
+    }
+    
+    /**
+     * Prepares this Expression for evaluation on the given
+     * <code>ForkJoinPool</code>, splitting work among subtrees of at least
+     * <code>threshold</code> nodes. The results are identical to those of
+     * <code>evaluate()</code>, including overflow.
+     * @param pool Where the work is done, or <code>null</code> for a shared pool.
+     * @param threshold The smallest number of nodes worth splitting; at least 2.
+     * @return A ParallelEvaluator for this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     */
+    public ParallelEvaluator compileParallel(ForkJoinPool pool, int threshold) {
+    	requireWrapping();
+    	return ParallelEvaluator.compile(expressionTree, slots, pool, threshold);
+    }
+    
+    /**
+     * Compiles this Expression into a generated JVM class whose
+     * <code>evaluate()</code> method is straight-line arithmetic. Expressions
+     * too large for a single JVM method are compiled to a
+     * <code>Program</code> instead.
+     * @return An Evaluator for this Expression.
+     * @throws IllegalStateException If this Expression is not <code>WRAPPING</code>.
+     * @see BytecodeCompiler
+     */
+    public Evaluator compileToBytecode() {
+    	return BytecodeCompiler.compile(compile());
+    }
+    
+    /**
+     * Evaluates the tree of this Expression, taking the operators and the
+     * values of the leaves from their codes. Each node is evaluated after
+     * its children, whose values wait on an explicit operand stack.
+     * @param values The value of each variable, by index.
+     * @return The value of this Expression.
+     */
+    private int evaluateTree(int[] values) {
+    	Tree<String> tree = expressionTree;
+    	if (tree.getNumberOfChildren() == 0) {return evaluateLeaf(codes[0], values);}
+    	
+    	int[] stack = new int[16];
+    	int sp = 0;
+    	// The operator of each node on the path
+    	int[] operators = new int[16];
+    	operators[0] = codes[0];
+    	int next = 1;
+    	
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int numChil = node.getNumberOfChildren();
+    		int i = path.advance();
+    		int result;
+    		
+    		if (i < numChil) {
+    			// Leaves are evaluated in place rather than visited
+    			Tree<String> child = node.getChild(i);
+    			if (child.getNumberOfChildren() > 0) {
+    				int depth = path.depth();
+    				if (depth == operators.length) {operators = Arrays.copyOf(operators, depth * 2);}
+    				operators[depth] = codes[next++];
+    				path.push(child);
+    				continue;
+    			}
+    			result = evaluateLeaf(codes[next++], values);
+    		} else {
+    			int operator = operators[path.depth() - 1];
+    			path.pop();
+    			
+    			switch (operator) {
+    			case ADD:
+    				result = 0;
+    				for (int j = sp - numChil; j < sp; j++) {
+    					result += stack[j];
+    				}
+    				break;
+    			case MUL:
+    				result = 1;
+    				for (int j = sp - numChil; j < sp; j++) {
+    					result = result * stack[j];
+    				}
+    				break;
+    			case SUB:
+    				result = stack[sp - 2] - stack[sp - 1];
+    				break;
+    			default:
+    				// Thrown explicitly, so that it always has its message
+    				if (stack[sp - 1] == 0) {throw new ArithmeticException("/ by zero");}
+    				result = stack[sp - 2] / stack[sp - 1];
+    				break;
+    			}
+    			sp -= numChil;
+    		}
+    		
+    		if (sp == stack.length) {stack = Arrays.copyOf(stack, sp * 2);}
+    		stack[sp++] = result;
+    	}
+    	return stack[0];
+    }
+    
+    /**
+     * Evaluates a number or variable.
+     * @param code The code of a leaf.
+     * @param values The value of each variable, by index.
+     * @return The value of the leaf.
+     */
+    private static int evaluateLeaf(int code, int[] values) {
+        return code >= 0 ? code : values[~code];
+    }
+    
+    /**
+     * Evaluates the tree of this <code>CHECKED</code> or <code>EXACT</code>
+     * Expression, as <code>evaluateTree(int[])</code> does, with each
+     * operation checked for overflow.
+     * @param values The value of each variable, by index.
+     * @return The operand stack, holding only the value of this Expression.
+     */
+    private Operands evaluateTree(long[] values) {
+    	Operands operands = new Operands();
+    	boolean promote = arithmetic == Arithmetic.EXACT;
+    	Tree<String> tree = expressionTree;
+    	if (tree.getNumberOfChildren() == 0) {
+    		pushLeaf(operands, codes[0], values, 0);
+    		return operands;
+    	}
+    	
+    	int[] operators = new int[16];
+    	operators[0] = codes[0];
+    	int next = 1;
+    	// The number of literals in literals seen so far
+    	int large = 0;
+    	
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int numChil = node.getNumberOfChildren();
+    		int i = path.advance();
+    		
+    		if (i < numChil) {
+    			Tree<String> child = node.getChild(i);
+    			if (child.getNumberOfChildren() > 0) {
+    				int depth = path.depth();
+    				if (depth == operators.length) {operators = Arrays.copyOf(operators, depth * 2);}
+    				operators[depth] = codes[next++];
+    				path.push(child);
+    				continue;
+    			}
+    			int code = codes[next++];
+    			pushLeaf(operands, code, values, large);
+    			if (code == LARGE) {large++;}
+    		} else {
+    			int operator = operators[path.depth() - 1];
+    			path.pop();
+    			operands.apply(operator, numChil, promote);
+    		}
+    	}
+    	return operands;
+    }
+    
+    /**
+     * Pushes the value of a number or variable.
+     * @param operands The operand stack.
+     * @param code The code of a leaf.
+     * @param values The value of each variable, by index.
+     * @param large The index in <code>literals</code> of the leaf, if its
+     *        code is <code>LARGE</code>.
+     */
+    private void pushLeaf(Operands operands, int code, long[] values, int large) {
+    	if (code == LARGE) {
+    		operands.push(literals.get(large));
     	} else {
-    		result = Integer.parseInt(val);
+    		operands.push(code >= 0 ? code : values[~code]);
     	}
-    	return result;
+    }
+    
+    /**
+     * The operand stack of a <code>CHECKED</code> or <code>EXACT</code>
+     * evaluation. Each operand is a <code>long</code>, unless it is too
+     * large for one; the array of <code>BigInteger</code> operands is only
+     * allocated once there is such an operand.
+     */
+    private static final class Operands {
+        private long[] longs = new long[16];
+        // The value of each operand too large for a long, or null
+        private BigInteger[] bigs;
+        private int size;
+        
+        /**
+         * Pushes an operand.
+         * @param value The operand.
+         */
+        void push(long value) {
+        	grow();
+        	if (bigs != null) {bigs[size] = null;}
+        	longs[size++] = value;
+        }
+        
+        /**
+         * Pushes an operand, as a <code>long</code> if it fits in one.
+         * @param value The operand.
+         */
+        void push(BigInteger value) {
+        	if (value.bitLength() < 64) {
+        		push(value.longValue());
+        		return;
+        	}
+        	grow();
+        	if (bigs == null) {bigs = new BigInteger[longs.length];}
+        	bigs[size++] = value;
+        }
+        
+        /**
+         * Makes room for another operand.
+         */
+        private void grow() {
+        	if (size < longs.length) {return;}
+        	longs = Arrays.copyOf(longs, size * 2);
+        	if (bigs != null) {bigs = Arrays.copyOf(bigs, size * 2);}
+        }
+        
+        /**
+         * Returns an operand as a <code>BigInteger</code>.
+         * @param i The index of the operand.
+         * @return Its value.
+         */
+        private BigInteger big(int i) {
+            return bigs == null || bigs[i] == null ? BigInteger.valueOf(longs[i]) : bigs[i];
+        }
+        
+        /**
+         * Replaces the operands on top of the stack with the result of
+         * applying an operator to them. They are combined as
+         * <code>long</code>s unless one of them is too large for a long or
+         * the result overflows, in which case they are combined again as
+         * <code>BigInteger</code>s.
+         * @param operator The operator.
+         * @param n The number of operands.
+         * @param promote Whether an overflow is combined again rather than thrown.
+         * @throws ArithmeticException If the operator divides by zero, or
+         *         overflows and <code>promote</code> is false.
+         */
+        void apply(int operator, int n, boolean promote) {
+        	int from = size - n;
+        	size = from;
+        	
+        	boolean small = true;
+        	for (int j = from; bigs != null && j < from + n; j++) {
+        		if (bigs[j] != null) {small = false;}
+        	}
+        	if (small) {
+        		try {
+        			push(applyLong(operator, from, n));
+        			return;
+        		} catch (ArithmeticException e) {
+        			if (!promote) {throw e;}
+        		}
+        	}
+        	push(applyBig(operator, from, n));
+        }
+        
+        /**
+         * Applies an operator to <code>long</code> operands.
+         * @param operator The operator.
+         * @param from The index of the first operand.
+         * @param n The number of operands.
+         * @return The result.
+         * @throws ArithmeticException If it divides by zero or overflows.
+         */
+        private long applyLong(int operator, int from, int n) {
+        	long result = longs[from];
+        	for (int j = from + 1; j < from + n; j++) {
+        		long operand = longs[j];
+        		switch (operator) {
+        		case ADD:
+        			result = Math.addExact(result, operand);
+        			break;
+        		case SUB:
+        			result = Math.subtractExact(result, operand);
+        			break;
+        		case MUL:
+        			result = Math.multiplyExact(result, operand);
+        			break;
+        		default:
+        			if (operand == 0) {throw new ArithmeticException("/ by zero");}
+        			// The one quotient of longs that does not fit in a long
+        			if (result == Long.MIN_VALUE && operand == -1) {
+        				throw new ArithmeticException("long overflow");
+        			}
+        			result /= operand;
+        			break;
+        		}
+        	}
+        	return result;
+        }
+        
+        /**
+         * Applies an operator to operands as <code>BigInteger</code>s.
+         * @param operator The operator.
+         * @param from The index of the first operand.
+         * @param n The number of operands.
+         * @return The result.
+         * @throws ArithmeticException If it divides by zero.
+         */
+        private BigInteger applyBig(int operator, int from, int n) {
+        	BigInteger result = big(from);
+        	for (int j = from + 1; j < from + n; j++) {
+        		BigInteger operand = big(j);
+        		switch (operator) {
+        		case ADD:
+        			result = result.add(operand);
+        			break;
+        		case SUB:
+        			result = result.subtract(operand);
+        			break;
+        		case MUL:
+        			result = result.multiply(operand);
+        			break;
+        		default:
+        			if (operand.signum() == 0) {throw new ArithmeticException("/ by zero");}
+        			result = result.divide(operand);
+        			break;
+        		}
+        	}
+        	return result;
+        }
+        
+        /**
+         * Returns the value left on the stack as a <code>long</code>.
+         * @return The value.
+         * @throws ArithmeticException If it does not fit in a long.
+         */
+        long toLong() {
+        	if (bigs != null && bigs[0] != null) {throw new ArithmeticException("long overflow");}
+            return longs[0];
+        }
+        
+        /**
+         * Returns the value left on the stack.
+         * @return The value.
+         */
+        BigInteger toBig() {
+            return big(0);
+        }
     }
     
     /* (non-Javadoc)
@@ -109,38 +1115,138 @@ public class Expression {
      */
     @Override
     public String toString() {
-        return toString(expressionTree);
+    	StringBuilder builder = new StringBuilder();
+    	try {
+    		writeTo(builder);
+    	} catch (IOException e) {
+    		throw new AssertionError(e);
+    	}
+    	return builder.toString();
     }
     
-    private static String toString(Tree<String> tree) {
-    	String result;
-    	
-    	String val = tree.getValue();
-    	Iterator iter = tree.iterator();
-    	
-    	if ("+".equals(val)) {
-    		result = "(" + toString((Tree<String>) iter.next());
-    		while (iter.hasNext()) {
-    			result += " + " + toString((Tree<String>) iter.next());
-    		}
-    		result += ")";
-    	} else if ("*".equals(val)) {
-    		result = "(" + toString((Tree<String>) iter.next());
-    		while (iter.hasNext()) {
-    			result += " * " + toString((Tree<String>) iter.next());
+    /**
+     * Writes this Expression in infix notation, as returned by
+     * <code>toString()</code>, to the given sink, with every operator and
+     * its operands in parentheses. The text is written in a single pass
+     * without being built; for large Expressions, the sink should be buffered.
+     * @param out Where the text is written.
+     * @throws IOException If <code>out</code> cannot be written.
+     */
+    public void writeTo(Appendable out) throws IOException {
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(expressionTree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int numChil = node.getNumberOfChildren();
+    		int i = path.advance();
+    		
+    		if (numChil == 0) {
+    			// Stand-alone numbers don't get parentheses
+    			out.append(node.getValue());
+    			path.pop();
+    		} else if (i < numChil) {
+    			if (i == 0) {
+    				out.append('(');
+    			} else {
+    				out.append(' ').append(node.getValue()).append(' ');
+    			}
+    			path.push(node.getChild(i));
+    		} else {
+    			out.append(')');
+    			path.pop();
     		}
-    		result += ")";
-    	} else if ("-".equals(val)) {
-    		result = "(" + toString(tree.getChild(0)) + " - " + toString(tree.getChild(1));
-    		result += ")";
-    	} else if ("/".equals(val)) {
-    		result = "(" + toString(tree.getChild(0)) + " / " + toString(tree.getChild(1));
-    		result += ")";
-    	} else {
-    		// Stand-alone numbers don't get parentheses
-    		result = val;
     	}
-    	
-    	return result;
+    }
+    
+    /**
+     * Builds the Tree of an Expression as it is parsed, checking each node
+     * as it arrives and decoding it. The first node that cannot be part of
+     * a valid Expression stops the parse, so the rest of the input is never
+     * read.
+     */
+    private final class Parser implements Tree.Assembler<Tree<String>> {
+        private final Tree.Assembler<Tree<String>> tree = Tree.assembler();
+        private final String text;
+        private int[] codes = new int[16];
+        private int size;
+        // The operator of each node begun and not ended, and its children so far
+        private int[] operators = new int[16];
+        private int[] counts = new int[16];
+        private int open;
+        
+        /**
+         * Constructs a Parser.
+         * @param text The text being parsed, for error messages.
+         */
+        Parser(String text) {
+            this.text = text;
+        }
+        
+        @Override
+        public void begin(String value) {
+        	int operator = operatorCode(value);
+        	if (operator == INVALID) {reject();}
+        	addChild(operator);
+        	
+        	if (open == operators.length) {
+        		operators = Arrays.copyOf(operators, open * 2);
+        		counts = Arrays.copyOf(counts, open * 2);
+        	}
+        	operators[open] = operator;
+        	counts[open] = 0;
+        	open++;
+        	tree.begin(value);
+        }
+        
+        @Override
+        public void leaf(String value) {
+        	int code = operatorCode(value) == INVALID ? leafCode(value) : INVALID;
+        	if (code == INVALID) {reject();}
+        	addChild(code);
+        	tree.leaf(value);
+        }
+        
+        @Override
+        public void end() {
+        	open--;
+        	if (counts[open] < 2) {reject();}
+        	tree.end();
+        }
+        
+        @Override
+        public Tree<String> result() {
+            return tree.result();
+        }
+        
+        /**
+         * Returns the codes of the nodes parsed.
+         * @return The code of each node, in preorder.
+         */
+        int[] getCodes() {
+            return Arrays.copyOf(codes, size);
+        }
+        
+        /**
+         * Records a node, checking that its parent may have another child.
+         * @param code The code of the node.
+         */
+        private void addChild(int code) {
+        	if (open > 0) {
+        		int operator = operators[open - 1];
+        		int count = ++counts[open - 1];
+        		if (count > 2 && (operator == SUB || operator == DIV)) {reject();}
+        	}
+        	
+        	if (size == codes.length) {codes = Arrays.copyOf(codes, size * 2);}
+        	codes[size++] = code;
+        }
+        
+        /**
+         * Rejects the expression being parsed.
+         * @throws IllegalArgumentException Always.
+         */
+        private void reject() {
+            throw new IllegalArgumentException("Invalid expression: " + text);
+        }
     }
 }
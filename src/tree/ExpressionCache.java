@@ -0,0 +1,257 @@
+package tree;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of parsed Expressions, and of the values of those without
+ * variables, for workloads that see the same expression text again and
+ * again. Text is looked up in a canonical form, in which whitespace that
+ * does not separate two values is removed and the rest is a single space,
+ * so <code>"+ (1  2)"</code> and <code>"+(1 2)"</code> share an entry. Text
+ * that is not a valid expression is cached too, so that rejecting it again
+ * is as cheap as a hit.
+ * <p>
+ * When the cache is full, the entry used least recently is evicted. A cache
+ * may be shared by any number of threads. The map is guarded by a single
+ * lock, held only for the lookup; Expressions are parsed and evaluated
+ * outside it, so two threads that miss on the same text at once may both
+ * parse it, and the last one's entry is kept.
+ *
+ * @author Anders Schneider
+ */
+public class ExpressionCache {
+    private final int capacity;
+    private final TierPolicy policy;
+    private final Map<String, Cached> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructs an empty cache of Expressions that use the default tier policy.
+     *
+     * @param capacity The greatest number of entries to be kept.
+     * @throws IllegalArgumentException If <code>capacity</code> is not positive.
+     */
+    public ExpressionCache(int capacity) {
+        this(capacity, TierPolicy.DEFAULT);
+    }
+
+    /**
+     * Constructs an empty cache of Expressions that promote themselves to
+     * faster evaluation tiers according to the given policy.
+     *
+     * @param capacity The greatest number of entries to be kept.
+     * @param policy When and where to compile the cached Expressions.
+     * @throws IllegalArgumentException If <code>capacity</code> is not positive.
+     */
+    public ExpressionCache(final int capacity, TierPolicy policy) {
+    	if (capacity < 1) {throw new IllegalArgumentException("Capacity must be positive: " + capacity);}
+
+    	this.capacity = capacity;
+    	this.policy = policy;
+    	this.entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+    		private static final long serialVersionUID = 1L;
+
+    		@Override
+    		protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+    			if (size() <= capacity) {return false;}
+    			evictions.incrementAndGet();
+    			return true;
+    		}
+    	};
+    }
+
+    /**
+     * Returns the Expression for the given text, parsing and validating it
+     * only if its canonical form is not in the cache.
+     *
+     * @param expression The text of an expression.
+     * @return The Expression, which may be shared with other callers.
+     * @throws IllegalArgumentException If the text is not a valid expression,
+     *         whether found so now or when it was cached.
+     */
+    public Expression get(String expression) {
+        return entry(expression).get();
+    }
+
+    /**
+     * Returns the value of the given expression, which must not have
+     * variables, computing it only the first time its canonical form is
+     * evaluated while in the cache.
+     *
+     * @param expression The text of an expression.
+     * @return The value of the expression.
+     * @throws IllegalArgumentException If the text is not a valid expression.
+     * @throws IllegalStateException If the expression has variables.
+     * @throws ArithmeticException If the expression divides by zero.
+     */
+    public int evaluate(String expression) {
+    	Cached entry = entry(expression);
+    	Object result = entry.result;
+    	if (result == null) {
+    		try {
+    			result = entry.get().evaluate();
+    		} catch (ArithmeticException e) {
+    			result = e;
+    		}
+    		entry.result = result;
+    	}
+
+    	if (result instanceof ArithmeticException) {
+    		throw new ArithmeticException(((ArithmeticException) result).getMessage());
+    	}
+    	return (Integer) result;
+    }
+
+    /**
+     * Finds or creates the entry for the canonical form of the given text,
+     * counting a hit or a miss.
+     *
+     * @param expression The text of an expression.
+     * @return Its entry.
+     */
+    private Cached entry(String expression) {
+    	String key = canonical(expression);
+    	Cached entry;
+    	synchronized (entries) {
+    		entry = entries.get(key);
+    	}
+    	if (entry != null) {
+    		hits.incrementAndGet();
+    		return entry;
+    	}
+
+    	misses.incrementAndGet();
+    	try {
+    		entry = new Cached(new Expression(key, policy), null);
+    	} catch (IllegalArgumentException e) {
+    		entry = new Cached(null, e.getMessage());
+    	}
+    	synchronized (entries) {
+    		entries.put(key, entry);
+    	}
+    	return entry;
+    }
+
+    /**
+     * Returns the canonical form of the given text: whitespace next to a
+     * parenthesis, or at either end, is removed, and any other run of
+     * whitespace becomes a single space.
+     *
+     * @param expression The text of an expression.
+     * @return Its canonical form.
+     */
+    static String canonical(String expression) {
+    	StringBuilder sb = new StringBuilder(expression.length());
+    	boolean space = false;
+
+    	for (int i = 0; i < expression.length(); i++) {
+    		char c = expression.charAt(i);
+    		if (CharTokenizer.isWhitespace(c)) {
+    			space = true;
+    			continue;
+    		}
+
+    		// Only whitespace between two values separates tokens
+    		if (space && sb.length() > 0 && !CharTokenizer.isDelimiter(c)
+    				&& !CharTokenizer.isDelimiter(sb.charAt(sb.length() - 1))) {
+    			sb.append(' ');
+    		}
+    		space = false;
+    		sb.append(c);
+    	}
+
+    	return sb.toString();
+    }
+
+    /**
+     * Returns the number of lookups that found their text in the cache.
+     *
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of lookups that did not find their text in the cache.
+     *
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries evicted to keep the cache within its capacity.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return The number of entries, at most the capacity.
+     */
+    public int size() {
+    	synchronized (entries) {
+    		return entries.size();
+    	}
+    }
+
+    /**
+     * Returns the greatest number of entries the cache keeps.
+     *
+     * @return The capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Removes every entry from the cache. The statistics are kept.
+     */
+    public void clear() {
+    	synchronized (entries) {
+    		entries.clear();
+    	}
+    }
+
+    /**
+     * A cached Expression, or the reason its text is not valid.
+     */
+    private static final class Cached {
+        private final Expression expression;
+        private final String error;
+        // The value, or the ArithmeticException, once evaluated
+        private volatile Object result;
+
+        /**
+         * Constructs a cache entry.
+         *
+         * @param expression The Expression, or <code>null</code> if the text is not valid.
+         * @param error Why the text is not valid, or <code>null</code> if it is.
+         */
+        private Cached(Expression expression, String error) {
+        	this.expression = expression;
+        	this.error = error;
+        }
+
+        /**
+         * Returns the Expression.
+         *
+         * @return The Expression.
+         * @throws IllegalArgumentException If the text is not valid.
+         */
+        private Expression get() {
+        	if (expression == null) {throw new IllegalArgumentException(error);}
+            return expression;
+        }
+    }
+}
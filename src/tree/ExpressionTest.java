@@ -2,9 +2,35 @@ package tree;
 
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import tree.Instrumentation.Operation;
+import tree.MetricsRegistry.OperationMetrics;
+import tree.TierPolicy.Tier;
+
 public class ExpressionTest {
 
     @Before
@@ -45,9 +71,9 @@ public class ExpressionTest {
     	}
     	
     	try {
-    		Expression exp6 = new Expression("-(1 a)");
+    		Expression exp6 = new Expression("-(1 a!)");
     	} catch (IllegalArgumentException e) {
-    		assertTrue("Invalid expression: -(1 a)".equals(e.getMessage()));
+    		assertTrue("Invalid expression: -(1 a!)".equals(e.getMessage()));
     	}
     }
 
@@ -87,4 +113,1019 @@ public class ExpressionTest {
     	assertTrue("(1 * (2 + 3) * (1 * 1 * 7) * (10 - 8))".equals(exp5.toString()));
     }
 
+    @Test
+    public final void testCompile() {
+    	String[] inputs = {"2", "-(10 1)", "*(1 2 3 4)", "+( *(2 7) 6)",
+    			"*(1 +(2 3) *(1 1 7) -(10 8))", "+ (5 10 -( *(15 20) 25) 30)",
+    			"/(-(7 100) 3)", "*(65536 65536 3)", "+(2147483647 1 1)"};
+    	
+    	for (String input : inputs) {
+    		Expression exp = new Expression(input);
+    		Program program = exp.compile();
+    		assertEquals(input, exp.evaluate(), program.evaluate());
+    		assertEquals(input, exp.evaluate(), program.evaluate(new int[0], program.newStack()));
+    	}
+    	
+    	Program program = new Expression("+(1 *(2 3 4) 5)").compile();
+    	assertEquals(30, program.evaluate());
+    	assertEquals(30, program.evaluate());
+    	assertEquals(3, program.getMaxStack());
+    	
+    	try {
+    		new Expression("/(1 -(2 2))").compile().evaluate();
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testCompileToBytecode() {
+    	String[] inputs = {"2", "-(10 1)", "*(1 2 3 4)", "+( *(2 7) 6)",
+    			"*(1 +(2 3) *(1 1 7) -(10 8))", "+ (5 10 -( *(15 20) 25) 30)",
+    			"/(-(7 100) 3)", "*(65536 65536 3)", "+(2147483647 1 1)",
+    			"+(127 128 32767 32768 100000 100000)"};
+    	
+    	for (String input : inputs) {
+    		Expression exp = new Expression(input);
+    		Evaluator evaluator = exp.compileToBytecode();
+    		assertFalse(input, evaluator instanceof Program);
+    		assertEquals(input, exp.evaluate(), evaluator.evaluate());
+    	}
+    	
+    	try {
+    		new Expression("/(1 -(2 2))").compileToBytecode().evaluate();
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    	
+    	// Too large for one JVM method: falls back to the interpreter
+    	StringBuilder big = new StringBuilder("+(");
+    	for (int i = 0; i < 30000; i++) {
+    		big.append(i + 1000000).append(' ');
+    	}
+    	big.append(')');
+    	Expression exp = new Expression(big.toString());
+    	Evaluator evaluator = exp.compileToBytecode();
+    	assertTrue(evaluator instanceof Program);
+    	assertEquals(exp.evaluate(), evaluator.evaluate());
+    }
+
+    @Test
+    public final void testCompileToBytecodeUnloads() throws InterruptedException {
+    	Evaluator evaluator = new Expression("*(6 7)").compileToBytecode();
+    	assertEquals(42, evaluator.evaluate());
+    	
+    	WeakReference<Class<?>> generated = new WeakReference<Class<?>>(evaluator.getClass());
+    	evaluator = null;
+    	
+    	for (int i = 0; i < 50 && generated.get() != null; i++) {
+    		System.gc();
+    		Thread.sleep(10);
+    	}
+    	assertNull(generated.get());
+    }
+
+    @Test
+    public final void testTieredEvaluation() {
+    	final List<String> promotions = new ArrayList<String>();
+    	Executor sameThread = new Executor() {
+    		@Override
+    		public void execute(Runnable command) {
+    			command.run();
+    		}
+    	};
+    	TierPolicy.Listener listener = new TierPolicy.Listener() {
+    		@Override
+    		public void promoted(Expression expression, Tier from, Tier to, long evaluations) {
+    			promotions.add(from + "->" + to + "@" + evaluations);
+    		}
+    	};
+    	
+    	Expression exp = new Expression("*(1 +(2 3) *(1 1 7) -(10 8))",
+    			new TierPolicy(3, 5, sameThread, listener));
+    	assertEquals(Tier.TREE, exp.getTier());
+    	
+    	for (int i = 1; i <= 6; i++) {
+    		assertEquals(70, exp.evaluate());
+    		assertEquals(i, exp.getEvaluationCount());
+    		assertEquals(i < 3 ? Tier.TREE : i < 5 ? Tier.PROGRAM : Tier.BYTECODE, exp.getTier());
+    	}
+    	assertEquals("[TREE->PROGRAM@3, PROGRAM->BYTECODE@5]", promotions.toString());
+    	
+    	// Programs of different depths share the thread's operand stack
+    	TierPolicy interpreted = new TierPolicy(1, Long.MAX_VALUE, sameThread, null);
+    	Expression shallow = new Expression("+(x 1)", interpreted);
+    	Expression deep = new Expression(TreeTest.deepChain(1000, "-(1 ", "x", ")"), interpreted);
+    	for (int i = 0; i < 3; i++) {
+    		assertEquals(8, shallow.evaluate(new int[] {7}));
+    		assertEquals(7, deep.evaluate(new int[] {7}));
+    	}
+    	assertEquals(Tier.PROGRAM, shallow.getTier());
+    	assertEquals(Tier.PROGRAM, deep.getTier());
+    	
+    	// A promotion the executor rejects is not submitted again
+    	final AtomicInteger submitted = new AtomicInteger();
+    	Executor rejecting = new Executor() {
+    		@Override
+    		public void execute(Runnable command) {
+    			submitted.incrementAndGet();
+    			throw new RejectedExecutionException();
+    		}
+    	};
+    	Expression rejected = new Expression("-(10 1)", new TierPolicy(1, 2, rejecting, null));
+    	for (int i = 0; i < 100; i++) {
+    		assertEquals(9, rejected.evaluate());
+    	}
+    	assertEquals(1, submitted.get());
+    	assertEquals(Tier.TREE, rejected.getTier());
+    	
+    	Expression never = new Expression("-(10 1)", TierPolicy.DISABLED);
+    	for (int i = 0; i < 1000; i++) {
+    		assertEquals(9, never.evaluate());
+    	}
+    	assertEquals(Tier.TREE, never.getTier());
+    	assertEquals(1000, never.getEvaluationCount());
+    }
+
+    @Test
+    public final void testTieredEvaluationInBackground() throws InterruptedException {
+    	Executor newThread = new Executor() {
+    		@Override
+    		public void execute(Runnable command) {
+    			new Thread(command).start();
+    		}
+    	};
+    	Expression exp = new Expression("+( *(2 7) 6)", new TierPolicy(1, 2, newThread, null));
+    	
+    	for (int i = 0; i < 1000 && exp.getTier() != Tier.BYTECODE; i++) {
+    		assertEquals(20, exp.evaluate());
+    		Thread.sleep(1);
+    	}
+    	assertEquals(Tier.BYTECODE, exp.getTier());
+    	assertEquals(20, exp.evaluate());
+    }
+
+    @Test
+    public final void testVariables() {
+    	Expression exp = new Expression("+(*(x 2) -(y x) / (y 3) x)");
+    	assertEquals("[x, y]", exp.getVariables().toString());
+    	assertEquals("((x * 2) + (y - x) + (y / 3) + x)", exp.toString());
+    	
+    	Map<String, Integer> bindings = new HashMap<String, Integer>();
+    	bindings.put("x", 5);
+    	bindings.put("y", 12);
+    	assertEquals(10 + 7 + 4 + 5, exp.evaluate(bindings));
+    	assertEquals(26, exp.evaluate(new int[] {5, 12}));
+    	assertEquals(26, exp.compile().evaluate(new int[] {5, 12}));
+    	assertEquals(26, exp.compileToBytecode().evaluate(new int[] {5, 12}));
+    	
+    	try {
+    		exp.evaluate();
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Unbound variable: x", e.getMessage());
+    	}
+    	
+    	bindings.remove("y");
+    	try {
+    		exp.evaluate(bindings);
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Unbound variable: y", e.getMessage());
+    	}
+    	
+    	try {
+    		new Expression("x (1 2)");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Invalid expression: x (1 2)", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testEvaluateColumns() {
+    	Expression exp = new Expression("+(*(x 2) -(y x) / (y 3) 7)");
+    	
+    	int rows = 5000;
+    	int[] x = new int[rows];
+    	int[] y = new int[rows + 10];
+    	for (int r = 0; r < y.length; r++) {
+    		y[r] = r * 31 - 1000;
+    		if (r < rows) {x[r] = r * r;}
+    	}
+    	Map<String, int[]> columns = new HashMap<String, int[]>();
+    	columns.put("x", x);
+    	columns.put("y", y);
+    	
+    	int[] out = new int[rows];
+    	exp.evaluate(columns, out);
+    	for (int r = 0; r < rows; r++) {
+    		assertEquals(exp.evaluate(new int[] {x[r], y[r]}), out[r]);
+    	}
+    	
+    	columns.put("y", new int[rows - 1]);
+    	try {
+    		exp.evaluate(columns, out);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Column too short: y", e.getMessage());
+    	}
+    	
+    	columns.remove("x");
+    	try {
+    		exp.evaluate(columns, out);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Missing column: x", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testOptimize() {
+    	String[][] cases = {
+    			{"*(1 +(2 3) *(1 1 7) -(10 8))", "70"},
+    			{"* (1 x)", "x"},
+    			{"+ (0 x)", "x"},
+    			{"+(x +(y +(2 z)) 3)", "(5 + x + y + z)"},
+    			{"*(x *(2 *(y 3)))", "(6 * x * y)"},
+    			{"*(0 x +(y 1))", "0"},
+    			{"-(x 0)", "x"},
+    			{"/(x 1)", "x"},
+    			{"-(+(x y) +(x y))", "0"},
+    			{"+(x -(1 4))", "(x - 3)"},
+    			{"+(-(x 4) 1)", "(x - 3)"},
+    			{"+(+5 1)", "6"},
+    			{"-(x -0)", "x"},
+    			{"-(1 5)", "(0 - 4)"},
+    			{"*(65536 32768)", "((0 - 2147483647) - 1)"},
+    			{"+(*(65536 32768) 1 x)", "(x - 2147483647)"},
+    			{"/(-(7 100) 3)", "(0 - 31)"},
+    			{"/(x 0)", "(x / 0)"},
+    			{"*(0 /(x y))", "(0 * (x / y))"},
+    			{"*(0 /(x 3))", "0"},
+    			{"+(/(5 0) 1 2)", "(3 + (5 / 0))"},
+    	};
+    	
+    	for (String[] c : cases) {
+    		assertEquals(c[0], c[1], new Expression(c[0]).optimize().toString());
+    	}
+    	
+    	Expression exp = new Expression("+(*(1 x) +(0 *(y 2) +(3 4)) -(x x) *(0 y) /(y 1))");
+    	Expression simple = exp.optimize();
+    	assertEquals(21, exp.size());
+    	assertEquals(7, simple.size());
+    	assertEquals("(7 + x + (2 * y) + y)", simple.toString());
+    	
+    	Map<String, Integer> bindings = new HashMap<String, Integer>();
+    	for (int x = -50; x <= 50; x += 7) {
+    		for (int y = -50; y <= 50; y += 11) {
+    			bindings.put("x", x);
+    			bindings.put("y", y);
+    			assertEquals(exp.evaluate(bindings), simple.evaluate(bindings));
+    		}
+    	}
+    	
+    	try {
+    		new Expression("+(/(5 0) 1 2)").optimize().evaluate();
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testCompileDag() {
+    	String[] inputs = {"2", "x", "-(10 1)", "*(1 2 3 4)", "+( *(2 7) 6)",
+    			"*(+(x 3) +(x 3) -(+(x 3) y) /(+(x 3) 2))", "/(-(x 100) y)"};
+    	
+    	for (String input : inputs) {
+    		Expression exp = new Expression(input);
+    		DagEvaluator dag = exp.compileDag();
+    		int[] values = {17, -4};
+    		assertEquals(input, exp.compile().evaluate(values), dag.evaluate(values));
+    	}
+    	
+    	DagEvaluator shared = new Expression("*(+(x 3) +(x 3) -(+(x 3) y) /(+(x 3) 2))").compileDag();
+    	// x, 3, +(x 3), y, -(...), 2, /(...), *(...)
+    	assertEquals(8, shared.size());
+    	
+    	// Each level doubles the tree but adds only two nodes to the DAG
+    	String input = "x";
+    	for (int level = 0; level < 14; level++) {
+    		input = "+(" + input + " " + input + ")";
+    	}
+    	Expression exp = new Expression(input);
+    	DagEvaluator dag = exp.compileDag();
+    	assertEquals(2 * 16384 - 1, exp.size());
+    	assertEquals(15, dag.size());
+    	assertEquals(16384 * 3, dag.evaluate(new int[] {3}));
+    	assertEquals(exp.evaluate(new int[] {3}), dag.evaluate(new int[] {3}));
+    	
+    	try {
+    		new Expression("+(x /(1 0))").compileDag().evaluate(new int[] {1});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testCompileParallel() {
+    	// Wide, overflowing sum and product
+    	StringBuilder wide = new StringBuilder("-(+(");
+    	for (int i = 0; i < 20000; i++) {
+    		wide.append(i * 104729 + 1000000).append(' ');
+    	}
+    	wide.append(") *(");
+    	for (int i = 0; i < 5000; i++) {
+    		wide.append(i % 2 == 0 ? "x " : "/(y 3) ").append(i % 7 + 1).append(' ');
+    	}
+    	wide.append("))");
+    	
+    	// Deep and balanced
+    	String balanced = "x";
+    	for (int level = 0; level < 12; level++) {
+    		balanced = level % 3 == 0 ? "*(" + balanced + " 3 " + balanced + ")"
+    				: level % 3 == 1 ? "+(" + balanced + " y " + balanced + ")"
+    				: "-(" + balanced + " /(" + balanced + " 7))";
+    	}
+    	
+    	ForkJoinPool pool = new ForkJoinPool(4);
+    	for (String input : new String[] {wide.toString(), balanced, "+(x y)", "7"}) {
+    		Expression exp = new Expression(input);
+    		int[] values = {123457, -98765};
+    		int expected = exp.evaluate(values);
+    		assertEquals(expected, exp.compileParallel().evaluate(values));
+    		assertEquals(expected, exp.compileParallel(pool, 2).evaluate(values));
+    		assertEquals(expected, exp.compileParallel(pool, 64).evaluate(values));
+    	}
+    	
+    	try {
+    		new Expression("+(1 2 3 /(4 -(5 5)) 6 7)").compileParallel(pool, 2).evaluate();
+    		fail();
+    	} catch (ArithmeticException e) {
+    		// expected
+    	}
+    	
+    	try {
+    		new Expression("+(1 2)").compileParallel(pool, 1);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Threshold too small: 1", e.getMessage());
+    	}
+    	pool.shutdown();
+    }
+
+    @Test
+    public final void testDeepExpression() {
+    	int depth = 1000000;
+    	String right = TreeTest.deepChain(depth, "+(1 ", "x", ")");
+    	String left = TreeTest.deepChain(depth, "-(", "x", " 1)");
+    	
+    	Expression sum = new Expression(right, TierPolicy.DISABLED);
+    	assertEquals(2 * depth + 1, sum.size());
+    	assertEquals(depth + 5, sum.evaluate(new int[] {5}));
+    	assertEquals(depth + 5, sum.compile().evaluate(new int[] {5}));
+    	assertEquals(depth + 5, sum.compileDag().evaluate(new int[] {5}));
+    	assertEquals(depth + 5, sum.compileParallel().evaluate(new int[] {5}));
+    	assertEquals(depth + 5, sum.compileParallel(null, 2).evaluate(new int[] {5}));
+    	assertEquals(depth + 2, sum.compileDag().size());
+    	Expression simple = sum.optimize();
+    	assertEquals("(" + depth + " + x)", simple.toString());
+    	assertEquals(depth + 5, simple.evaluate(new int[] {5}));
+    	String infix = sum.toString();
+    	assertTrue(infix.startsWith("(1 + (1 + (1 + "));
+    	assertEquals(5 * depth, infix.indexOf('x'));
+    	assertEquals(6 * depth + 1, infix.length());
+    	
+    	Expression difference = new Expression(left, TierPolicy.DISABLED);
+    	assertEquals(5 - depth, difference.evaluate(new int[] {5}));
+    	assertEquals(5 - depth, difference.compile().evaluate(new int[] {5}));
+    	assertEquals(5 - depth, difference.compileDag().evaluate(new int[] {5}));
+    	assertEquals(5 - depth, difference.compileParallel().evaluate(new int[] {5}));
+    	assertEquals(5 - depth, difference.compileParallel(null, 2).evaluate(new int[] {5}));
+    	assertEquals(5 - depth, difference.optimize().evaluate(new int[] {5}));
+    	infix = difference.toString();
+    	assertEquals(depth, infix.indexOf("x - 1) - 1)"));
+    	assertEquals(6 * depth + 1, infix.length());
+    	
+    	// Chains of variable operands flatten into one node, whose operands
+    	// have no other parent
+    	Map<String, Integer> bindings = new HashMap<String, Integer>();
+    	bindings.put("x", 5);
+    	bindings.put("y", 2);
+    	String chain = TreeTest.deepChain(depth, "+(", "x", " y)");
+    	Tree<String> flat = Optimizer.simplify(Tree.parse(chain));
+    	assertEquals(depth + 1, flat.getNumberOfChildren());
+    	for (Tree<String> operand : flat) {
+    		assertFalse(operand.isShared());
+    	}
+    	assertEquals(5 + 2 * depth, new Expression(chain, TierPolicy.DISABLED).optimize().evaluate(bindings));
+    	chain = TreeTest.deepChain(depth, "*(y ", "x", ")");
+    	assertEquals(depth + 2, new Expression(chain, TierPolicy.DISABLED).optimize().size());
+    	chain = TreeTest.deepChain(depth, "-(+(y ", "x", ") 1)");
+    	Expression mixed = new Expression(chain, TierPolicy.DISABLED).optimize();
+    	assertEquals(depth + 4, mixed.size());
+    	assertEquals(5 + depth, mixed.evaluate(bindings));
+    	
+    	try {
+    		new Expression("+(1 " + right + " -(2))");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    }
+
+    @Test
+    public final void testWriteTo() throws IOException {
+    	Expression exp = new Expression("+ (5 10 -( *(15 x 20) 25) /(30 y))");
+    	StringWriter out = new StringWriter();
+    	exp.writeTo(out);
+    	assertEquals("(5 + 10 + ((15 * x * 20) - 25) + (30 / y))", out.toString());
+    	assertEquals(out.toString(), exp.toString());
+    	
+    	out = new StringWriter();
+    	new Expression("42").writeTo(out);
+    	assertEquals("42", out.toString());
+    }
+    
+    @Test
+    public final void testMappedTree() throws IOException {
+    	Expression exp = new Expression("+ (5 10 -( *(15 x 20) 25) /(30 y) x)");
+    	Path file = Files.createTempFile("expression", ".bin");
+    	try {
+    		MappedTree.write(exp, file);
+    		MappedTree mapped = MappedTree.open(file);
+    		assertTrue(mapped.isExpression());
+    		assertEquals(exp.size(), mapped.size());
+    		assertEquals(Arrays.asList("x", "y"), mapped.getVariables());
+    		assertEquals(exp.evaluate(new int[] {2, 3}), mapped.evaluate(new int[] {2, 3}));
+    		assertEquals(exp.evaluate(new int[] {-7, 4}), mapped.evaluate(new int[] {-7, 4}));
+    		assertEquals(exp.toString(), new Expression(mapped.toTree().toString()).toString());
+    		try {
+    			mapped.evaluate();
+    			fail();
+    		} catch (IllegalStateException e) {
+    			assertEquals("Unbound variable: x", e.getMessage());
+    		}
+    		try {
+    			mapped.evaluate(new int[] {1});
+    			fail();
+    		} catch (IllegalArgumentException e) {
+    			assertEquals("Expected 2 values", e.getMessage());
+    		}
+    		try {
+    			mapped.evaluate(new int[] {1, 0});
+    			fail();
+    		} catch (ArithmeticException e) {
+    			// expected
+    		}
+    		
+    		MappedTree.write(new Expression("-(/(100 7) 2147483647)"), file);
+    		assertEquals(100 / 7 - 2147483647, MappedTree.open(file).evaluate());
+    		MappedTree.write(new Expression("42"), file);
+    		assertEquals(42, MappedTree.open(file).evaluate());
+    		MappedTree.write(new Expression("+(+5 1)"), file);
+    		assertEquals(6, MappedTree.open(file).evaluate());
+    		MappedTree.write(new Expression("-(7 -0)"), file);
+    		assertEquals(7, MappedTree.open(file).evaluate());
+    	} finally {
+    		Files.delete(file);
+    	}
+    }
+    
+    @Test
+    public final void testExpressionCache() {
+    	assertEquals("+(1 *(2 x))", ExpressionCache.canonical("  + ( 1\t*(2   x ) )\n"));
+    	assertEquals("+(1 2)", ExpressionCache.canonical("+(1 2)"));
+    	
+    	ExpressionCache cache = new ExpressionCache(2, TierPolicy.DISABLED);
+    	Expression exp = cache.get("+ (1  *(2 x))");
+    	assertSame(exp, cache.get("+(1 *(2 x))"));
+    	assertEquals(7, exp.evaluate(new int[] {3}));
+    	assertEquals(1, cache.getMisses());
+    	assertEquals(1, cache.getHits());
+    	
+    	assertEquals(12, cache.evaluate("*(3 4)"));
+    	assertEquals(12, cache.evaluate(" * ( 3 4 ) "));
+    	assertEquals(2, cache.getMisses());
+    	assertEquals(2, cache.getHits());
+    	assertEquals(2, cache.size());
+    	assertEquals(0, cache.getEvictions());
+    	
+    	// Invalid text is cached too
+    	for (int i = 0; i < 2; i++) {
+    		try {
+    			cache.get("-(1 2 3)");
+    			fail();
+    		} catch (IllegalArgumentException e) {
+    			// expected
+    		}
+    	}
+    	assertEquals(3, cache.getMisses());
+    	assertEquals(3, cache.getHits());
+    	
+    	// The least recently used entry, "+(1 *(2 x))", was evicted
+    	assertEquals(2, cache.size());
+    	assertEquals(1, cache.getEvictions());
+    	assertEquals(12, cache.evaluate("*(3 4)"));
+    	assertNotSame(exp, cache.get("+(1 *(2 x))"));
+    	assertEquals(4, cache.getMisses());
+    	assertEquals(2, cache.getEvictions());
+    	
+    	for (int i = 0; i < 2; i++) {
+    		try {
+    			cache.evaluate("/(1 0)");
+    			fail();
+    		} catch (ArithmeticException e) {
+    			// expected
+    		}
+    	}
+    	try {
+    		cache.evaluate("x");
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Unbound variable: x", e.getMessage());
+    	}
+    	
+    	cache.clear();
+    	assertEquals(0, cache.size());
+    	assertEquals(2, cache.getCapacity());
+    	try {
+    		new ExpressionCache(0);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Capacity must be positive: 0", e.getMessage());
+    	}
+    }
+    
+    @Test
+    public final void testExpressionCacheConcurrently() throws InterruptedException {
+    	final ExpressionCache cache = new ExpressionCache(8, TierPolicy.DISABLED);
+    	final AtomicInteger failures = new AtomicInteger();
+    	Thread[] threads = new Thread[4];
+    	for (int t = 0; t < threads.length; t++) {
+    		threads[t] = new Thread() {
+    			@Override
+    			public void run() {
+    				for (int i = 0; i < 10000; i++) {
+    					int n = i % 12;
+    					if (cache.evaluate("+(" + n + " " + n + ")") != 2 * n) {failures.incrementAndGet();}
+    				}
+    			}
+    		};
+    		threads[t].start();
+    	}
+    	for (Thread thread : threads) {
+    		thread.join();
+    	}
+    	
+    	assertEquals(0, failures.get());
+    	assertEquals(40000, cache.getHits() + cache.getMisses());
+    	assertTrue(cache.size() <= 8);
+    	// Threads that miss on the same text at once replace each other's entry
+    	assertTrue(cache.getEvictions() <= cache.getMisses() - cache.size());
+    }
+    
+    @Test
+    public final void testInstrumentation() throws Exception {
+    	MetricsRegistry metrics = new MetricsRegistry();
+    	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    	assertNull(Instrumentation.getInstalled());
+    	Instrumentation.install(metrics);
+    	metrics.registerMBeans(server);
+    	try {
+    		Tree.parse("a (b (c) d)");
+    		OperationMetrics parse = metrics.get(Operation.PARSE);
+    		assertEquals(1, parse.getCount());
+    		assertEquals(4, parse.getTotalNodes());
+    		assertEquals(3, parse.getMaxDepth());
+    		
+    		Tree.parse(new StringReader("x"));
+    		assertEquals(2, parse.getCount());
+    		assertEquals(5, parse.getTotalNodes());
+    		assertEquals(4, parse.getMaxNodes());
+    		
+    		Expression exp = new Expression("+(1 *(2 x))", TierPolicy.DISABLED);
+    		for (int i = 0; i < 3; i++) {
+    			assertEquals(7, exp.evaluate(new int[] {3}));
+    		}
+    		assertEquals(3, parse.getCount());
+    		assertEquals(10, parse.getTotalNodes());
+    		OperationMetrics evaluate = metrics.get(Operation.EVALUATE);
+    		assertEquals(3, evaluate.getCount());
+    		assertEquals(15, evaluate.getTotalNodes());
+    		
+    		// Text is validated as it is parsed; a Tree is validated apart
+    		OperationMetrics validate = metrics.get(Operation.VALIDATE);
+    		assertEquals(0, validate.getCount());
+    		new Expression("+(1 *(2 3) x)", TierPolicy.DISABLED).optimize();
+    		assertEquals(1, validate.getCount());
+    		assertEquals(3, validate.getMaxNodes());
+    		assertEquals(2, validate.getMaxDepth());
+    		
+    		// Failed calls are not recorded
+    		try {
+    			new Expression("-(1 2 3)");
+    			fail();
+    		} catch (IllegalArgumentException e) {
+    			// expected
+    		}
+    		assertEquals(4, parse.getCount());
+    		try {
+    			new Expression("/(1 0)").evaluate();
+    			fail();
+    		} catch (ArithmeticException e) {
+    			// expected
+    		}
+    		assertEquals(3, evaluate.getCount());
+    		
+    		long[] histogram = evaluate.getLatencyHistogram();
+    		long total = 0;
+    		for (long n : histogram) {
+    			total += n;
+    		}
+    		assertEquals(3, total);
+    		assertTrue(evaluate.getMedianNanos() <= evaluate.getPercentile99Nanos());
+    		assertTrue(evaluate.getPercentile99Nanos() <= evaluate.getMaxNanos());
+    		assertTrue(evaluate.getMaxNanos() <= evaluate.getTotalNanos());
+    		
+    		ObjectName name = MetricsRegistry.objectName(Operation.EVALUATE);
+    		assertEquals("tree:type=Metrics,operation=evaluate", name.toString());
+    		assertEquals(3L, server.getAttribute(name, "Count"));
+    		assertEquals(3, server.getAttribute(name, "MaxDepth"));
+    		
+    		metrics.reset();
+    		assertEquals(0, evaluate.getCount());
+    		assertEquals(0, evaluate.getMaxNanos());
+    		assertEquals(0.0, evaluate.getMeanNanos(), 0.0);
+    	} finally {
+    		Instrumentation.install(null);
+    		metrics.unregisterMBeans(server);
+    	}
+    	
+    	new Expression("+(1 2)").evaluate();
+    	assertEquals(0, metrics.get(Operation.PARSE).getCount());
+    	assertEquals(0, metrics.get(Operation.EVALUATE).getCount());
+    }
+    
+    @Test
+    public final void testRejectEarly() {
+    	// Each is rejected before the malformed text after the offending token
+    	String[] invalid = {"-(1 2 3 4 (((", "+(1 a! 2 ((", "*(1 x y !(", "/(1 +(2) 3", "+(1 -)"};
+    	for (String text : invalid) {
+    		try {
+    			new Expression(text);
+    			fail(text);
+    		} catch (IllegalArgumentException e) {
+    			assertEquals("Invalid expression: " + text, e.getMessage());
+    		}
+    	}
+    	
+    	// Syntax errors are found by the parser as before
+    	try {
+    		new Expression("+(1 2");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Unexpected null", e.getMessage());
+    	}
+    	
+    	// Integer leaves are decoded once, and may be as large as an int
+    	Expression exp = new Expression("+(2147483647 x -(y 0) *(x 1))");
+    	assertEquals(Arrays.asList("x", "y"), exp.getVariables());
+    	assertEquals(2147483647 + 5 + 7 + 5, exp.evaluate(new int[] {5, 7}));
+    	assertEquals(2147483647 - 3, exp.evaluate(new int[] {-1, -1}));
+    	try {
+    		new Expression("2147483648");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Invalid expression: 2147483648", e.getMessage());
+    	}
+    	assertEquals(0, new Expression("0").evaluate());
+    }
+    
+    @Test
+    public final void testArithmetic() {
+    	// Wrapping is the default, and unchanged
+    	String big = "*(65536 65536 x)";
+    	assertEquals(Arithmetic.WRAPPING, new Expression(big).getArithmetic());
+    	assertEquals(0, new Expression(big).evaluate(new int[] {3}));
+    	try {
+    		new Expression("+(1 2147483648)");
+    		fail();
+    	} catch (IllegalArgumentException e) {}
+    	try {
+    		new Expression(big).evaluateLong(new long[] {3});
+    		fail();
+    	} catch (IllegalStateException e) {}
+    	
+    	// Checked arithmetic is exact within a long, and throws beyond it
+    	Expression checked = new Expression(big, Arithmetic.CHECKED);
+    	assertEquals(Arithmetic.CHECKED, checked.getArithmetic());
+    	assertEquals(3L << 32, checked.evaluateLong(new long[] {3}));
+    	assertEquals(BigInteger.valueOf(-3L << 32), checked.evaluateBig(new long[] {-3}));
+    	try {
+    		checked.evaluate(new int[] {3});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("integer overflow", e.getMessage());
+    	}
+    	try {
+    		checked.evaluateLong(new long[] {1L << 31});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("long overflow", e.getMessage());
+    	}
+    	assertEquals(9223372036854775807L,
+    			new Expression("+(9223372036854775806 1)", Arithmetic.CHECKED).evaluateLong());
+    	assertEquals(Long.MIN_VALUE / 2, new Expression("/(-(-(0 9223372036854775807) 1) x)",
+    			Arithmetic.CHECKED).evaluateLong(new long[] {2}));
+    	try {
+    		new Expression("/(-(-(0 9223372036854775807) 1) x)", Arithmetic.CHECKED).evaluateLong(new long[] {-1});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("long overflow", e.getMessage());
+    	}
+    	try {
+    		new Expression("+(1 9223372036854775808)", Arithmetic.CHECKED);
+    		fail();
+    	} catch (IllegalArgumentException e) {}
+    	
+    	// Exact arithmetic promotes only what overflows, and demotes what fits again
+    	Expression exact = new Expression("-(-(*(9223372036854775807 x 2) *(9223372036854775807 x 2 1)) +(x 5))",
+    			Arithmetic.EXACT);
+    	assertEquals(Arrays.asList("x"), exact.getVariables());
+    	assertEquals(-8, exact.evaluateLong(new long[] {3}));
+    	assertEquals(-8, exact.evaluate(new int[] {3}));
+    	Expression huge = new Expression("*(+(99999999999999999999999 1) x)", Arithmetic.EXACT);
+    	assertEquals(new BigInteger("300000000000000000000000"), huge.evaluateBig(new long[] {3}));
+    	assertEquals(BigInteger.ZERO, huge.evaluateBig(new long[] {0}));
+    	try {
+    		huge.evaluateLong(new long[] {3});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("long overflow", e.getMessage());
+    	}
+    	assertEquals(new BigInteger("100000000000000000000000"),
+    			new Expression("99999999999999999999999", Arithmetic.EXACT).evaluateBig().add(BigInteger.ONE));
+    	assertEquals(BigInteger.ONE.shiftLeft(63),
+    			new Expression("/(-(-(0 9223372036854775807) 1) x)", Arithmetic.EXACT).evaluateBig(new long[] {-1}));
+    	try {
+    		new Expression("/(99999999999999999999999 -(x x))", Arithmetic.EXACT).evaluateBig(new long[] {1});
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    	try {
+    		new Expression("-(1 99999999999999999999999 2)", Arithmetic.EXACT);
+    		fail();
+    	} catch (IllegalArgumentException e) {}
+    	
+    	// Exact and checked results agree with wrapping ones wherever those fit
+    	String[] texts = {"+(1 2 3)", "-(x *(y 7))", "/(*(x y) -(y 3))", "x", "+(x /(y 2) -(9 x))"};
+    	int[][] rows = {{3, 5}, {-4, 11}, {0, 2}, {1000, -1000}};
+    	for (String text : texts) {
+    		Expression wrapping = new Expression(text, TierPolicy.DISABLED);
+    		for (Arithmetic arithmetic : new Arithmetic[] {Arithmetic.CHECKED, Arithmetic.EXACT}) {
+    			Expression other = new Expression(text, arithmetic);
+    			for (int[] row : rows) {
+    				assertEquals(text, wrapping.evaluate(row), other.evaluate(row));
+    			}
+    		}
+    	}
+    	
+    	// Only wrapping Expressions are compiled or optimized
+    	try {
+    		exact.compile();
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Not a WRAPPING Expression", e.getMessage());
+    	}
+    	try {
+    		checked.optimize();
+    		fail();
+    	} catch (IllegalStateException e) {}
+    	assertEquals(Tier.TREE, checked.getTier());
+    }
+    
+    @Test
+    public final void testBatchEvaluator() throws IOException {
+    	StringBuilder input = new StringBuilder();
+    	StringBuilder expected = new StringBuilder();
+    	for (int i = 0; i < 1000; i++) {
+    		if (i % 97 == 0) {
+    			input.append("/(").append(i).append(" -(3 3))\n");
+    			expected.append("error: / by zero\n");
+    		} else if (i % 89 == 0) {
+    			input.append("-(").append(i).append(" 1 2)\n");
+    			expected.append("error: Invalid expression: -(").append(i).append(" 1 2)\n");
+    		} else {
+    			input.append("+(").append(i).append(" *(").append(i).append(" 2))\n");
+    			expected.append(i * 3).append('\n');
+    		}
+    	}
+    	input.append("x\n\n*(65536 65536)");
+    	expected.append("error: Unbound variable: x\n");
+    	
+    	// Small chunks on a few threads still come out in order
+    	StringWriter out = new StringWriter();
+    	BatchEvaluator.Report report = new BatchEvaluator(3, 7, Arithmetic.WRAPPING).evaluate(
+    			new BufferedReader(new StringReader(input.toString())), out);
+    	String[] lines = out.toString().split("\n", -1);
+    	assertEquals(1004, lines.length);
+    	assertEquals(expected.toString(), out.toString().substring(0, expected.length()));
+    	assertTrue(lines[1001].startsWith("error: "));
+    	assertEquals("0", lines[1002]);
+    	assertEquals("", lines[1003]);
+    	assertEquals(1003, report.getLines());
+    	assertEquals(11 + 11 + 2, report.getErrors());
+    	assertTrue(report.getLinesPerSecond() > 0);
+    	
+    	// Through files, in exact arithmetic
+    	Path in = Files.createTempFile("expressions", ".txt");
+    	Path result = Files.createTempFile("values", ".txt");
+    	try {
+    		Files.write(in, Arrays.asList("*(65536 65536 65536 65536 65536)", "+(1 2)", "q!"));
+    		report = new BatchEvaluator(2, 1, Arithmetic.EXACT).evaluate(in, result);
+    		assertEquals(Arrays.asList("1208925819614629174706176", "3", "error: Invalid expression: q!"),
+    				Files.readAllLines(result));
+    		assertEquals(3, report.getLines());
+    		assertEquals(1, report.getErrors());
+    		
+    		Files.write(in, new byte[0]);
+    		report = new BatchEvaluator().evaluate(in, result);
+    		assertEquals(0, report.getLines());
+    		assertEquals(0, Files.size(result));
+    	} finally {
+    		Files.delete(in);
+    		Files.delete(result);
+    	}
+    	
+    	try {
+    		new BatchEvaluator(0, 1, Arithmetic.WRAPPING);
+    		fail();
+    	} catch (IllegalArgumentException e) {}
+    	
+    	// Errors are written with their messages, which a JIT-compiled
+    	// implicit division by zero would throw without
+    	Expression wrapping = new Expression("/(x 0)", TierPolicy.DISABLED);
+    	Expression checked = new Expression("/(x 0)", Arithmetic.CHECKED);
+    	for (int i = 0; i < 200000; i++) {
+    		try {
+    			wrapping.evaluate(new int[] {i});
+    			fail();
+    		} catch (ArithmeticException e) {
+    			assertEquals("/ by zero", e.getMessage());
+    		}
+    		try {
+    			checked.evaluateLong(new long[] {i});
+    			fail();
+    		} catch (ArithmeticException e) {
+    			assertEquals("/ by zero", e.getMessage());
+    		}
+    	}
+    }
+    
+    @Test
+    public final void testIncrementalEvaluator() {
+    	IncrementalEvaluator inc = new Expression("+(1 *(2 3) -(10 /(8 4)))").compileIncremental();
+    	assertEquals(15, inc.evaluate());
+    	assertEquals(10, inc.size());
+    	assertEquals("*", inc.getValue(2));
+    	assertEquals(4, inc.getNextSibling(3));
+    	assertEquals(2, inc.getParent(4));
+    	assertEquals(IncrementalEvaluator.NONE, inc.getFirstChild(1));
+    	inc.setValue(4, "5");
+    	assertEquals(19, inc.evaluate());
+    	assertEquals("5", inc.getValue(4));
+    	inc.setValue(9, "0");
+    	try {
+    		inc.evaluate();
+    		fail();
+    	} catch (ArithmeticException e) {
+    		assertEquals("/ by zero", e.getMessage());
+    	}
+    	inc.setValue(9, "2");
+    	assertEquals(17, inc.evaluate());
+    	try {
+    		inc.setValue(2, "7");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Not a leaf: 2", e.getMessage());
+    	}
+    	try {
+    		inc.setValue(1, "x");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Invalid value: x", e.getMessage());
+    	}
+    	
+    	inc = new Expression("-(x *(y 3))").compileIncremental();
+    	assertEquals(-1, inc.evaluate(new int[] {5, 2}));
+    	inc.setValue(4, "y");
+    	assertEquals(1, inc.evaluate(new int[] {5, 2}));
+    	try {
+    		inc.evaluate(new int[] {5});
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Expected 2 values", e.getMessage());
+    	}
+    	
+    	// Inverses of odd numbers, which products are divided by
+    	for (int odd : new int[] {1, 3, -1, 12345677, Integer.MAX_VALUE, Integer.MIN_VALUE + 1}) {
+    		assertEquals(1, odd * IncrementalEvaluator.inverse(odd));
+    	}
+    	
+    	// Random edits, including zeros, powers of two, overflow and
+    	// variables, agree with evaluating the edited text from scratch
+    	java.util.Random random = new java.util.Random(25);
+    	String[] leaves = {"0", "1", "2", "3", "4", "7", "64", "65536", "1000003", "2147483647", "x", "y"};
+    	for (int round = 0; round < 20; round++) {
+    		Tree<String> tree = randomExpression(random, leaves, 6);
+    		if (tree.getNumberOfChildren() == 0) {continue;}
+    		Expression exp = new Expression(tree.toString());
+    		inc = exp.compileIncremental();
+    		List<String> variables = exp.getVariables();
+    		List<Tree<String>> nodes = new ArrayList<Tree<String>>();
+    		for (Tree<String> node : tree.preorder()) {
+    			nodes.add(node);
+    		}
+    		assertEquals(nodes.size(), inc.size());
+    		
+    		for (int edit = 0; edit < 50; edit++) {
+    			int node = random.nextInt(nodes.size());
+    			if (nodes.get(node).getNumberOfChildren() == 0) {
+    				String value = leaves[random.nextInt(leaves.length)];
+    				if (!variables.contains(value) && !Character.isDigit(value.charAt(0))) {continue;}
+    				nodes.get(node).setValue(value);
+    				inc.setValue(node, value);
+    			}
+    			
+    			// Edits may remove variables, so the text is evaluated by name
+    			int[] values = new int[variables.size()];
+    			Map<String, Integer> bindings = new HashMap<String, Integer>();
+    			for (int i = 0; i < values.length; i++) {
+    				values[i] = random.nextInt(5) - 2;
+    				bindings.put(variables.get(i), values[i]);
+    			}
+    			Integer expected;
+    			try {
+    				expected = new Expression(tree.toString()).evaluate(bindings);
+    			} catch (ArithmeticException e) {
+    				expected = null;
+    			}
+    			Integer actual;
+    			try {
+    				actual = inc.evaluate(values);
+    			} catch (ArithmeticException e) {
+    				actual = null;
+    			}
+    			assertEquals(tree.toString(), expected, actual);
+    		}
+    	}
+    	
+    	// A change to one leaf of a wide product or sum does not revisit
+    	// the other factors
+    	StringBuilder sb = new StringBuilder("+(*(x");
+    	for (int i = 0; i < 100000; i++) {
+    		sb.append(i % 3 == 0 ? " 3" : " 2");
+    	}
+    	sb.append(") 1)");
+    	inc = new Expression(sb.toString()).compileIncremental();
+    	int[] values = new int[1];
+    	for (int i = -50; i < 50; i++) {
+    		values[0] = i;
+    		assertEquals(new Expression(sb.toString()).evaluate(values), inc.evaluate(values));
+    	}
+    	
+    	try {
+    		new Expression("1", Arithmetic.EXACT).compileIncremental();
+    		fail();
+    	} catch (IllegalStateException e) {}
+    }
+    
+    /**
+     * Builds a random valid expression tree.
+     * @param random The source of randomness.
+     * @param leaves The values that a leaf may have.
+     * @param depth The greatest depth of the tree.
+     * @return The tree.
+     */
+    @SuppressWarnings("unchecked")
+    private static Tree<String> randomExpression(java.util.Random random, String[] leaves, int depth) {
+    	if (depth == 1 || random.nextInt(3) == 0) {
+    		return new Tree<String>(leaves[random.nextInt(leaves.length)]);
+    	}
+    	
+    	String op = "+-*/".substring(random.nextInt(4)).substring(0, 1);
+    	int children = "+*".contains(op) ? 2 + random.nextInt(4) : 2;
+    	Tree<String> tree = new Tree<String>(op);
+    	for (int i = 0; i < children; i++) {
+    		tree.addChild(randomExpression(random, leaves, depth - 1));
+    	}
+    	return tree;
+    }
+
 }
@@ -0,0 +1,543 @@
+package tree;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Evaluates an <code>Expression</code> whose leaves are changed one at a
+ * time, keeping the value of every subtree so that a change recomputes only
+ * the nodes between the changed leaf and the root. The time taken by a
+ * change is proportional to the depth of the leaf, not to the size of the
+ * Expression.
+ * <p>
+ * A "+" node keeps the sum of its children, and adjusts it by the
+ * difference when one of them changes. A "*" node keeps the product of its
+ * children as a count of zeros, a count of factors of two, and the product
+ * of the odd parts that remain, which can always be divided out again, as
+ * every odd number has an inverse modulo 2<sup>32</sup>. So neither looks
+ * at its other children, however many it has. A change that leaves a
+ * node's value as it was stops there.
+ * <p>
+ * The nodes are numbered in preorder from 0, as by <code>MappedTree</code>.
+ * The results are identical to those of <code>Expression.evaluate()</code>,
+ * including overflow. Like <code>DagEvaluator</code>, an IncrementalEvaluator
+ * must not be used from more than one thread at a time.
+ *
+ * @author Anders Schneider
+ */
+public final class IncrementalEvaluator implements Evaluator {
+    /** The number given by the navigation methods for a missing node. */
+    public static final int NONE = -1;
+
+    private static final byte ADD = 0;
+    private static final byte SUB = 1;
+    private static final byte MUL = 2;
+    private static final byte DIV = 3;
+    private static final byte CONSTANT = 4;
+    private static final byte VARIABLE = 5;
+
+    private final String[] variables;
+    // The index of each variable
+    private final Map<String, Integer> slots;
+    private final byte[] kinds;
+    private final int[] parents;
+    private final int[] nextSiblings;
+    // The value of each node's subtree
+    private final int[] results;
+    // The index of a "*" node's factors, or a variable's index
+    private final int[] operands;
+    // The factors of each "*" node: the number that are zero, and the
+    // factors of two and the product of the odd parts of the others
+    private final int[] zeros;
+    private final int[] twos;
+    private final int[] odds;
+    // The leaves holding each variable, as doubly linked lists
+    private final int[] firstOccurrences;
+    private final int[] nextOccurrences;
+    private final int[] previousOccurrences;
+    private final int[] values;
+    // The number of "/" nodes whose divisor is zero
+    private int failures;
+
+    /**
+     * Constructs an IncrementalEvaluator for the nodes of a tree, and
+     * computes the value of every subtree, with every variable zero.
+     *
+     * @param numberer The numbered nodes.
+     * @param slots The index of each variable.
+     */
+    private IncrementalEvaluator(Numberer numberer, Map<String, Integer> slots) {
+    	int n = numberer.size;
+    	this.variables = slots.keySet().toArray(new String[slots.size()]);
+    	this.slots = slots;
+    	this.kinds = Arrays.copyOf(numberer.kinds, n);
+    	this.parents = Arrays.copyOf(numberer.parents, n);
+    	this.nextSiblings = Arrays.copyOf(numberer.nextSiblings, n);
+    	this.results = Arrays.copyOf(numberer.results, n);
+    	this.operands = Arrays.copyOf(numberer.operands, n);
+    	this.zeros = new int[numberer.products];
+    	this.twos = new int[numberer.products];
+    	this.odds = new int[numberer.products];
+    	Arrays.fill(odds, 1);
+    	this.firstOccurrences = new int[variables.length];
+    	this.nextOccurrences = new int[n];
+    	this.previousOccurrences = new int[n];
+    	this.values = new int[variables.length];
+
+    	Arrays.fill(firstOccurrences, NONE);
+    	for (int node = n - 1; node >= 0; node--) {
+    		if (kinds[node] == VARIABLE) {link(node);}
+    	}
+
+    	// Every node comes after its parent, so going backwards every node
+    	// is complete when it is reached, and is then added to its parent
+    	for (int node = n - 1; node >= 0; node--) {
+    		int result = compute(node);
+    		results[node] = result;
+    		if (kinds[node] == DIV && results[nextSiblings[node + 1]] == 0) {failures++;}
+
+    		int parent = parents[node];
+    		if (parent == NONE) {continue;}
+    		if (kinds[parent] == ADD) {
+    			results[parent] += result;
+    		} else if (kinds[parent] == MUL) {
+    			include(operands[parent], result);
+    		}
+    	}
+    }
+
+    /**
+     * Numbers the nodes of the given Tree, which must represent a valid
+     * Expression, and computes the value of each of its subtrees.
+     *
+     * @param tree The tree to be compiled.
+     * @param slots The index of each variable in the tree.
+     * @return The compiled IncrementalEvaluator.
+     */
+    static IncrementalEvaluator compile(Tree<String> tree, Map<String, Integer> slots) {
+    	Numberer numberer = new Numberer(slots);
+    	numberer.number(tree);
+    	return new IncrementalEvaluator(numberer, slots);
+    }
+
+    /**
+     * Returns the value of the Expression, which must not have any
+     * variables, as it now is.
+     *
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalStateException If the Expression has variables.
+     */
+    @Override
+    public int evaluate() {
+    	if (variables.length > 0) {
+    		throw new IllegalStateException("Unbound variable: " + variables[0]);
+    	}
+        return result();
+    }
+
+    /**
+     * Returns the value of the Expression, as it now is, for the given
+     * values of its variables. Only the leaves of the variables whose
+     * values differ from those of the last call are changed.
+     *
+     * @param values The value of each variable, by index.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalArgumentException If there are fewer values than variables.
+     */
+    @Override
+    public int evaluate(int[] values) {
+    	if (values.length < variables.length) {
+    		throw new IllegalArgumentException("Expected " + variables.length + " values");
+    	}
+    	for (int i = 0; i < variables.length; i++) {
+    		int value = values[i];
+    		if (value == this.values[i]) {continue;}
+
+    		this.values[i] = value;
+    		for (int node = firstOccurrences[i]; node != NONE; node = nextOccurrences[node]) {
+    			update(node, value);
+    		}
+    	}
+        return result();
+    }
+
+    /**
+     * Returns the value of the root.
+     *
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    private int result() {
+    	if (failures > 0) {throw new ArithmeticException("/ by zero");}
+        return results[0];
+    }
+
+    /**
+     * Changes the value in a leaf to a number, or to a variable of the
+     * Expression, and recomputes the nodes above it.
+     *
+     * @param node A leaf.
+     * @param value An unsigned integer, or the name of a variable.
+     * @throws IllegalArgumentException If the node is not a leaf, or the
+     *         value is neither a number nor a variable of the Expression.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public void setValue(int node, String value) {
+    	if (kinds[node] != CONSTANT && kinds[node] != VARIABLE) {
+    		throw new IllegalArgumentException("Not a leaf: " + node);
+    	}
+
+    	Integer index = slots.get(value);
+    	int slot = index == null ? NONE : index;
+    	int result;
+    	if (slot >= 0) {
+    		result = values[slot];
+    	} else {
+    		try {
+    			result = Integer.parseInt(value);
+    		} catch (NumberFormatException e) {
+    			throw new IllegalArgumentException("Invalid value: " + value);
+    		}
+    		if (result < 0) {throw new IllegalArgumentException("Invalid value: " + value);}
+    	}
+
+    	if (kinds[node] == VARIABLE) {unlink(node);}
+    	if (slot >= 0) {
+    		kinds[node] = VARIABLE;
+    		operands[node] = slot;
+    		link(node);
+    	} else {
+    		kinds[node] = CONSTANT;
+    	}
+    	update(node, result);
+    }
+
+    /**
+     * Changes the value of a node, and recomputes each node above it until
+     * one keeps its value.
+     *
+     * @param node The node.
+     * @param result Its new value.
+     */
+    private void update(int node, int result) {
+    	int old = results[node];
+    	results[node] = result;
+
+    	int parent = parents[node];
+    	while (old != result && parent != NONE) {
+    		int oldParent = results[parent];
+    		switch (kinds[parent]) {
+    		case ADD:
+    			results[parent] = oldParent - old + result;
+    			break;
+    		case MUL:
+    			exclude(operands[parent], old);
+    			include(operands[parent], result);
+    			results[parent] = product(operands[parent]);
+    			break;
+    		default:
+    			if (kinds[parent] == DIV && node != parent + 1) {
+    				// The divisor has changed
+    				failures += (result == 0 ? 1 : 0) - (old == 0 ? 1 : 0);
+    			}
+    			results[parent] = compute(parent);
+    			break;
+    		}
+
+    		old = oldParent;
+    		result = results[parent];
+    		node = parent;
+    		parent = parents[node];
+    	}
+    }
+
+    /**
+     * Computes the value of a node from the values kept for its children.
+     * A "/" node whose divisor is zero has the value zero; it is counted in
+     * <code>failures</code> by the caller.
+     *
+     * @param node The node.
+     * @return Its value.
+     */
+    private int compute(int node) {
+    	switch (kinds[node]) {
+    	case ADD:
+    		return results[node];
+    	case MUL:
+    		return product(operands[node]);
+    	case SUB:
+    		return results[node + 1] - results[nextSiblings[node + 1]];
+    	case DIV:
+    		int divisor = results[nextSiblings[node + 1]];
+    		return divisor == 0 ? 0 : results[node + 1] / divisor;
+    	case VARIABLE:
+    		return values[operands[node]];
+    	default:
+    		return results[node];
+    	}
+    }
+
+    /**
+     * Multiplies the product of a "*" node's factors by another factor.
+     *
+     * @param product The index of the node's factors.
+     * @param factor The factor.
+     */
+    private void include(int product, int factor) {
+    	if (factor == 0) {
+    		zeros[product]++;
+    	} else {
+    		int shift = Integer.numberOfTrailingZeros(factor);
+    		twos[product] += shift;
+    		odds[product] *= factor >> shift;
+    	}
+    }
+
+    /**
+     * Divides the product of a "*" node's factors by one of them.
+     *
+     * @param product The index of the node's factors.
+     * @param factor A factor that was included.
+     */
+    private void exclude(int product, int factor) {
+    	if (factor == 0) {
+    		zeros[product]--;
+    	} else {
+    		int shift = Integer.numberOfTrailingZeros(factor);
+    		twos[product] -= shift;
+    		odds[product] *= inverse(factor >> shift);
+    	}
+    }
+
+    /**
+     * Returns the product of a "*" node's factors, as <code>int</code>
+     * multiplication would give it.
+     *
+     * @param product The index of the node's factors.
+     * @return The product.
+     */
+    private int product(int product) {
+    	if (zeros[product] > 0 || twos[product] >= 32) {return 0;}
+        return odds[product] << twos[product];
+    }
+
+    /**
+     * Returns the inverse of an odd number modulo 2<sup>32</sup>, by
+     * Newton's iteration, which doubles the number of correct low bits each
+     * time; an odd number is its own inverse to three bits.
+     *
+     * @param odd An odd number.
+     * @return The number whose product with it is 1.
+     */
+    static int inverse(int odd) {
+    	int inverse = odd;
+    	for (int i = 0; i < 4; i++) {
+    		inverse *= 2 - odd * inverse;
+    	}
+        return inverse;
+    }
+
+    /**
+     * Adds a leaf to the front of the list of leaves of its variable.
+     *
+     * @param node A leaf holding a variable.
+     */
+    private void link(int node) {
+    	int slot = operands[node];
+    	int first = firstOccurrences[slot];
+    	nextOccurrences[node] = first;
+    	previousOccurrences[node] = NONE;
+    	if (first != NONE) {previousOccurrences[first] = node;}
+    	firstOccurrences[slot] = node;
+    }
+
+    /**
+     * Removes a leaf from the list of leaves of its variable.
+     *
+     * @param node A leaf holding a variable.
+     */
+    private void unlink(int node) {
+    	int next = nextOccurrences[node];
+    	int previous = previousOccurrences[node];
+    	if (next != NONE) {previousOccurrences[next] = previous;}
+    	if (previous != NONE) {
+    		nextOccurrences[previous] = next;
+    	} else {
+    		firstOccurrences[operands[node]] = next;
+    	}
+    }
+
+    /**
+     * Returns the number of nodes in the Expression.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return kinds.length;
+    }
+
+    /**
+     * Returns the value in the given node: an operator, a number or the
+     * name of a variable.
+     *
+     * @param node A node, numbered in preorder from 0.
+     * @return The value in the node.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public String getValue(int node) {
+    	switch (kinds[node]) {
+    	case ADD:
+    		return "+";
+    	case SUB:
+    		return "-";
+    	case MUL:
+    		return "*";
+    	case DIV:
+    		return "/";
+    	case VARIABLE:
+    		return variables[operands[node]];
+    	default:
+    		return Integer.toString(results[node]);
+    	}
+    }
+
+    /**
+     * Returns the first child of the given node.
+     *
+     * @param node A node.
+     * @return The first child, or <code>NONE</code> for a leaf.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getFirstChild(int node) {
+        return kinds[node] < CONSTANT ? node + 1 : NONE;
+    }
+
+    /**
+     * Returns the child of the same parent that follows the given node.
+     *
+     * @param node A node.
+     * @return The next sibling, or <code>NONE</code> for a last child.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getNextSibling(int node) {
+        return nextSiblings[node];
+    }
+
+    /**
+     * Returns the parent of the given node.
+     *
+     * @param node A node.
+     * @return The parent, or <code>NONE</code> for the root.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * Numbers the nodes of an expression tree in preorder, recording the
+     * kind, parent and next sibling of each, and the value of each leaf.
+     */
+    private static class Numberer {
+        private final Map<String, Integer> slots;
+        private byte[] kinds = new byte[16];
+        private int[] parents = new int[16];
+        private int[] nextSiblings = new int[16];
+        private int[] results = new int[16];
+        private int[] operands = new int[16];
+        private int size;
+        // The number of "*" nodes
+        private int products;
+
+        /**
+         * Constructs a Numberer.
+         *
+         * @param slots The index of each variable.
+         */
+        Numberer(Map<String, Integer> slots) {
+            this.slots = slots;
+        }
+
+        /**
+         * Numbers every node of a tree.
+         *
+         * @param tree The tree.
+         */
+        void number(Tree<String> tree) {
+        	TreePath<String> path = new TreePath<String>();
+        	// The number of each node on the path, and of its last child so far
+        	int[] numbers = new int[16];
+        	int[] lastChildren = new int[16];
+        	add(tree, NONE);
+        	numbers[0] = 0;
+        	lastChildren[0] = NONE;
+        	path.push(tree);
+
+        	while (!path.isEmpty()) {
+        		Tree<String> node = path.top();
+        		int depth = path.depth() - 1;
+        		int i = path.advance();
+
+        		if (i < node.getNumberOfChildren()) {
+        			Tree<String> child = node.getChild(i);
+        			int number = add(child, numbers[depth]);
+        			if (lastChildren[depth] != NONE) {nextSiblings[lastChildren[depth]] = number;}
+        			lastChildren[depth] = number;
+
+        			if (child.getNumberOfChildren() > 0) {
+        				if (depth + 1 == numbers.length) {
+        					numbers = Arrays.copyOf(numbers, numbers.length * 2);
+        					lastChildren = Arrays.copyOf(lastChildren, lastChildren.length * 2);
+        				}
+        				numbers[depth + 1] = number;
+        				lastChildren[depth + 1] = NONE;
+        				path.push(child);
+        			}
+        		} else {
+        			path.pop();
+        		}
+        	}
+        }
+
+        /**
+         * Numbers a node.
+         *
+         * @param node The node.
+         * @param parent The number of its parent, or <code>NONE</code>.
+         * @return Its number.
+         */
+        private int add(Tree<String> node, int parent) {
+        	if (size == kinds.length) {
+        		kinds = Arrays.copyOf(kinds, size * 2);
+        		parents = Arrays.copyOf(parents, size * 2);
+        		nextSiblings = Arrays.copyOf(nextSiblings, size * 2);
+        		results = Arrays.copyOf(results, size * 2);
+        		operands = Arrays.copyOf(operands, size * 2);
+        	}
+
+        	String val = node.getValue();
+        	byte kind;
+        	int operand = 0;
+        	if (node.getNumberOfChildren() > 0) {
+        		kind = "+".equals(val) ? ADD : "-".equals(val) ? SUB : "*".equals(val) ? MUL : DIV;
+        		if (kind == MUL) {operand = products++;}
+        	} else if (slots.containsKey(val)) {
+        		kind = VARIABLE;
+        		operand = slots.get(val);
+        	} else {
+        		kind = CONSTANT;
+        		results[size] = Integer.parseInt(val);
+        	}
+
+        	kinds[size] = kind;
+        	parents[size] = parent;
+        	nextSiblings[size] = NONE;
+        	operands[size] = operand;
+            return size++;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package tree;
+
+/**
+ * The hook through which parsing, validation and evaluation report what
+ * they do, for metrics and tracing. Nothing is installed by default, and
+ * until a Listener is installed each instrumented call costs only a read
+ * of one static field. <code>MetricsRegistry</code> is a Listener that
+ * keeps counts and latency histograms in memory and exposes them over JMX.
+ * <p>
+ * The instrumented operations are:<ul>
+ * <li><code>PARSE</code>: <code>Tree.parse</code> of a String or other
+ * CharSequence, <code>Tree.parseCompact</code> and <code>TreeReader.read</code>,
+ * and <code>new Expression</code>, which validates its text as it parses it.</li>
+ * <li><code>VALIDATE</code>: the check of a Tree built by an Expression, as
+ * by <code>optimize()</code>, recorded whether or not the Tree is valid.</li>
+ * <li><code>EVALUATE</code>: <code>Expression.evaluate</code> of a single
+ * set of values, in whichever tier it runs.</li>
+ * </ul>
+ * A call that throws an exception is not recorded, with one exception:
+ * <code>VALIDATE</code> of an invalid Tree is recorded before its
+ * <code>IllegalArgumentException</code> is thrown.
+ *
+ * @author Anders Schneider
+ */
+public final class Instrumentation {
+
+    /**
+     * The operations that are reported.
+     */
+    public enum Operation {
+        /** Reading a tree from text. */
+        PARSE,
+        /** Checking that a Tree is a valid Expression. */
+        VALIDATE,
+        /** Evaluating an Expression once. */
+        EVALUATE
+    }
+
+    /**
+     * Receives a report of every instrumented operation. Listeners are
+     * called on the thread that did the operation, inside it, so they must
+     * be thread-safe and quick.
+     */
+    public interface Listener {
+
+        /**
+         * Called when an operation has completed.
+         *
+         * @param operation The operation.
+         * @param startNanos When it started, from <code>System.nanoTime()</code>.
+         * @param endNanos When it ended, from <code>System.nanoTime()</code>.
+         * @param nodes The number of nodes in the tree operated on.
+         * @param depth The depth of that tree, in which a lone root has depth 1.
+         */
+        void record(Operation operation, long startNanos, long endNanos, int nodes, int depth);
+    }
+
+    // Read by every instrumented call; null when nothing is installed
+    static volatile Listener listener;
+
+    private Instrumentation() {}
+
+    /**
+     * Installs the Listener that receives every report from now on, in
+     * place of any installed before.
+     *
+     * @param listener The Listener, or <code>null</code> to stop reporting.
+     */
+    public static void install(Listener listener) {
+        Instrumentation.listener = listener;
+    }
+
+    /**
+     * Returns the Listener installed.
+     *
+     * @return The Listener, or <code>null</code> if there is none.
+     */
+    public static Listener getInstalled() {
+        return listener;
+    }
+
+    /**
+     * Measures the size and depth of a Tree.
+     *
+     * @param tree The Tree.
+     * @return Its number of nodes, then its depth.
+     */
+    static int[] measure(Tree<?> tree) {
+    	int nodes = 1;
+    	int depth = 1;
+
+    	TreePath<Object> path = new TreePath<Object>();
+    	@SuppressWarnings("unchecked")
+    	Tree<Object> root = (Tree<Object>) tree;
+    	path.push(root);
+    	while (!path.isEmpty()) {
+    		Tree<Object> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.getNumberOfChildren()) {
+    			path.push(node.getChild(i));
+    			nodes++;
+    			depth = Math.max(depth, path.depth());
+    		} else {
+    			path.pop();
+    		}
+    	}
+    	return new int[] {nodes, depth};
+    }
+
+    /**
+     * An Assembler that counts the nodes it is given, and their depth,
+     * as it passes them on to another.
+     *
+     * @param <T> The type of tree built.
+     */
+    static final class CountingAssembler<T> implements Tree.Assembler<T> {
+        private final Tree.Assembler<T> assembler;
+        private int nodes;
+        private int open;
+        private int depth;
+
+        /**
+         * Constructs a CountingAssembler.
+         *
+         * @param assembler The Assembler that builds the tree.
+         */
+        CountingAssembler(Tree.Assembler<T> assembler) {
+            this.assembler = assembler;
+        }
+
+        @Override
+        public void begin(String value) {
+        	assembler.begin(value);
+        	nodes++;
+        	open++;
+        	depth = Math.max(depth, open);
+        }
+
+        @Override
+        public void leaf(String value) {
+        	assembler.leaf(value);
+        	nodes++;
+        	depth = Math.max(depth, open + 1);
+        }
+
+        @Override
+        public void end() {
+        	assembler.end();
+        	open--;
+        }
+
+        @Override
+        public T result() {
+            return assembler.result();
+        }
+
+        /**
+         * Reports a completed parse.
+         *
+         * @param listener Where the report is sent.
+         * @param startNanos When the parse started.
+         * @return The tree built.
+         */
+        T record(Listener listener, long startNanos) {
+        	T result = assembler.result();
+        	listener.record(Operation.PARSE, startNanos, System.nanoTime(), nodes, depth);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package tree;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Tree of Strings, or an Expression, in a binary file that is read in
+ * place through <code>FileChannel.map</code>. Opening a file maps it and
+ * reads a short header; nothing else is read until it is asked for, so
+ * opening takes the same short time however large the file, and the pages
+ * of the file are loaded, and shared between processes, by the operating
+ * system.
+ * <p>
+ * The file holds the arrays of a <code>CompactTree</code>: a record of 16
+ * bytes for each node, numbered in preorder, then a record for each
+ * distinct value, then the UTF-8 text of the values. For an Expression,
+ * each value's record also holds its meaning, decoded when the file was
+ * written: an operator, a variable's index, or the value of an integer
+ * literal. An Expression can be evaluated straight from the file.
+ * <p>
+ * All numbers are big-endian. The layout is:<pre>
+ * header:    int magic ("TREB"), int version (1), int flags (1 for an Expression),
+ *            int nodeCount, int valueCount, int variableCount
+ * nodes:     nodeCount  x (int childCount, int nextSibling, int parent, int value)
+ * values:    valueCount x (int textOffset, int textLength, int kind, int operand)
+ * variables: variableCount x (int value), in order of index
+ * text:      the UTF-8 text of the values</pre>
+ *
+ * @author Anders Schneider
+ */
+public final class MappedTree {
+    /** The number given by the navigation methods for a missing node. */
+    public static final int NONE = -1;
+
+    private static final int MAGIC = 0x54524542;
+    private static final int VERSION = 1;
+    private static final int EXPRESSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int NODE_SIZE = 16;
+    private static final int VALUE_SIZE = 16;
+    // The largest power of two that a mapping can hold
+    private static final int SEGMENT_BITS = 30;
+
+    // The kinds of values in an Expression
+    private static final int NOT_DECODED = 0;
+    private static final int CONSTANT = 1;
+    private static final int VARIABLE = 2;
+    private static final int ADD = 3;
+    private static final int SUB = 4;
+    private static final int MUL = 5;
+    private static final int DIV = 6;
+
+    private final ByteBuffer[] segments;
+    private final int segmentBits;
+    private final long segmentMask;
+    private final boolean expression;
+    private final int size;
+    private final int valueCount;
+    private final int variableCount;
+    private final long valuesStart;
+    private final long variablesStart;
+    private final long textStart;
+    // Values are decoded from the file as they are first asked for
+    private final String[] values;
+
+    /**
+     * Constructs a MappedTree over the segments of a mapped file.
+     *
+     * @param segments The mapped segments, in order.
+     * @param segmentBits The base 2 logarithm of the size of a segment.
+     * @param fileSize The size of the file.
+     * @param name The name of the file, for error messages.
+     * @throws IOException If the file is not a valid MappedTree file.
+     */
+    private MappedTree(ByteBuffer[] segments, int segmentBits, long fileSize, String name)
+            throws IOException {
+        this.segments = segments;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1L << segmentBits) - 1;
+
+        if (fileSize < HEADER_SIZE || getInt(0) != MAGIC) {throw new IOException("Not a tree file: " + name);}
+        if (getInt(4) != VERSION) {throw new IOException("Unsupported version " + getInt(4) + ": " + name);}
+
+        this.expression = (getInt(8) & EXPRESSION) != 0;
+        this.size = getInt(12);
+        this.valueCount = getInt(16);
+        this.variableCount = getInt(20);
+        this.valuesStart = HEADER_SIZE + (long) size * NODE_SIZE;
+        this.variablesStart = valuesStart + (long) valueCount * VALUE_SIZE;
+        this.textStart = variablesStart + (long) variableCount * 4;
+        if (size < 1 || valueCount < 0 || variableCount < 0 || textStart > fileSize) {
+        	throw new IOException("Truncated tree file: " + name);
+        }
+        this.values = new String[valueCount];
+    }
+
+    /**
+     * Maps a file written by one of the <code>write</code> methods.
+     *
+     * @param file The file.
+     * @return The tree in the file.
+     * @throws IOException If the file cannot be read, or is not a valid
+     *         MappedTree file.
+     */
+    public static MappedTree open(Path file) throws IOException {
+        return open(file, SEGMENT_BITS);
+    }
+
+    /**
+     * Maps a file in segments of the given size.
+     *
+     * @param file The file.
+     * @param segmentBits The base 2 logarithm of the size of a segment,
+     *        at least 2 so that no <code>int</code> spans two segments.
+     * @return The tree in the file.
+     * @throws IOException If the file cannot be read, or is not a valid
+     *         MappedTree file.
+     */
+    static MappedTree open(Path file, int segmentBits) throws IOException {
+    	FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    	try {
+    		long fileSize = channel.size();
+    		long segmentSize = 1L << segmentBits;
+    		int count = (int) ((fileSize + segmentSize - 1) >>> segmentBits);
+
+    		// The mappings remain valid after the channel is closed
+    		ByteBuffer[] segments = new ByteBuffer[Math.max(count, 1)];
+    		segments[0] = ByteBuffer.allocate(0);
+    		for (int i = 0; i < count; i++) {
+    			long start = (long) i << segmentBits;
+    			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+    					Math.min(segmentSize, fileSize - start));
+    		}
+    		return new MappedTree(segments, segmentBits, fileSize, file.toString());
+    	} finally {
+    		channel.close();
+    	}
+    }
+
+    /**
+     * Writes a Tree to a file in the format read by <code>open</code>.
+     *
+     * @param tree The tree to be written.
+     * @param file The file, which is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Tree<String> tree, Path file) throws IOException {
+        write(CompactTree.from(tree), file);
+    }
+
+    /**
+     * Writes a CompactTree to a file in the format read by <code>open</code>.
+     *
+     * @param tree The tree to be written.
+     * @param file The file, which is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(CompactTree<String> tree, Path file) throws IOException {
+        write(tree, null, null, file);
+    }
+
+    /**
+     * Writes an Expression to a file in the format read by <code>open</code>,
+     * with the meaning of each of its values decoded.
+     *
+     * @param expression The Expression to be written.
+     * @param file The file, which is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     * @throws IllegalStateException If the Expression is not <code>WRAPPING</code>,
+     *         as a mapped Expression is evaluated in <code>int</code> arithmetic.
+     */
+    public static void write(Expression expression, Path file) throws IOException {
+    	expression.requireWrapping();
+    	write(CompactTree.from(expression.expressionTree), expression.getVariables(), expression.codes, file);
+    }
+
+    /**
+     * Writes a tree to a file.
+     *
+     * @param tree The tree to be written.
+     * @param variables The variables of the Expression, in order of index,
+     *        or <code>null</code> if the tree is not an Expression.
+     * @param meanings The Expression's code for each node, in preorder, or
+     *        <code>null</code> if the tree is not an Expression.
+     * @param file The file, which is replaced if it exists.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void write(CompactTree<String> tree, List<String> variables, int[] meanings, Path file)
+            throws IOException {
+    	// Number the distinct values in order of first appearance, each
+    	// decoded as the Expression decoded the first node that holds it
+    	Map<String, Integer> indexes = new HashMap<String, Integer>();
+    	List<String> distinct = new ArrayList<String>();
+    	int[] kinds = new int[tree.size()];
+    	int[] operands = new int[tree.size()];
+    	int[] valueIndex = new int[tree.size()];
+    	for (int node = 0; node < tree.size(); node++) {
+    		String value = tree.getValue(node);
+    		Integer index = indexes.get(value);
+    		if (index == null) {
+    			index = distinct.size();
+    			indexes.put(value, index);
+    			distinct.add(value);
+    			if (meanings != null) {decode(meanings[node], tree.getNumberOfChildren(node) > 0, kinds, operands, index);}
+    		}
+    		valueIndex[node] = index;
+    	}
+    	int flags = variables == null ? 0 : EXPRESSION;
+    	if (variables == null) {variables = Collections.emptyList();}
+
+    	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+    	try {
+    		out.writeInt(MAGIC);
+    		out.writeInt(VERSION);
+    		out.writeInt(flags);
+    		out.writeInt(tree.size());
+    		out.writeInt(distinct.size());
+    		out.writeInt(variables.size());
+
+    		for (int node = 0; node < tree.size(); node++) {
+    			out.writeInt(tree.getNumberOfChildren(node));
+    			out.writeInt(tree.getNextSibling(node));
+    			out.writeInt(tree.getParent(node));
+    			out.writeInt(valueIndex[node]);
+    		}
+
+    		byte[][] text = new byte[distinct.size()][];
+    		long offset = 0;
+    		for (int i = 0; i < distinct.size(); i++) {
+    			text[i] = distinct.get(i).getBytes(StandardCharsets.UTF_8);
+    			if (offset + text[i].length > Integer.MAX_VALUE) {
+    				throw new IOException("Values too long for a tree file");
+    			}
+    			out.writeInt((int) offset);
+    			out.writeInt(text[i].length);
+    			offset += text[i].length;
+    			out.writeInt(kinds[i]);
+    			out.writeInt(operands[i]);
+    		}
+
+    		for (String variable : variables) {
+    			out.writeInt(indexes.get(variable));
+    		}
+    		for (byte[] bytes : text) {
+    			out.write(bytes);
+    		}
+    	} finally {
+    		out.close();
+    	}
+    }
+
+    /**
+     * Records the kind and operand of a value from an Expression's code
+     * for a node that holds it.
+     *
+     * @param code The Expression's code for the node.
+     * @param operator Whether the node has children.
+     * @param kinds The kinds of the values.
+     * @param operands The operands of the values.
+     * @param index The index of the value.
+     */
+    private static void decode(int code, boolean operator, int[] kinds, int[] operands, int index) {
+    	if (operator) {
+    		kinds[index] = ADD + code - Expression.ADD;
+    	} else if (code >= 0) {
+    		kinds[index] = CONSTANT;
+    		operands[index] = code;
+    	} else {
+    		kinds[index] = VARIABLE;
+    		operands[index] = ~code;
+    	}
+    }
+
+    /**
+     * Tests whether the file holds an Expression.
+     *
+     * @return <code>true</code> if it was written from an Expression.
+     */
+    public boolean isExpression() {
+        return expression;
+    }
+
+    /**
+     * Returns the number of nodes in the tree.
+     *
+     * @return The number of nodes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the value in the given node.
+     *
+     * @param node A node of the tree, numbered in preorder from 0.
+     * @return The value in the node.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public String getValue(int node) {
+        return value(field(node, 3));
+    }
+
+    /**
+     * Returns the number of children that the given node has.
+     *
+     * @param node A node of the tree.
+     * @return A count of the node's immediate children.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getNumberOfChildren(int node) {
+        return field(node, 0);
+    }
+
+    /**
+     * Returns the <code>index</code>'th child of the given node. This takes
+     * time proportional to <code>index</code>.
+     *
+     * @param node A node of the tree.
+     * @param index The position of the child that is to be returned.
+     * @return The child at that position.
+     * @throws IndexOutOfBoundsException If there is no such node, or if
+     *     <code>index</code> is negative or is greater than or equal to the
+     *     number of children of the node.
+     */
+    public int getChild(int node, int index) {
+    	int count = getNumberOfChildren(node);
+    	if (index < 0 || index >= count) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+    	}
+
+    	int child = node + 1;
+    	for (int i = 0; i < index; i++) {
+    		child = field(child, 1);
+    	}
+    	return child;
+    }
+
+    /**
+     * Returns the first child of the given node.
+     *
+     * @param node A node of the tree.
+     * @return The first child, or <code>NONE</code> for a leaf.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getFirstChild(int node) {
+        return getNumberOfChildren(node) == 0 ? NONE : node + 1;
+    }
+
+    /**
+     * Returns the child of the same parent that follows the given node.
+     *
+     * @param node A node of the tree.
+     * @return The next sibling, or <code>NONE</code> for a last child.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getNextSibling(int node) {
+        return field(node, 1);
+    }
+
+    /**
+     * Returns the parent of the given node.
+     *
+     * @param node A node of the tree.
+     * @return The parent, or <code>NONE</code> for the root.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public int getParent(int node) {
+        return field(node, 2);
+    }
+
+    /**
+     * Reads the whole tree into a new Tree.
+     *
+     * @return The equivalent Tree.
+     */
+    public Tree<String> toTree() {
+    	@SuppressWarnings("unchecked")
+    	Tree<String>[] nodes = (Tree<String>[]) new Tree<?>[size];
+    	for (int node = 0; node < size; node++) {
+    		nodes[node] = new Tree<String>(getValue(node));
+    		if (node > 0) {nodes[getParent(node)].adopt(nodes[node]);}
+    	}
+    	return nodes[0];
+    }
+
+    /**
+     * Returns the names of the variables of the Expression in the file, in
+     * the order of their indices.
+     *
+     * @return The variable names; none if the file does not hold an Expression.
+     */
+    public List<String> getVariables() {
+    	List<String> names = new ArrayList<String>(variableCount);
+    	for (int i = 0; i < variableCount; i++) {
+    		names.add(value(getInt(variablesStart + 4L * i)));
+    	}
+    	return names;
+    }
+
+    /**
+     * Evaluates the Expression in the file, which must not have variables.
+     *
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalStateException If the file does not hold an
+     *         Expression, or if the Expression has variables.
+     */
+    public int evaluate() {
+    	if (expression && variableCount > 0) {
+    		throw new IllegalStateException("Unbound variable: " + getVariables().get(0));
+    	}
+        return evaluate(new int[0]);
+    }
+
+    /**
+     * Evaluates the Expression in the file, reading its nodes straight from
+     * the mapping. The nodes are visited in reverse preorder, so that each
+     * operator finds the values of its operands on top of a stack, the
+     * first operand uppermost.
+     *
+     * @param values The value of each variable, by index.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalArgumentException If there are too few values.
+     * @throws IllegalStateException If the file does not hold an Expression.
+     */
+    public int evaluate(int[] values) {
+    	if (!expression) {throw new IllegalStateException("Not an Expression");}
+    	if (values.length < variableCount) {
+    		throw new IllegalArgumentException("Expected " + variableCount + " values");
+    	}
+
+    	int[] stack = new int[16];
+    	int sp = 0;
+    	for (int node = size - 1; node >= 0; node--) {
+    		long value = valuesStart + (long) field(node, 3) * VALUE_SIZE;
+    		int kind = getInt(value + 8);
+    		int result;
+
+    		if (kind == CONSTANT) {
+    			result = getInt(value + 12);
+    		} else if (kind == VARIABLE) {
+    			result = values[getInt(value + 12)];
+    		} else {
+    			int count = field(node, 0);
+    			result = stack[--sp];
+    			for (int i = 1; i < count; i++) {
+    				int operand = stack[--sp];
+    				switch (kind) {
+    				case ADD:
+    					result += operand;
+    					break;
+    				case SUB:
+    					result -= operand;
+    					break;
+    				case MUL:
+    					result *= operand;
+    					break;
+    				default:
+    					result /= operand;
+    					break;
+    				}
+    			}
+    		}
+
+    		if (sp == stack.length) {stack = Arrays.copyOf(stack, sp * 2);}
+    		stack[sp++] = result;
+    	}
+    	return stack[0];
+    }
+
+    /**
+     * Reads one field of a node's record.
+     *
+     * @param node The node.
+     * @param field The index of the field.
+     * @return The field.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    private int field(int node, int field) {
+    	if (node < 0 || node >= size) {
+    		throw new IndexOutOfBoundsException("Node: " + node + ", Size: " + size);
+    	}
+        return getInt(HEADER_SIZE + (long) node * NODE_SIZE + 4 * field);
+    }
+
+    /**
+     * Returns a value, decoding it from the file the first time.
+     *
+     * @param index The index of the value.
+     * @return The value.
+     */
+    private String value(int index) {
+    	String value = values[index];
+    	if (value != null) {return value;}
+
+    	long record = valuesStart + (long) index * VALUE_SIZE;
+    	long offset = textStart + getInt(record);
+    	byte[] bytes = new byte[getInt(record + 4)];
+    	for (int done = 0; done < bytes.length; ) {
+    		ByteBuffer segment = segments[(int) ((offset + done) >>> segmentBits)].duplicate();
+    		segment.position((int) ((offset + done) & segmentMask));
+    		int n = Math.min(bytes.length - done, segment.remaining());
+    		segment.get(bytes, done, n);
+    		done += n;
+    	}
+
+    	value = new String(bytes, StandardCharsets.UTF_8);
+    	values[index] = value;
+    	return value;
+    }
+
+    /**
+     * Reads an <code>int</code>, which never spans two segments, since
+     * every <code>int</code> in the file is at a multiple of 4.
+     *
+     * @param position The offset of the <code>int</code> in the file.
+     * @return The <code>int</code>.
+     */
+    private int getInt(long position) {
+        return segments[(int) (position >>> segmentBits)].getInt((int) (position & segmentMask));
+    }
+}
@@ -0,0 +1,261 @@
+package tree;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import tree.Instrumentation.Operation;
+
+/**
+ * An Instrumentation Listener that keeps, for each operation, a count,
+ * a latency histogram and the number of nodes and depth of the trees
+ * operated on, all in memory. The metrics can be read directly or, once
+ * registered, over JMX as <code>tree:type=Metrics,operation=parse</code>
+ * and so on. For example:<pre>
+ * MetricsRegistry metrics = new MetricsRegistry();
+ * metrics.registerMBeans();
+ * Instrumentation.install(metrics);</pre>
+ * Recording takes a few atomic updates and does not block.
+ *
+ * @author Anders Schneider
+ */
+public class MetricsRegistry implements Instrumentation.Listener {
+    private final Map<Operation, OperationMetrics> metrics =
+    		new EnumMap<Operation, OperationMetrics>(Operation.class);
+
+    /**
+     * Constructs a registry with every metric zero.
+     */
+    public MetricsRegistry() {
+    	for (Operation operation : Operation.values()) {
+    		metrics.put(operation, new OperationMetrics());
+    	}
+    }
+
+    @Override
+    public void record(Operation operation, long startNanos, long endNanos, int nodes, int depth) {
+        metrics.get(operation).record(endNanos - startNanos, nodes, depth);
+    }
+
+    /**
+     * Returns the metrics of the given operation.
+     *
+     * @param operation The operation.
+     * @return Its metrics, which keep changing as operations are recorded.
+     */
+    public OperationMetrics get(Operation operation) {
+        return metrics.get(operation);
+    }
+
+    /**
+     * Sets every metric of every operation back to zero.
+     */
+    public void reset() {
+    	for (OperationMetrics m : metrics.values()) {
+    		m.reset();
+    	}
+    }
+
+    /**
+     * Registers the metrics of each operation with the platform MBean server.
+     *
+     * @throws JMException If they cannot be registered, for example because
+     *         another registry's are registered already.
+     */
+    public void registerMBeans() throws JMException {
+        registerMBeans(ManagementFactory.getPlatformMBeanServer());
+    }
+
+    /**
+     * Registers the metrics of each operation with the given MBean server.
+     *
+     * @param server The MBean server.
+     * @throws JMException If they cannot be registered.
+     */
+    public void registerMBeans(MBeanServer server) throws JMException {
+    	for (Map.Entry<Operation, OperationMetrics> e : metrics.entrySet()) {
+    		server.registerMBean(e.getValue(), objectName(e.getKey()));
+    	}
+    }
+
+    /**
+     * Unregisters the metrics of each operation from the given MBean server.
+     *
+     * @param server The MBean server.
+     * @throws JMException If they were not registered.
+     */
+    public void unregisterMBeans(MBeanServer server) throws JMException {
+    	for (Operation operation : metrics.keySet()) {
+    		server.unregisterMBean(objectName(operation));
+    	}
+    }
+
+    /**
+     * Returns the JMX name of the metrics of an operation.
+     *
+     * @param operation The operation.
+     * @return The name, for example <code>tree:type=Metrics,operation=parse</code>.
+     * @throws JMException Never; the name is always valid.
+     */
+    public static ObjectName objectName(Operation operation) throws JMException {
+        return new ObjectName("tree:type=Metrics,operation=" + operation.name().toLowerCase());
+    }
+
+    /**
+     * The metrics of one operation.
+     */
+    public static final class OperationMetrics implements OperationMetricsMXBean {
+        // Bucket i holds latencies of i significant bits
+        private final AtomicLongArray histogram = new AtomicLongArray(Long.SIZE + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong totalNodes = new AtomicLong();
+        private final AtomicLong maxNodes = new AtomicLong();
+        private final AtomicLong maxDepth = new AtomicLong();
+
+        /**
+         * Constructs metrics that are all zero.
+         */
+        private OperationMetrics() {}
+
+        /**
+         * Records an operation.
+         *
+         * @param nanos The time it took.
+         * @param nodes The number of nodes in its tree.
+         * @param depth The depth of its tree.
+         */
+        private void record(long nanos, int nodes, int depth) {
+        	nanos = Math.max(nanos, 0);
+        	histogram.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(nanos));
+        	count.incrementAndGet();
+        	totalNanos.addAndGet(nanos);
+        	raise(maxNanos, nanos);
+        	totalNodes.addAndGet(nodes);
+        	raise(maxNodes, nodes);
+        	raise(maxDepth, depth);
+        }
+
+        /**
+         * Raises a maximum to the given value, if it is lower.
+         *
+         * @param max The maximum.
+         * @param value The value.
+         */
+        private static void raise(AtomicLong max, long value) {
+        	long current = max.get();
+        	while (value > current && !max.compareAndSet(current, value)) {
+        		current = max.get();
+        	}
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getTotalNanos() {
+            return totalNanos.get();
+        }
+
+        @Override
+        public double getMeanNanos() {
+        	long n = count.get();
+            return n == 0 ? 0 : (double) totalNanos.get() / n;
+        }
+
+        @Override
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        @Override
+        public long getMedianNanos() {
+            return percentile(0.5);
+        }
+
+        @Override
+        public long getPercentile99Nanos() {
+            return percentile(0.99);
+        }
+
+        /**
+         * Returns the upper bound of the histogram bucket that holds the
+         * given fraction of the operations recorded.
+         *
+         * @param fraction The fraction, from 0 to 1.
+         * @return The latency in nanoseconds, at most the greatest recorded.
+         */
+        private long percentile(double fraction) {
+        	long[] buckets = getLatencyHistogram();
+        	long total = 0;
+        	for (long n : buckets) {
+        		total += n;
+        	}
+        	if (total == 0) {return 0;}
+
+        	long rank = (long) Math.ceil(fraction * total);
+        	long seen = 0;
+        	for (int i = 0; i < buckets.length; i++) {
+        		seen += buckets[i];
+        		if (seen >= rank) {
+        			long bound = i == 0 ? 0 : i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        			return Math.min(bound, maxNanos.get());
+        		}
+        	}
+        	return maxNanos.get();
+        }
+
+        @Override
+        public long[] getLatencyHistogram() {
+        	long[] buckets = new long[histogram.length()];
+        	for (int i = 0; i < buckets.length; i++) {
+        		buckets[i] = histogram.get(i);
+        	}
+            return buckets;
+        }
+
+        @Override
+        public long getTotalNodes() {
+            return totalNodes.get();
+        }
+
+        @Override
+        public int getMaxNodes() {
+            return (int) maxNodes.get();
+        }
+
+        @Override
+        public int getMaxDepth() {
+            return (int) maxDepth.get();
+        }
+
+        @Override
+        public void reset() {
+        	for (int i = 0; i < histogram.length(); i++) {
+        		histogram.set(i, 0);
+        	}
+        	count.set(0);
+        	totalNanos.set(0);
+        	maxNanos.set(0);
+        	totalNodes.set(0);
+        	maxNodes.set(0);
+        	maxDepth.set(0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.0fns p50=%dns p99=%dns max=%dns maxNodes=%d maxDepth=%d",
+            		getCount(), getMeanNanos(), getMedianNanos(), getPercentile99Nanos(),
+            		getMaxNanos(), getMaxNodes(), getMaxDepth());
+        }
+    }
+}
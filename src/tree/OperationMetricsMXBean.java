@@ -0,0 +1,89 @@
+package tree;
+
+/**
+ * The metrics kept by a <code>MetricsRegistry</code> for one instrumented
+ * operation, as seen over JMX. Latencies are in nanoseconds and are kept
+ * in a histogram of power-of-two buckets, so percentiles are given as the
+ * upper bound of the bucket that holds them, at most twice the true value.
+ *
+ * @author Anders Schneider
+ */
+public interface OperationMetricsMXBean {
+
+    /**
+     * Returns the number of operations recorded.
+     *
+     * @return The count.
+     */
+    long getCount();
+
+    /**
+     * Returns the total time taken by the operations recorded.
+     *
+     * @return The total latency in nanoseconds.
+     */
+    long getTotalNanos();
+
+    /**
+     * Returns the mean time taken by an operation.
+     *
+     * @return The mean latency in nanoseconds, or 0 if there were none.
+     */
+    double getMeanNanos();
+
+    /**
+     * Returns the longest time taken by an operation.
+     *
+     * @return The greatest latency in nanoseconds.
+     */
+    long getMaxNanos();
+
+    /**
+     * Returns the median time taken by an operation.
+     *
+     * @return An upper bound of the median latency in nanoseconds.
+     */
+    long getMedianNanos();
+
+    /**
+     * Returns the time within which 99% of the operations completed.
+     *
+     * @return An upper bound of the 99th percentile latency in nanoseconds.
+     */
+    long getPercentile99Nanos();
+
+    /**
+     * Returns the latency histogram. Element <code>i</code> counts the
+     * operations that took from 2<sup>i-1</sup> up to 2<sup>i</sup>
+     * nanoseconds, element 0 those that took none.
+     *
+     * @return The count of operations in each bucket.
+     */
+    long[] getLatencyHistogram();
+
+    /**
+     * Returns the total number of nodes in the trees operated on.
+     *
+     * @return The number of nodes.
+     */
+    long getTotalNodes();
+
+    /**
+     * Returns the number of nodes in the largest tree operated on.
+     *
+     * @return The greatest number of nodes.
+     */
+    int getMaxNodes();
+
+    /**
+     * Returns the depth of the deepest tree operated on.
+     *
+     * @return The greatest depth.
+     */
+    int getMaxDepth();
+
+    /**
+     * Sets every metric back to zero.
+     */
+    void reset();
+}
@@ -0,0 +1,436 @@
+package tree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Simplifies the tree of an <code>Expression</code> without changing its
+ * value. The simplifications are:<ul>
+ * <li>Subtrees without variables are folded into a single constant.</li>
+ * <li>Nested "+" and "*" nodes are flattened into their parent, and all
+ *     of their constant operands are combined into one.</li>
+ * <li>Identities such as <code>+(0 x)</code>, <code>*(1 x)</code>,
+ *     <code>-(x 0)</code> and <code>/(x 1)</code> are reduced to <code>x</code>,
+ *     and <code>-(x x)</code> to <code>0</code>.</li>
+ * <li><code>*(0 ...)</code> is reduced to <code>0</code>.</li></ul>
+ * A division by zero that the original Expression would have performed is
+ * never folded or removed, so the simplified Expression still throws
+ * <code>ArithmeticException</code> wherever the original would.
+ * <p>
+ * Since Expressions cannot contain negative literals, a negative constant
+ * <code>-n</code> is written <code>-(0 n)</code>.
+ *
+ * @author Anders Schneider
+ */
+final class Optimizer {
+
+    private Optimizer() {}
+
+    /**
+     * Returns a simplified copy of the given Tree, which must represent a
+     * valid Expression. The given Tree is not changed. Each node is
+     * simplified after its children, without recursion, so trees of any
+     * depth can be simplified.
+     *
+     * @param tree The tree to be simplified.
+     * @return A tree with the same value, and usually fewer nodes.
+     */
+    static Tree<String> simplify(Tree<String> tree) {
+    	// The simplified children of the nodes on the path, in order
+    	List<Simple> done = new ArrayList<Simple>();
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.getNumberOfChildren()) {
+    			path.push(node.getChild(i));
+    		} else {
+    			path.pop();
+    			List<Simple> children = done.subList(done.size() - i, done.size());
+    			Simple simple = simplify(node.getValue(), children);
+    			children.clear();
+    			done.add(simple);
+    		}
+    	}
+    	return done.get(0).toTree();
+    }
+
+    /**
+     * A simplified subtree. A "+" or "*" node, and a difference
+     * <code>x - n</code> of a non-constant and a constant, are not built
+     * until a parent that cannot take them apart needs them as a Tree. A
+     * parent with the same operator takes over the list of operands instead
+     * of copying it, and a "+" parent adds <code>-n</code> to its constant,
+     * so every node of the result is built once, and no operand is ever the
+     * child of a node that is thrown away.
+     */
+    private static final class Simple {
+        private Tree<String> tree;
+
+        // A "+" or "*" node: its constant and its other operands
+        private boolean add;
+        private int constant;
+        private ArrayDeque<Tree<String>> operands;
+
+        // A difference: minuend - subtrahend
+        private Simple minuend;
+        private Tree<String> subtrahend;
+
+        /**
+         * Constructs a Simple that is already a Tree.
+         *
+         * @param tree The tree.
+         */
+        Simple(Tree<String> tree) {
+        	this.tree = tree;
+        }
+
+        /**
+         * Constructs a Simple for a "+" or "*" node.
+         *
+         * @param add <code>true</code> for "+", <code>false</code> for "*".
+         * @param constant The product or sum of its constant operands.
+         * @param operands Its non-constant operands; there must be at least one.
+         */
+        Simple(boolean add, int constant, ArrayDeque<Tree<String>> operands) {
+        	this.add = add;
+        	this.constant = constant;
+        	this.operands = operands;
+        }
+
+        /**
+         * Constructs a Simple for a difference of a non-constant and a
+         * constant.
+         *
+         * @param minuend The non-constant.
+         * @param subtrahend The constant.
+         */
+        Simple(Simple minuend, Tree<String> subtrahend) {
+        	this.minuend = minuend;
+        	this.subtrahend = subtrahend;
+        }
+
+        /**
+         * Tests whether this is a "+" or "*" node that has not been built.
+         *
+         * @param add <code>true</code> for "+", <code>false</code> for "*".
+         * @return <code>true</code> iff its operands can be taken over.
+         */
+        boolean isFlat(boolean add) {
+        	return this.tree == null && this.operands != null && this.add == add;
+        }
+
+        /**
+         * Tests whether this is a difference that has not been built.
+         *
+         * @return <code>true</code> iff it is <code>x - n</code>.
+         */
+        boolean isDifference() {
+        	return this.tree == null && this.minuend != null;
+        }
+
+        /**
+         * Returns the value of this subtree if it is a constant.
+         *
+         * @return Its value, or <code>null</code> if it is not constant.
+         */
+        Integer constantValue() {
+        	// A node still kept as operands, or as a difference, is never constant
+        	return this.tree == null ? null : Optimizer.constantValue(this.tree);
+        }
+
+        /**
+         * Builds this subtree, if it has not been built, and returns it.
+         *
+         * @return The tree.
+         */
+        Tree<String> toTree() {
+        	if (this.tree != null) {return this.tree;}
+
+        	// Differences can be nested to any depth, so build them bottom up
+        	List<Simple> differences = new ArrayList<Simple>();
+        	Simple simple = this;
+        	while (simple.isDifference()) {
+        		differences.add(simple);
+        		simple = simple.minuend;
+        	}
+        	if (simple.tree == null) {
+        		simple.tree = node(simple.add, simple.constant, simple.operands);
+        		simple.operands = null;
+        	}
+        	Tree<String> result = simple.tree;
+        	for (int i = differences.size() - 1; i >= 0; i--) {
+        		Simple difference = differences.get(i);
+        		result = new Tree<String>("-", result, difference.subtrahend);
+        		difference.tree = result;
+        	}
+        	return result;
+        }
+    }
+
+    /**
+     * Simplifies a node whose children have been simplified.
+     *
+     * @param val The value of the node.
+     * @param children Its simplified children.
+     * @return The simplified node.
+     */
+    private static Simple simplify(String val, List<Simple> children) {
+    	if ("+".equals(val) || "*".equals(val)) {
+    		return simplifyAssociative(children, "+".equals(val));
+    	} else if ("-".equals(val)) {
+    		return simplifySubtract(children.get(0), children.get(1));
+    	} else if ("/".equals(val)) {
+    		return simplifyDivide(children.get(0), children.get(1));
+    	} else {
+    		return new Simple(new Tree<String>(val));
+    	}
+    }
+
+    /**
+     * Simplifies a "+" or "*" node whose children have been simplified.
+     * The longest list of operands among its children with the same operator
+     * is taken over, and the operands of the others are added to its ends,
+     * so that flattening a chain of n nodes of either shape moves each
+     * operand only O(log n) times.
+     *
+     * @param children The simplified children of the node.
+     * @param add <code>true</code> for "+", <code>false</code> for "*".
+     * @return The simplified node.
+     */
+    private static Simple simplifyAssociative(List<Simple> children, boolean add) {
+    	int constant = add ? 0 : 1;
+    	int longest = -1;
+    	for (int i = 0; i < children.size(); i++) {
+    		Simple child = children.get(i);
+    		if (add) {
+    			// x - n adds -n to the sum, and x to its operands
+    			while (child.isDifference()) {
+    				constant -= constantValue(child.subtrahend);
+    				child = child.minuend;
+    			}
+    			children.set(i, child);
+    		}
+    		if (child.isFlat(add) && (longest < 0
+    				|| child.operands.size() > children.get(longest).operands.size())) {
+    			longest = i;
+    		}
+    	}
+
+    	ArrayDeque<Tree<String>> operands;
+    	if (longest < 0) {
+    		operands = new ArrayDeque<Tree<String>>();
+    	} else {
+    		Simple base = children.get(longest);
+    		operands = base.operands;
+    		constant = add ? constant + base.constant : constant * base.constant;
+    	}
+    	// Operands before the longest list go on its front, last first
+    	for (int i = longest - 1; i >= 0; i--) {
+    		constant = absorb(add, constant, children.get(i), operands, true);
+    	}
+    	for (int i = longest + 1; i < children.size(); i++) {
+    		constant = absorb(add, constant, children.get(i), operands, false);
+    	}
+
+    	if (!add && constant == 0 && !canThrow(operands)) {return new Simple(literal(0));}
+    	if (operands.isEmpty()) {return new Simple(literal(constant));}
+    	return new Simple(add, constant, operands);
+    }
+
+    /**
+     * Adds a simplified child to a "+" or "*" node under construction. The
+     * operands of a child with the same operator are added to the node's,
+     * and its constant to the node's constant.
+     *
+     * @param add <code>true</code> for "+", <code>false</code> for "*".
+     * @param constant The node's constant so far.
+     * @param child The child to be added.
+     * @param operands The node's non-constant operands so far.
+     * @param front <code>true</code> to add to the front of <code>operands</code>.
+     * @return The node's new constant.
+     */
+    private static int absorb(boolean add, int constant, Simple child,
+            ArrayDeque<Tree<String>> operands, boolean front) {
+    	if (!child.isFlat(add)) {
+    		return combine(add, constant, child.toTree(), operands, front);
+    	}
+
+    	if (front) {
+    		Iterator<Tree<String>> it = child.operands.descendingIterator();
+    		while (it.hasNext()) {
+    			operands.addFirst(it.next());
+    		}
+    	} else {
+    		operands.addAll(child.operands);
+    	}
+    	return add ? constant + child.constant : constant * child.constant;
+    }
+
+    /**
+     * Adds an operand to a "+" or "*" node under construction, folding it
+     * into the node's constant if it is a constant.
+     *
+     * @param add <code>true</code> for "+", <code>false</code> for "*".
+     * @param constant The node's constant so far.
+     * @param operand The operand to be added.
+     * @param operands The node's non-constant operands so far.
+     * @param front <code>true</code> to add to the front of <code>operands</code>.
+     * @return The node's new constant.
+     */
+    private static int combine(boolean add, int constant, Tree<String> operand,
+            ArrayDeque<Tree<String>> operands, boolean front) {
+    	Integer value = constantValue(operand);
+    	if (value == null) {
+    		if (front) {operands.addFirst(operand);} else {operands.addLast(operand);}
+    		return constant;
+    	}
+    	return add ? constant + value : constant * value;
+    }
+
+    /**
+     * Builds a "+" or "*" node, or returns its only operand. The operands
+     * have not been made children of any other node, so they are adopted
+     * without a cycle check.
+     *
+     * @param add <code>true</code> for "+", <code>false</code> for "*".
+     * @param constant The product or sum of its constant operands.
+     * @param operands Its non-constant operands; there must be at least one.
+     * @return The node.
+     */
+    private static Tree<String> node(boolean add, int constant, ArrayDeque<Tree<String>> operands) {
+    	if (add && constant < 0 && constant != Integer.MIN_VALUE) {
+    		// x + -n is better written x - n
+    		return new Tree<String>("-", node(add, 0, operands), literal(-constant));
+    	}
+    	if (constant != (add ? 0 : 1)) {
+    		operands.addFirst(literal(constant));
+    	}
+    	if (operands.size() == 1) {return operands.getFirst();}
+
+    	Tree<String> result = new Tree<String>(add ? "+" : "*");
+    	for (Tree<String> operand : operands) {
+    		result.adopt(operand);
+    	}
+    	return result;
+    }
+
+    /**
+     * Simplifies a "-" node whose operands have been simplified.
+     *
+     * @param a The left operand.
+     * @param b The right operand.
+     * @return The simplified node.
+     */
+    private static Simple simplifySubtract(Simple a, Simple b) {
+    	Integer x = a.constantValue();
+    	Integer y = b.constantValue();
+
+    	if (x != null && y != null) {return new Simple(literal(x - y));}
+    	if (y != null && y == 0) {return a;}
+    	if (y != null) {
+    		// (x + c) - n is x + (c - n)
+    		if (a.isFlat(true)) {return new Simple(true, a.constant - y, a.operands);}
+    		return new Simple(a, b.toTree());
+    	}
+    	if (a.toTree().equals(b.toTree()) && !canThrow(a.toTree())) {return new Simple(literal(0));}
+    	return new Simple(new Tree<String>("-", a.toTree(), b.toTree()));
+    }
+
+    /**
+     * Simplifies a "/" node whose operands have been simplified.
+     *
+     * @param a The dividend.
+     * @param b The divisor.
+     * @return The simplified node.
+     */
+    private static Simple simplifyDivide(Simple a, Simple b) {
+    	Integer x = a.constantValue();
+    	Integer y = b.constantValue();
+
+    	// Division by a constant zero is left for evaluate() to report
+    	if (x != null && y != null && y != 0) {return new Simple(literal(x / y));}
+    	if (y != null && y == 1) {return a;}
+    	return new Simple(new Tree<String>("/", a.toTree(), b.toTree()));
+    }
+
+    /**
+     * Returns the value of the given simplified tree if it is a constant,
+     * as written by <code>literal(int)</code>: a literal, a "-" of two
+     * literals, or the "-" that writes <code>Integer.MIN_VALUE</code>.
+     *
+     * @param tree A simplified tree.
+     * @return Its value, or <code>null</code> if it is not constant.
+     */
+    private static Integer constantValue(Tree<String> tree) {
+    	String val = tree.getValue();
+
+    	if (tree.getNumberOfChildren() == 0) {
+    		// Any leaf of a valid Expression that is not a variable is a literal,
+    		// written as Integer.parseInt reads it, such as +5 or -0
+    		return Expression.isVariable(val) ? null : Integer.valueOf(val);
+    	}
+    	if ("-".equals(val) && tree.getChild(1).getNumberOfChildren() == 0) {
+    		// Only literal(Integer.MIN_VALUE) has a "-" as its left operand, so
+    		// nothing below that is looked at
+    		Tree<String> a = tree.getChild(0);
+    		Integer x = a.getNumberOfChildren() == 0 || a.getChild(0).getNumberOfChildren() == 0
+    				? constantValue(a) : null;
+    		Integer y = constantValue(tree.getChild(1));
+    		if (x != null && y != null) {return x - y;}
+    	}
+    	return null;
+    }
+
+    /**
+     * Returns a tree representing the given constant.
+     *
+     * @param value The constant.
+     * @return A leaf if <code>value</code> is not negative, otherwise a
+     *         subtraction from zero.
+     */
+    private static Tree<String> literal(int value) {
+    	if (value >= 0) {
+    		return new Tree<String>(String.valueOf(value));
+    	} else if (value == Integer.MIN_VALUE) {
+    		return new Tree<String>("-", literal(-Integer.MAX_VALUE), literal(1));
+    	} else {
+    		return new Tree<String>("-", literal(0), literal(-value));
+    	}
+    }
+
+    /**
+     * Tests whether evaluating any of the given trees might divide by zero.
+     *
+     * @param trees Simplified trees.
+     * @return <code>true</code> unless none of them can throw.
+     */
+    private static boolean canThrow(Collection<Tree<String>> trees) {
+    	for (Tree<String> t : trees) {
+    		if (canThrow(t)) {return true;}
+    	}
+    	return false;
+    }
+
+    /**
+     * Tests whether evaluating the given tree might divide by zero, that is,
+     * whether it divides by anything but a non-zero constant.
+     *
+     * @param tree A simplified tree.
+     * @return <code>true</code> unless it cannot throw.
+     */
+    private static boolean canThrow(Tree<String> tree) {
+    	for (Tree<String> node : tree.preorder()) {
+    		if ("/".equals(node.getValue())) {
+    			Integer divisor = constantValue(node.getChild(1));
+    			if (divisor == null || divisor == 0) {return true;}
+    		}
+    	}
+    	return false;
+    }
+}
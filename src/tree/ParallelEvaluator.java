@@ -0,0 +1,438 @@
+package tree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Evaluates large Expressions on a <code>ForkJoinPool</code>, splitting the
+ * work among subtrees, or among ranges of the operands of wide "+" and "*"
+ * nodes, whenever they hold at least a threshold number of nodes. Smaller
+ * pieces are evaluated sequentially, by a loop over their nodes in
+ * postorder.
+ * <p>
+ * The size of every subtree, and the running total of sizes across the
+ * operands of every node, are computed once when the evaluator is built,
+ * so each splitting decision is a subtraction and each split point a
+ * binary search. Since <code>int</code> addition and multiplication wrap
+ * around and are associative, the result is bit-for-bit that of
+ * <code>Expression.evaluate()</code>, overflow included. Nothing recurses
+ * once per level of the tree, so Expressions of any depth can be evaluated.
+ *
+ * @author Anders Schneider
+ */
+public final class ParallelEvaluator implements Evaluator {
+
+    /** The default number of nodes below which work is not split. */
+    public static final int DEFAULT_THRESHOLD = 10000;
+
+    private static final int CONSTANT = 0;
+    private static final int LOAD = 1;
+    private static final int ADD = 2;
+    private static final int SUB = 3;
+    private static final int MUL = 4;
+    private static final int DIV = 5;
+    private static final int[] NO_VALUES = new int[0];
+
+    private final Node root;
+    // The operator of each node, in postorder
+    private final int[] ops;
+    // The constant, the variable index, or the number of operands
+    private final int[] operands;
+    private final String[] variables;
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * Constructs a ParallelEvaluator.
+     *
+     * @param root The root of the mirrored expression tree.
+     * @param ops The operator of each node, in postorder.
+     * @param operands The operand of each node, in postorder.
+     * @param variables The names of the variables, by index.
+     * @param pool Where the work is done.
+     * @param threshold The smallest number of nodes worth splitting.
+     */
+    private ParallelEvaluator(Node root, int[] ops, int[] operands, String[] variables,
+            ForkJoinPool pool, int threshold) {
+        this.root = root;
+        this.ops = ops;
+        this.operands = operands;
+        this.variables = variables;
+        this.pool = pool;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Builds a ParallelEvaluator for the given Tree, which must represent a
+     * valid Expression. The tree is mirrored without recursion, each node
+     * after its children.
+     *
+     * @param tree The tree to be compiled.
+     * @param slots The index of each variable in the tree.
+     * @param pool Where the work is done, or <code>null</code> for a shared pool.
+     * @param threshold The smallest number of nodes worth splitting.
+     * @return The ParallelEvaluator.
+     * @throws IllegalArgumentException If <code>threshold</code> is less than 2.
+     */
+    static ParallelEvaluator compile(Tree<String> tree, Map<String, Integer> slots,
+            ForkJoinPool pool, int threshold) {
+    	if (threshold < 2) {throw new IllegalArgumentException("Threshold too small: " + threshold);}
+
+    	int[] ops = new int[16];
+    	int[] operands = new int[16];
+    	int count = 0;
+    	// The mirrored children of the nodes on the path, in order
+    	List<Node> done = new ArrayList<Node>();
+    	TreePath<String> path = new TreePath<String>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<String> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.getNumberOfChildren()) {
+    			path.push(node.getChild(i));
+    			continue;
+    		}
+    		path.pop();
+
+    		String val = node.getValue();
+    		int op;
+    		int operand = i;
+    		if (i == 0) {
+    			if (slots.containsKey(val)) {
+    				op = LOAD;
+    				operand = slots.get(val);
+    			} else {
+    				op = CONSTANT;
+    				operand = Integer.parseInt(val);
+    			}
+    		} else if ("+".equals(val)) {
+    			op = ADD;
+    		} else if ("*".equals(val)) {
+    			op = MUL;
+    		} else if ("-".equals(val)) {
+    			op = SUB;
+    		} else {
+    			op = DIV;
+    		}
+
+    		if (count == ops.length) {
+    			ops = Arrays.copyOf(ops, count * 2);
+    			operands = Arrays.copyOf(operands, count * 2);
+    		}
+    		ops[count] = op;
+    		operands[count] = operand;
+
+    		List<Node> children = done.subList(done.size() - i, done.size());
+    		Node mirror = new Node(op, children.toArray(new Node[i]), count++);
+    		children.clear();
+    		done.add(mirror);
+    	}
+
+    	return new ParallelEvaluator(done.get(0), ops, operands,
+    			slots.keySet().toArray(new String[slots.size()]),
+    			pool == null ? SharedPool.POOL : pool, threshold);
+    }
+
+    /**
+     * Evaluates the Expression, which must not have any variables.
+     *
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalStateException If the Expression has variables.
+     */
+    @Override
+    public int evaluate() {
+    	if (variables.length > 0) {
+    		throw new IllegalStateException("Unbound variable: " + variables[0]);
+    	}
+        return evaluate(NO_VALUES);
+    }
+
+    /**
+     * Evaluates the Expression with the given variable values, in parallel
+     * if it is at least as large as the threshold.
+     *
+     * @param values The value of each variable, by index.
+     * @return The value of the Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    @Override
+    public int evaluate(int[] values) {
+    	if (root.size < threshold) {return evaluate(root, values);}
+
+        return pool.invoke(new Task(root, 0, root.children.length, values, false));
+    }
+
+    /**
+     * Returns the number of nodes in the Expression.
+     *
+     * @return The size of the Expression.
+     */
+    public int size() {
+        return root.size;
+    }
+
+    /**
+     * Evaluates a subtree sequentially.
+     *
+     * @param node The root of the subtree.
+     * @param values The value of each variable, by index.
+     * @return The value of the subtree.
+     */
+    private int evaluate(Node node, int[] values) {
+        return evaluate(node.start, node.start + node.size, node.op, values);
+    }
+
+    /**
+     * Applies a node's operator, sequentially, to a range of its children.
+     *
+     * @param node The node.
+     * @param lo The index of the first child in the range.
+     * @param hi The index after the last child in the range.
+     * @param values The value of each variable, by index.
+     * @return The result of the operator over the range.
+     */
+    private int evaluate(Node node, int lo, int hi, int[] values) {
+        return evaluate(node.start + node.prefix[lo], node.start + node.prefix[hi], node.op, values);
+    }
+
+    /**
+     * Evaluates, in one loop, the nodes with postorder numbers in a range
+     * that holds one or more whole subtrees side by side, and combines the
+     * values of those subtrees with an operator.
+     *
+     * @param from The number of the first node.
+     * @param to The number after that of the last node.
+     * @param op The operator, used if there is more than one subtree.
+     * @param values The value of each variable, by index.
+     * @return The combined value of the subtrees.
+     */
+    private int evaluate(int from, int to, int op, int[] values) {
+    	int[] stack = new int[to - from];
+    	int top = 0;
+
+    	for (int k = from; k < to; k++) {
+    		switch (ops[k]) {
+    		case CONSTANT:
+    			stack[top++] = operands[k];
+    			break;
+    		case LOAD:
+    			stack[top++] = values[operands[k]];
+    			break;
+    		default:
+    			// The values of the node's operands are on top of the stack
+    			int base = top - operands[k];
+    			stack[base] = combine(ops[k], stack, base, top);
+    			top = base + 1;
+    		}
+    	}
+        return combine(op, stack, 0, top);
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * A node of the expression tree, with the range of its subtree in
+     * postorder and its size cached.
+     */
+    private static class Node {
+        final int op;
+        final Node[] children;
+        // prefix[i] is the total size of children[0] to children[i - 1]
+        final int[] prefix;
+        final int size;
+        // The postorder number of the first node of this subtree
+        final int start;
+
+        /**
+         * Mirrors a node whose children have been mirrored.
+         *
+         * @param op The node's operator.
+         * @param children The mirrored children.
+         * @param number The node's postorder number.
+         */
+        Node(int op, Node[] children, int number) {
+        	this.op = op;
+        	this.children = children;
+        	prefix = new int[children.length + 1];
+        	for (int i = 0; i < children.length; i++) {
+        		prefix[i + 1] = prefix[i] + children[i].size;
+        	}
+        	size = prefix[children.length] + 1;
+        	start = number + 1 - size;
+        }
+
+        /**
+         * Returns the total size of a range of this node's children.
+         *
+         * @param lo The index of the first child in the range.
+         * @param hi The index after the last child in the range.
+         * @return The number of nodes below the range.
+         */
+        int size(int lo, int hi) {
+            return prefix[hi] - prefix[lo];
+        }
+
+        /**
+         * Returns the index that divides a range of children into two parts
+         * of about the same total size, each with at least one child.
+         *
+         * @param lo The index of the first child in the range.
+         * @param hi The index after the last child in the range.
+         * @return The index of the first child of the second part.
+         */
+        int split(int lo, int hi) {
+        	int half = prefix[lo] + size(lo, hi) / 2;
+        	int a = lo + 1;
+        	int b = hi - 1;
+
+        	while (a < b) {
+        		int mid = (a + b) >>> 1;
+        		if (prefix[mid] < half) {
+        			a = mid + 1;
+        		} else {
+        			b = mid;
+        		}
+        	}
+        	return a;
+        }
+    }
+
+    /**
+     * Combines two operand values.
+     *
+     * @param op The operator.
+     * @param left The left operand.
+     * @param right The right operand.
+     * @return The result.
+     */
+    private static int combine(int op, int left, int right) {
+    	switch (op) {
+    	case ADD:
+    		return left + right;
+    	case MUL:
+    		return left * right;
+    	case SUB:
+    		return left - right;
+    	default:
+    		return left / right;
+    	}
+    }
+
+    /**
+     * Combines a run of operand values, from left to right.
+     *
+     * @param op The operator.
+     * @param values The operand values.
+     * @param from The index of the first value.
+     * @param to The index after the last value.
+     * @return The result.
+     */
+    private static int combine(int op, int[] values, int from, int to) {
+    	int result = values[from];
+    	for (int i = from + 1; i < to; i++) {
+    		result = combine(op, result, values[i]);
+    	}
+    	return result;
+    }
+
+    /**
+     * Applies a node's operator to a range of its children, splitting the
+     * range in two, or descending into a single large child, while there is
+     * at least a threshold number of nodes to evaluate. The smaller part of
+     * each split is forked, or evaluated at once if it is below the
+     * threshold, and the larger part is evaluated in the same loop, so tasks
+     * nest only as deep as the number of times the tree can be halved.
+     */
+    private class Task extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final int lo;
+        private final int hi;
+        private final int[] values;
+        private final boolean first;
+
+        /**
+         * Constructs a Task.
+         *
+         * @param node The node whose operator is applied.
+         * @param lo The index of the first child in the range.
+         * @param hi The index after the last child in the range.
+         * @param values The value of each variable, by index.
+         * @param first Whether the range comes before the rest of the range
+         *        it was split from.
+         */
+        Task(Node node, int lo, int hi, int[] values, boolean first) {
+            this.node = node;
+            this.lo = lo;
+            this.hi = hi;
+            this.values = values;
+            this.first = first;
+        }
+
+        @Override
+        protected Integer compute() {
+        	Node node = this.node;
+        	int lo = this.lo;
+        	int hi = this.hi;
+        	// The parts split off so far, combined with the rest once its value is known
+        	ArrayDeque<Task> parts = new ArrayDeque<Task>();
+        	int result;
+
+        	while (true) {
+        		if (hi - lo == 1) {
+        			Node child = node.children[lo];
+        			if (child.size < threshold || child.children.length == 0) {
+        				result = evaluate(child, values);
+        				break;
+        			}
+        			node = child;
+        			lo = 0;
+        			hi = child.children.length;
+        		} else if (node.size(lo, hi) < threshold) {
+        			result = evaluate(node, lo, hi, values);
+        			break;
+        		} else {
+        			// For "-" and "/" the range is two children, so this splits them
+        			int mid = node.split(lo, hi);
+        			Task part;
+        			if (node.size(lo, mid) < node.size(mid, hi)) {
+        				part = new Task(node, lo, mid, values, true);
+        				lo = mid;
+        			} else {
+        				part = new Task(node, mid, hi, values, false);
+        				hi = mid;
+        			}
+        			// A part too small to be worth a thread of its own is evaluated now
+        			if (part.node.size(part.lo, part.hi) < threshold) {
+        				part.invoke();
+        			} else {
+        				part.fork();
+        			}
+        			parts.push(part);
+        		}
+        	}
+
+        	while (!parts.isEmpty()) {
+        		Task part = parts.pop();
+        		int other = part.join();
+        		result = part.first ? combine(part.node.op, other, result) : combine(part.node.op, result, other);
+        	}
+        	return result;
+        }
+    }
+
+    /**
+     * Holds the pool used when none is given, created on first use.
+     */
+    private static class SharedPool {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+}
@@ -0,0 +1,538 @@
+package tree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable Tree. Instead of changing a tree, each edit returns a new
+ * root, copying only the nodes on the path from the root to the change and
+ * sharing every other subtree with the original, for example:<pre>
+ * PersistentTree&lt;String&gt; t = PersistentTree.from(Tree.parse("a (b (c d) e)"));
+ * PersistentTree&lt;String&gt; u = t.replace(new int[] {0, 1}, PersistentTree.of("x"));
+ * // t is still a (b (c d) e); u is a (b (c x) e), and shares e with t</pre>
+ * Since nothing about a PersistentTree ever changes, it can be shared
+ * between threads and read concurrently without locking or copying.
+ * <p>
+ * Equal PersistentTrees and Trees have equal hash codes, and their
+ * <code>toString()</code> forms are the same.
+ *
+ * @author Anders Schneider
+ * @param <V> The type of value held in each node.
+ */
+public final class PersistentTree<V> implements Iterable<PersistentTree<V>> {
+    private static final PersistentTree<?>[] NO_CHILDREN = new PersistentTree<?>[0];
+
+    private final V value;
+    private final PersistentTree<V>[] children;
+    private final int hash;
+
+    /**
+     * Constructs a node, taking ownership of the array of children.
+     *
+     * @param value The value of the node.
+     * @param children The children, which must not be changed afterwards.
+     */
+    private PersistentTree(V value, PersistentTree<V>[] children) {
+        this.value = value;
+        this.children = children;
+
+        int h = value == null ? 0 : value.hashCode();
+        for (PersistentTree<V> child : children) {
+        	h = 31 * h + child.hash;
+        }
+        this.hash = h;
+    }
+
+    /**
+     * Returns a PersistentTree with the given value in the root node,
+     * having the given children.
+     *
+     * @param value The value to be put in the root.
+     * @param children The immediate children of the root.
+     * @return The PersistentTree.
+     */
+    @SafeVarargs
+    public static <V> PersistentTree<V> of(V value, PersistentTree<V>... children) {
+    	for (PersistentTree<V> child : children) {
+    		if (child == null) {throw new NullPointerException("Null child");}
+    	}
+        return new PersistentTree<V>(value, children.length == 0 ? PersistentTree.<V>none() : children.clone());
+    }
+
+    /**
+     * Returns a PersistentTree with the same shape and values as the given
+     * Tree. A subtree that occurs more than once in the Tree is converted
+     * only once, and is shared in the result too.
+     *
+     * @param tree The Tree to be converted.
+     * @return The equivalent PersistentTree.
+     */
+    public static <V> PersistentTree<V> from(Tree<V> tree) {
+    	Map<Tree<V>, PersistentTree<V>> shared = new IdentityHashMap<Tree<V>, PersistentTree<V>>();
+    	// The converted children of the nodes on the path, in order
+    	ArrayList<PersistentTree<V>> done = new ArrayList<PersistentTree<V>>();
+
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int numChil = node.getNumberOfChildren();
+    		int i = path.advance();
+
+    		if (i < numChil) {
+    			Tree<V> child = node.getChild(i);
+    			PersistentTree<V> converted = shared.get(child);
+    			if (converted != null) {
+    				done.add(converted);
+    			} else {
+    				path.push(child);
+    			}
+    			continue;
+    		}
+
+    		// All the children of the node are at the end of the list
+    		PersistentTree<V>[] children = none();
+    		if (numChil > 0) {
+    			children = newArray(numChil);
+    			for (int j = numChil - 1; j >= 0; j--) {
+    				children[j] = done.remove(done.size() - 1);
+    			}
+    		}
+    		PersistentTree<V> converted = new PersistentTree<V>(node.getValue(), children);
+    		if (node.isShared()) {shared.put(node, converted);}
+    		done.add(converted);
+    		path.pop();
+    	}
+
+    	return done.get(0);
+    }
+
+    /**
+     * Returns a new, mutable Tree with the same shape and values as this
+     * one. A subtree that occurs more than once in this tree is copied
+     * each time it occurs.
+     *
+     * @return The equivalent Tree.
+     */
+    public Tree<V> toTree() {
+    	Tree.Builder<V> builder = new Tree.Builder<V>(value);
+    	Path<V> path = new Path<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		PersistentTree<V> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.children.length) {
+    			PersistentTree<V> child = node.children[i];
+    			if (child.children.length == 0) {
+    				builder.leaf(child.value);
+    			} else {
+    				builder.begin(child.value);
+    				path.push(child);
+    			}
+    		} else {
+    			path.pop();
+    			if (!path.isEmpty()) {builder.end();}
+    		}
+    	}
+    	return builder.build();
+    }
+
+    /**
+     * Returns the value in this node.
+     *
+     * @return The value in this node.
+     */
+    public V getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the number of children that this node has.
+     *
+     * @return A count of this node's immediate children.
+     */
+    public int getNumberOfChildren() {
+        return children.length;
+    }
+
+    /**
+     * Returns the <code>index</code>'th child of this node.
+     *
+     * @param index The position of the child that is to be returned.
+     * @return The child at that position.
+     * @throws IndexOutOfBoundsException If <code>index</code> is negative or
+     *     is greater than or equal to the number of children of this node.
+     */
+    public PersistentTree<V> getChild(int index) {
+    	checkIndex(index, children.length);
+        return children[index];
+    }
+
+    /**
+     * Returns the node reached from this one by following the given path.
+     *
+     * @param path The index of the child to descend to at each level.
+     * @return The node at the end of the path; this node if it is empty.
+     * @throws IndexOutOfBoundsException If there is no such node.
+     */
+    public PersistentTree<V> get(int... path) {
+    	PersistentTree<V> node = this;
+    	for (int index : path) {
+    		node = node.getChild(index);
+    	}
+    	return node;
+    }
+
+    /**
+     * Returns an iterator for the children of this node.
+     *
+     * @return An iterator for this node's immediate children.
+     */
+    @Override
+    public Iterator<PersistentTree<V>> iterator() {
+    	return new Iterator<PersistentTree<V>>() {
+    		private int next = 0;
+
+    		@Override
+    		public boolean hasNext() {
+    			return next < children.length;
+    		}
+
+    		@Override
+    		public PersistentTree<V> next() {
+    			if (next == children.length) {throw new NoSuchElementException();}
+    			return children[next++];
+    		}
+
+    		@Override
+    		public void remove() {
+    			throw new UnsupportedOperationException();
+    		}
+    	};
+    }
+
+    /**
+     * Returns a copy of this node with the given value and the same children.
+     *
+     * @param newValue The value of the copy.
+     * @return The new node.
+     */
+    public PersistentTree<V> withValue(V newValue) {
+        return new PersistentTree<V>(newValue, children);
+    }
+
+    /**
+     * Returns a copy of this node with its <code>index</code>'th child
+     * replaced.
+     *
+     * @param index The position of the child to be replaced.
+     * @param child The new child.
+     * @return The new node.
+     * @throws IndexOutOfBoundsException If there is no such child.
+     */
+    public PersistentTree<V> withChild(int index, PersistentTree<V> child) {
+    	checkIndex(index, children.length);
+    	if (child == null) {throw new NullPointerException("Null child");}
+
+    	PersistentTree<V>[] copy = children.clone();
+    	copy[index] = child;
+        return new PersistentTree<V>(value, copy);
+    }
+
+    /**
+     * Returns a copy of this node with a child inserted as its
+     * <code>index</code>'th child.
+     *
+     * @param index The position of the new child.
+     * @param child The new child.
+     * @return The new node.
+     * @throws IndexOutOfBoundsException If <code>index</code> is negative or
+     *     is greater than the number of children of this node.
+     */
+    public PersistentTree<V> withChildAdded(int index, PersistentTree<V> child) {
+    	checkIndex(index, children.length + 1);
+    	if (child == null) {throw new NullPointerException("Null child");}
+
+    	PersistentTree<V>[] copy = newArray(children.length + 1);
+    	System.arraycopy(children, 0, copy, 0, index);
+    	copy[index] = child;
+    	System.arraycopy(children, index, copy, index + 1, children.length - index);
+        return new PersistentTree<V>(value, copy);
+    }
+
+    /**
+     * Returns a copy of this node with a child added after its others.
+     *
+     * @param child The new child.
+     * @return The new node.
+     */
+    public PersistentTree<V> withChildAdded(PersistentTree<V> child) {
+        return withChildAdded(children.length, child);
+    }
+
+    /**
+     * Returns a copy of this node without its <code>index</code>'th child.
+     *
+     * @param index The position of the child to be removed.
+     * @return The new node.
+     * @throws IndexOutOfBoundsException If there is no such child.
+     */
+    public PersistentTree<V> withChildRemoved(int index) {
+    	checkIndex(index, children.length);
+    	if (children.length == 1) {return new PersistentTree<V>(value, PersistentTree.<V>none());}
+
+    	PersistentTree<V>[] copy = newArray(children.length - 1);
+    	System.arraycopy(children, 0, copy, 0, index);
+    	System.arraycopy(children, index + 1, copy, index, children.length - index - 1);
+        return new PersistentTree<V>(value, copy);
+    }
+
+    /**
+     * Returns a tree in which the node at the end of the given path is
+     * replaced. The nodes on the path are copied, and all other nodes are
+     * shared with this tree.
+     *
+     * @param path The index of the child to descend to at each level.
+     * @param node The replacement.
+     * @return The root of the new tree; <code>node</code> if the path is empty.
+     * @throws IndexOutOfBoundsException If there is no node at the path.
+     */
+    public PersistentTree<V> replace(int[] path, PersistentTree<V> node) {
+    	if (node == null) {throw new NullPointerException("Null node");}
+
+    	PersistentTree<V>[] ancestors = newArray(path.length);
+    	PersistentTree<V> t = this;
+    	for (int i = 0; i < path.length; i++) {
+    		ancestors[i] = t;
+    		t = t.getChild(path[i]);
+    	}
+
+    	PersistentTree<V> result = node;
+    	for (int i = path.length - 1; i >= 0; i--) {
+    		result = ancestors[i].withChild(path[i], result);
+    	}
+    	return result;
+    }
+
+    /**
+     * Tests whether the input argument is a PersistentTree having the same
+     * shape and containing the same values as this one.
+     *
+     * @param obj The object to be compared to this tree.
+     * @return <code>true</code> if the object is equal to this tree,
+     *         <code>false</code> otherwise.
+     */
+    @Override
+    public boolean equals(Object obj) {
+    	if (!(obj instanceof PersistentTree<?>)) {return false;}
+
+    	PersistentTree<?> other = (PersistentTree<?>) obj;
+    	if (!sameNode(this, other)) {return false;}
+
+    	// Walk both trees in step; shared subtrees need not be compared
+    	Path<Object> mine = new Path<Object>();
+    	Path<Object> theirs = new Path<Object>();
+    	mine.push(this);
+    	theirs.push(other);
+    	while (!mine.isEmpty()) {
+    		PersistentTree<?> node = mine.top();
+    		int i = mine.advance();
+    		theirs.advance();
+
+    		if (i == node.children.length) {
+    			mine.pop();
+    			theirs.pop();
+    			continue;
+    		}
+
+    		PersistentTree<?> child = node.children[i];
+    		PersistentTree<?> otherChild = theirs.top().children[i];
+    		if (child == otherChild) {continue;}
+    		if (!sameNode(child, otherChild)) {return false;}
+    		mine.push(child);
+    		theirs.push(otherChild);
+    	}
+    	return true;
+    }
+
+    /**
+     * Tests whether two nodes have the same hash code, value and number of
+     * children.
+     *
+     * @param a The first node.
+     * @param b The second node.
+     * @return <code>true</code> iff the nodes match, apart from their children.
+     */
+    private static boolean sameNode(PersistentTree<?> a, PersistentTree<?> b) {
+    	if (a.hash != b.hash || a.children.length != b.children.length) {return false;}
+    	return a.value == null ? b.value == null : a.value.equals(b.value);
+    }
+
+    /**
+     * Returns the hash code of this tree, which is computed when it is built
+     * and is the same as that of an equal <code>Tree</code>.
+     *
+     * @return integer hash code
+     */
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * Returns a one-line string representing this tree, in the form used
+     * by <code>Tree.toString()</code>.
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+    	StringBuilder builder = new StringBuilder();
+    	try {
+    		writeTo(builder);
+    	} catch (IOException e) {
+    		throw new AssertionError(e);
+    	}
+    	return builder.toString();
+    }
+
+    /**
+     * Writes the one-line string representing this tree, as returned by
+     * <code>toString()</code>, to the given sink.
+     *
+     * @param out Where the string is written.
+     * @throws IOException If <code>out</code> cannot be written.
+     */
+    public void writeTo(Appendable out) throws IOException {
+    	out.append(value.toString());
+    	if (children.length == 0) {return;}
+    	out.append(" (");
+
+    	Path<V> path = new Path<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		PersistentTree<V> node = path.top();
+    		int i = path.advance();
+
+    		if (i == node.children.length) {
+    			out.append(')');
+    			path.pop();
+    			continue;
+    		}
+
+    		if (i > 0) {out.append(' ');}
+    		PersistentTree<V> child = node.children[i];
+    		out.append(child.value.toString());
+    		if (child.children.length > 0) {
+    			out.append(" (");
+    			path.push(child);
+    		}
+    	}
+    }
+
+    /**
+     * Throws if an index is out of range.
+     *
+     * @param index The index.
+     * @param size The number of valid indices.
+     * @throws IndexOutOfBoundsException If <code>index</code> is negative
+     *     or not less than <code>size</code>.
+     */
+    private static void checkIndex(int index, int size) {
+    	if (index < 0 || index >= size) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    	}
+    }
+
+    /**
+     * Returns the shared empty array of children.
+     *
+     * @return An empty array.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> PersistentTree<V>[] none() {
+        return (PersistentTree<V>[]) NO_CHILDREN;
+    }
+
+    /**
+     * Creates an array of children.
+     *
+     * @param length The length of the array.
+     * @return The new array.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> PersistentTree<V>[] newArray(int length) {
+        return (PersistentTree<V>[]) new PersistentTree<?>[length];
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * The path from the root to the node being visited in a depth-first
+     * traversal, as <code>TreePath</code> is for Trees.
+     *
+     * @param <V> The type of value held in each node.
+     */
+    private static final class Path<V> {
+        private PersistentTree<?>[] nodes = new PersistentTree<?>[16];
+        private int[] next = new int[16];
+        private int depth = 0;
+
+        /**
+         * Descends to the given node.
+         *
+         * @param node A child of the current node, or the root.
+         */
+        void push(PersistentTree<?> node) {
+        	if (depth == nodes.length) {
+        		nodes = Arrays.copyOf(nodes, depth * 2);
+        		next = Arrays.copyOf(next, depth * 2);
+        	}
+        	nodes[depth] = node;
+        	next[depth] = 0;
+        	depth++;
+        }
+
+        /**
+         * Returns the node being visited.
+         *
+         * @return The last node on the path.
+         */
+        @SuppressWarnings("unchecked")
+        PersistentTree<V> top() {
+            return (PersistentTree<V>) nodes[depth - 1];
+        }
+
+        /**
+         * Returns the index of the next child of the current node to be
+         * visited, and counts it as visited.
+         *
+         * @return The index of the next child.
+         */
+        int advance() {
+            return next[depth - 1]++;
+        }
+
+        /**
+         * Returns to the parent of the current node.
+         */
+        void pop() {
+            nodes[--depth] = null;
+        }
+
+        /**
+         * Tests whether the traversal is over.
+         *
+         * @return <code>true</code> iff the path is empty.
+         */
+        boolean isEmpty() {
+            return depth == 0;
+        }
+    }
+}
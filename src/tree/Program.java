@@ -0,0 +1,370 @@
+package tree;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A compiled form of an <code>Expression</code>: a flat postfix instruction
+ * array that is run on a primitive operand stack.
+ * <p>
+ * Instructions are stored in a single <code>int[]</code>. Each instruction
+ * is an opcode, and a <code>PUSH</code> or <code>LOAD</code> opcode is
+ * followed by its operand: a constant, or the index of a variable.
+ * Operators are binary, so an n-ary "+" or "*" node is lowered into
+ * <code>n - 1</code> consecutive instructions. Because <code>int</code>
+ * addition and multiplication wrap around, the result is the same as that
+ * of <code>Expression.evaluate()</code>, including overflow.
+ * <p>
+ * The single-argument <code>evaluate</code> methods reuse an operand stack
+ * owned by this Program, so they do not allocate, but they must not be
+ * called from more than one thread at a time. Concurrent callers should
+ * each supply their own stack to <code>evaluate(int[], int[])</code>.
+ *
+ * @author Anders Schneider
+ */
+public final class Program implements Evaluator {
+    static final int PUSH = 0;
+    static final int ADD = 1;
+    static final int SUB = 2;
+    static final int MUL = 3;
+    static final int DIV = 4;
+    static final int LOAD = 5;
+
+    // Rows evaluated together by evaluate(int[][], int[])
+    private static final int BLOCK = 1024;
+    private static final int[] NO_VALUES = new int[0];
+
+    private final int[] code;
+    private final int maxStack;
+    private final String[] variables;
+    private final int[] stack;
+
+    /**
+     * Constructs a Program from already-lowered instructions.
+     *
+     * @param code The instructions, in postfix order.
+     * @param maxStack The largest number of operands ever on the stack.
+     * @param variables The names of the variables, by index.
+     */
+    Program(int[] code, int maxStack, String[] variables) {
+        this.code = code;
+        this.maxStack = maxStack;
+        this.variables = variables;
+        this.stack = new int[maxStack];
+    }
+
+    /**
+     * Lowers the given Tree, which must represent a valid Expression,
+     * into a Program.
+     *
+     * @param tree The tree to be compiled.
+     * @param slots The index of each variable in the tree.
+     * @return The compiled Program.
+     */
+    static Program compile(Tree<String> tree, Map<String, Integer> slots) {
+    	Emitter emitter = new Emitter(slots);
+    	emitter.emit(tree);
+    	return new Program(emitter.toArray(), emitter.maxDepth,
+    			slots.keySet().toArray(new String[slots.size()]));
+    }
+
+    /**
+     * Runs this Program on its own operand stack.
+     *
+     * @return The value of the compiled Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     * @throws IllegalStateException If the Expression has variables.
+     */
+    @Override
+    public int evaluate() {
+    	if (variables.length > 0) {
+    		throw new IllegalStateException("Unbound variable: " + variables[0]);
+    	}
+        return evaluate(NO_VALUES, stack);
+    }
+
+    /**
+     * Runs this Program on its own operand stack, with the given values
+     * for its variables.
+     *
+     * @param values The value of each variable, by index.
+     * @return The value of the compiled Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    @Override
+    public int evaluate(int[] values) {
+        return evaluate(values, stack);
+    }
+
+    /**
+     * Runs this Program using the given operand stack, which must have at
+     * least <code>getMaxStack()</code> elements.
+     *
+     * @param values The value of each variable, by index.
+     * @param stack The operand stack to use.
+     * @return The value of the compiled Expression.
+     * @throws ArithmeticException If the Expression divides by zero.
+     */
+    public int evaluate(int[] values, int[] stack) {
+    	int[] code = this.code;
+    	int sp = 0;
+    	int pc = 0;
+
+    	while (pc < code.length) {
+    		switch (code[pc++]) {
+    		case PUSH:
+    			stack[sp++] = code[pc++];
+    			break;
+    		case LOAD:
+    			stack[sp++] = values[code[pc++]];
+    			break;
+    		case ADD:
+    			sp--;
+    			stack[sp - 1] += stack[sp];
+    			break;
+    		case SUB:
+    			sp--;
+    			stack[sp - 1] -= stack[sp];
+    			break;
+    		case MUL:
+    			sp--;
+    			stack[sp - 1] *= stack[sp];
+    			break;
+    		case DIV:
+    			sp--;
+    			stack[sp - 1] /= stack[sp];
+    			break;
+    		default:
+    			throw new IllegalStateException("Bad opcode: " + code[pc - 1]);
+    		}
+    	}
+
+    	return stack[0];
+    }
+
+    /**
+     * Evaluates this Program once for each element of <code>out</code>,
+     * taking the value of variable <code>v</code> in row <code>r</code> from
+     * <code>columns[v][r]</code>. Rows are processed in blocks, each
+     * instruction being applied to a whole block at a time, so that the cost
+     * of decoding instructions is shared by all the rows of the block.
+     *
+     * @param columns The values of each variable, by index, then by row.
+     * @param out Where the value of each row is stored.
+     * @throws ArithmeticException If any row divides by zero; the contents
+     *         of <code>out</code> are then unspecified.
+     */
+    public void evaluate(int[][] columns, int[] out) {
+    	if (out.length == 0) {return;}
+
+    	int[] code = this.code;
+    	int[][] stack = new int[maxStack][Math.min(BLOCK, out.length)];
+
+    	for (int from = 0; from < out.length; from += BLOCK) {
+    		int n = Math.min(BLOCK, out.length - from);
+    		int sp = 0;
+    		int pc = 0;
+
+    		while (pc < code.length) {
+    			switch (code[pc++]) {
+    			case PUSH:
+    				Arrays.fill(stack[sp++], 0, n, code[pc++]);
+    				break;
+    			case LOAD:
+    				System.arraycopy(columns[code[pc++]], from, stack[sp++], 0, n);
+    				break;
+    			case ADD: {
+    				int[] a = stack[sp - 2];
+    				int[] b = stack[--sp];
+    				for (int i = 0; i < n; i++) {a[i] += b[i];}
+    				break;
+    			}
+    			case SUB: {
+    				int[] a = stack[sp - 2];
+    				int[] b = stack[--sp];
+    				for (int i = 0; i < n; i++) {a[i] -= b[i];}
+    				break;
+    			}
+    			case MUL: {
+    				int[] a = stack[sp - 2];
+    				int[] b = stack[--sp];
+    				for (int i = 0; i < n; i++) {a[i] *= b[i];}
+    				break;
+    			}
+    			case DIV: {
+    				int[] a = stack[sp - 2];
+    				int[] b = stack[--sp];
+    				for (int i = 0; i < n; i++) {a[i] /= b[i];}
+    				break;
+    			}
+    			default:
+    				throw new IllegalStateException("Bad opcode: " + code[pc - 1]);
+    			}
+    		}
+
+    		System.arraycopy(stack[0], 0, out, from, n);
+    	}
+    }
+
+    /**
+     * Returns a new operand stack large enough to run this Program.
+     *
+     * @return An operand stack for <code>evaluate(int[])</code>.
+     */
+    public int[] newStack() {
+        return new int[maxStack];
+    }
+
+    /**
+     * Returns the largest number of operands this Program keeps on the stack.
+     *
+     * @return The required operand stack size.
+     */
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    /**
+     * Returns the names of the variables of this Program, by index.
+     *
+     * @return The variable names.
+     */
+    public String[] getVariables() {
+        return variables.clone();
+    }
+
+    /**
+     * Returns the number of <code>int</code>s used to encode this Program.
+     *
+     * @return The length of the instruction array.
+     */
+    public int size() {
+        return code.length;
+    }
+
+    /**
+     * Returns a copy of the instructions in this Program.
+     *
+     * @return The instruction array.
+     */
+    int[] getCode() {
+        return code.clone();
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * Accumulates instructions and tracks the operand stack depth while
+     * lowering a Tree.
+     */
+    private static class Emitter {
+        private final Map<String, Integer> slots;
+        private int[] code = new int[16];
+        private int length = 0;
+        private int depth = 0;
+        int maxDepth = 0;
+
+        /**
+         * Constructs an Emitter.
+         *
+         * @param slots The index of each variable.
+         */
+        Emitter(Map<String, Integer> slots) {
+            this.slots = slots;
+        }
+
+        /**
+         * Emits the instructions for the given (valid) expression tree, in
+         * postorder, without recursion.
+         *
+         * @param tree The tree to be lowered.
+         */
+        void emit(Tree<String> tree) {
+        	TreePath<String> path = new TreePath<String>();
+        	path.push(tree);
+        	while (!path.isEmpty()) {
+        		Tree<String> node = path.top();
+        		String val = node.getValue();
+        		int i = path.advance();
+
+        		if (node.getNumberOfChildren() == 0) {
+        			if (slots.containsKey(val)) {
+        				push(LOAD, slots.get(val));
+        			} else {
+        				push(PUSH, Integer.parseInt(val));
+        			}
+        			path.pop();
+        			continue;
+        		}
+
+        		// Combine the operand just emitted with those before it
+        		if (i >= 2) {
+        			append(opcode(val));
+        			depth--;
+        		}
+
+        		if (i < node.getNumberOfChildren()) {
+        			path.push(node.getChild(i));
+        		} else {
+        			path.pop();
+        		}
+        	}
+        }
+
+        /**
+         * Returns the opcode of an operator.
+         *
+         * @param val One of "+", "-", "*" and "/".
+         * @return The opcode.
+         */
+        private static int opcode(String val) {
+        	if ("+".equals(val)) {
+        		return ADD;
+        	} else if ("*".equals(val)) {
+        		return MUL;
+        	} else if ("-".equals(val)) {
+        		return SUB;
+        	} else {
+        		return DIV;
+        	}
+        }
+
+        /**
+         * Emits an instruction that pushes one operand.
+         *
+         * @param op <code>PUSH</code> or <code>LOAD</code>.
+         * @param operand The constant or variable index to be pushed.
+         */
+        private void push(int op, int operand) {
+        	append(op);
+        	append(operand);
+        	depth++;
+        	if (depth > maxDepth) {maxDepth = depth;}
+        }
+
+        /**
+         * Appends one <code>int</code> to the instruction array.
+         *
+         * @param word The opcode or operand to be appended.
+         */
+        private void append(int word) {
+        	if (length == code.length) {
+        		int[] larger = new int[code.length * 2];
+        		System.arraycopy(code, 0, larger, 0, length);
+        		code = larger;
+        	}
+        	code[length++] = word;
+        }
+
+        /**
+         * Returns the emitted instructions, trimmed to size.
+         *
+         * @return The instruction array.
+         */
+        int[] toArray() {
+        	int[] result = new int[length];
+        	System.arraycopy(code, 0, result, 0, length);
+        	return result;
+        }
+    }
+}
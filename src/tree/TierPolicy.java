@@ -0,0 +1,138 @@
+package tree;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Decides when an <code>Expression</code> promotes itself from one
+ * evaluation tier to the next, and where the promotion work is done.
+ * <p>
+ * An Expression starts in the <code>TREE</code> tier. When the number of
+ * calls to its <code>evaluate()</code> reaches the threshold of a higher
+ * tier, the Expression is compiled to that tier on this policy's executor
+ * while callers keep evaluating in the current tier.
+ * 
+ * @author Anders Schneider
+ */
+public final class TierPolicy {
+    
+    /**
+     * The tiers that an Expression can be evaluated in, from slowest to
+     * fastest.
+     */
+    public enum Tier {
+        /** Walks the expression tree, as <code>Expression.evaluate()</code> always has. */
+        TREE,
+        /** Interprets the postfix <code>Program</code> produced by <code>compile()</code>. */
+        PROGRAM,
+        /** Runs the class generated by <code>compileToBytecode()</code>. */
+        BYTECODE
+    }
+    
+    /**
+     * Receives notice of every tier promotion, for tuning thresholds.
+     */
+    public interface Listener {
+        
+        /**
+         * Called on the promoting thread after <code>expression</code> has
+         * moved to a new tier.
+         * 
+         * @param expression The Expression that was promoted.
+         * @param from The tier it was evaluated in before.
+         * @param to The tier it is evaluated in now.
+         * @param evaluations The number of evaluations when promotion began.
+         */
+        void promoted(Expression expression, Tier from, Tier to, long evaluations);
+    }
+    
+    /**
+     * The executor used by the built-in policies: a single daemon thread,
+     * started on first use, so pending promotions never keep the JVM alive.
+     */
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+            	Thread t = new Thread(r, "Expression tier promotion");
+            	t.setDaemon(true);
+            	return t;
+            }
+        });
+    
+    /** The policy used by <code>new Expression(String)</code>. */
+    public static final TierPolicy DEFAULT =
+        new TierPolicy(100, 10000, BACKGROUND, null);
+    
+    /** A policy that keeps every Expression in the <code>TREE</code> tier. */
+    public static final TierPolicy DISABLED =
+        new TierPolicy(Long.MAX_VALUE, Long.MAX_VALUE, BACKGROUND, null);
+    
+    private final long programThreshold;
+    private final long bytecodeThreshold;
+    private final Executor executor;
+    private final Listener listener;
+    
+    /**
+     * Constructs a TierPolicy.
+     * 
+     * @param programThreshold The number of evaluations after which an
+     *        Expression is compiled to a Program.
+     * @param bytecodeThreshold The number of evaluations after which an
+     *        Expression is compiled to bytecode.
+     * @param executor Where compilation is done.
+     * @param listener Notified of each promotion; may be <code>null</code>.
+     * @throws IllegalArgumentException If a threshold is negative, or
+     *         <code>bytecodeThreshold</code> is less than <code>programThreshold</code>.
+     */
+    public TierPolicy(long programThreshold, long bytecodeThreshold,
+            Executor executor, Listener listener) {
+    	if (programThreshold < 0 || bytecodeThreshold < programThreshold) {
+    		throw new IllegalArgumentException("Bad thresholds: "
+    				+ programThreshold + ", " + bytecodeThreshold);
+    	}
+    	if (executor == null) {throw new IllegalArgumentException("Null executor");}
+    	
+        this.programThreshold = programThreshold;
+        this.bytecodeThreshold = bytecodeThreshold;
+        this.executor = executor;
+        this.listener = listener;
+    }
+    
+    /**
+     * Returns the number of evaluations needed to reach the given tier.
+     * 
+     * @param tier A tier.
+     * @return The promotion threshold of that tier.
+     */
+    public long getThreshold(Tier tier) {
+    	switch (tier) {
+    	case TREE:
+    		return 0;
+    	case PROGRAM:
+    		return programThreshold;
+    	default:
+    		return bytecodeThreshold;
+    	}
+    }
+    
+    /**
+     * Returns the executor on which promotions are done.
+     * 
+     * @return The promotion executor.
+     */
+    Executor getExecutor() {
+        return executor;
+    }
+    
+    /**
+     * Returns the promotion listener.
+     * 
+     * @return The listener, or <code>null</code> if there is none.
+     */
+    Listener getListener() {
+        return listener;
+    }
+}
@@ -0,0 +1,375 @@
+package tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The lazy whole-tree traversals returned by <code>Tree.preorder()</code>,
+ * <code>postorder()</code>, <code>levelOrder()</code> and <code>nodes()</code>.
+ * None of them recurses, and each allocates only its own stack or queue,
+ * which grows with the depth or breadth of the tree rather than its size.
+ * <p>
+ * Each node counts the changes made to its children. A traversal notes
+ * the count of a node when it starts on the node's children, and throws
+ * <code>ConcurrentModificationException</code> if the count has changed
+ * when it goes on to the next of them. Changes to nodes whose children are
+ * not being visited are seen by the traversal when it reaches them.
+ *
+ * @author Anders Schneider
+ */
+final class Traversal {
+
+    private Traversal() {}
+
+    /**
+     * An Iterator that finds each node only when asked whether there is one.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    private abstract static class LazyIterator<V> implements Iterator<Tree<V>> {
+        // The next node, if it has been found
+        private Tree<V> pending;
+
+        /**
+         * Constructs an iterator whose first node is already known.
+         *
+         * @param first The first node.
+         */
+        LazyIterator(Tree<V> first) {
+            this.pending = first;
+        }
+
+        @Override
+        public boolean hasNext() {
+        	if (pending == null) {pending = find();}
+            return pending != null;
+        }
+
+        @Override
+        public Tree<V> next() {
+        	if (!hasNext()) {throw new NoSuchElementException();}
+
+        	Tree<V> node = pending;
+        	pending = null;
+            return node;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Finds the node after the last one returned.
+         *
+         * @return The next node, or <code>null</code> if there are no more.
+         */
+        abstract Tree<V> find();
+    }
+
+    /**
+     * A depth-first iterator, which notes each node's count of changes as
+     * it descends to the node.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    private abstract static class DepthFirst<V> extends LazyIterator<V> {
+        final TreePath<V> path = new TreePath<V>();
+        private int[] counts = new int[16];
+
+        /**
+         * Constructs an iterator that starts at the given root.
+         *
+         * @param root The root.
+         * @param first The first node to be returned.
+         */
+        DepthFirst(Tree<V> root, Tree<V> first) {
+        	super(first);
+        	push(root);
+        }
+
+        /**
+         * Descends to the given node.
+         *
+         * @param node A child of the current node, or the root.
+         */
+        final void push(Tree<V> node) {
+        	int depth = path.depth();
+        	if (depth == counts.length) {counts = Arrays.copyOf(counts, depth * 2);}
+        	counts[depth] = node.modCount;
+        	path.push(node);
+        }
+
+        /**
+         * Returns the index of the next child of the current node, as
+         * <code>TreePath.advance()</code> does, after checking that the
+         * node's children have not changed.
+         *
+         * @return The index of the next child.
+         * @throws ConcurrentModificationException If they have changed.
+         */
+        final int advance() {
+        	if (path.top().modCount != counts[path.depth() - 1]) {
+        		throw new ConcurrentModificationException();
+        	}
+            return path.advance();
+        }
+    }
+
+    /**
+     * An iterator over a tree in preorder.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    static final class Preorder<V> extends DepthFirst<V> {
+
+        /**
+         * Constructs an iterator over the given tree.
+         *
+         * @param root The root of the tree.
+         */
+        Preorder(Tree<V> root) {
+            super(root, root);
+        }
+
+        @Override
+        Tree<V> find() {
+        	while (!path.isEmpty()) {
+        		Tree<V> node = path.top();
+        		int i = advance();
+
+        		if (i < node.getNumberOfChildren()) {
+        			Tree<V> child = node.getChild(i);
+        			push(child);
+        			return child;
+        		}
+        		path.pop();
+        	}
+            return null;
+        }
+    }
+
+    /**
+     * An iterator over a tree in postorder.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    static final class Postorder<V> extends DepthFirst<V> {
+
+        /**
+         * Constructs an iterator over the given tree.
+         *
+         * @param root The root of the tree.
+         */
+        Postorder(Tree<V> root) {
+            super(root, null);
+        }
+
+        @Override
+        Tree<V> find() {
+        	while (!path.isEmpty()) {
+        		Tree<V> node = path.top();
+        		int i = advance();
+
+        		if (i < node.getNumberOfChildren()) {
+        			push(node.getChild(i));
+        		} else {
+        			path.pop();
+        			return node;
+        		}
+        	}
+            return null;
+        }
+    }
+
+    /**
+     * An iterator over a tree in level order, that is, breadth first.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    static final class LevelOrder<V> extends LazyIterator<V> {
+        // The nodes returned whose children have not yet been visited
+        private final ArrayDeque<Tree<V>> queue = new ArrayDeque<Tree<V>>();
+        private Tree<V> parent;
+        private int count;
+        private int next;
+
+        /**
+         * Constructs an iterator over the given tree.
+         *
+         * @param root The root of the tree.
+         */
+        LevelOrder(Tree<V> root) {
+        	super(root);
+        	queue.add(root);
+        }
+
+        @Override
+        Tree<V> find() {
+        	while (true) {
+        		if (parent != null) {
+        			if (parent.modCount != count) {throw new ConcurrentModificationException();}
+        			if (next < parent.getNumberOfChildren()) {
+        				Tree<V> child = parent.getChild(next++);
+        				queue.add(child);
+        				return child;
+        			}
+        		}
+
+        		parent = queue.poll();
+        		if (parent == null) {return null;}
+        		count = parent.modCount;
+        		next = 0;
+        	}
+        }
+    }
+
+    /**
+     * A Spliterator over a tree in preorder. It holds a stack of the
+     * subtrees still to be visited, the next on top, and splits by handing
+     * over the top half of them. A lone subtree is first split into its
+     * root and its children, so a traversal can be split from the start.
+     * Subtrees are only ever split off whole, so how evenly the work is
+     * shared depends on how evenly the nodes are spread among them.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    static final class Nodes<V> implements Spliterator<Tree<V>> {
+        private Object[] nodes;
+        // The parent of each subtree, and the parent's count of changes
+        // when it was split into its children; no parent for a root
+        private Object[] parents;
+        private int[] counts;
+        // Whether the children of each root are stacked already
+        private boolean[] split;
+        private int size;
+        private long estimate;
+
+        /**
+         * Constructs a Spliterator over the given tree.
+         *
+         * @param root The root of the tree.
+         */
+        Nodes(Tree<V> root) {
+        	this(16, Long.MAX_VALUE);
+        	push(root, null, false);
+        }
+
+        /**
+         * Constructs an empty Spliterator.
+         *
+         * @param capacity The initial size of the stack.
+         * @param estimate The estimated number of nodes.
+         */
+        private Nodes(int capacity, long estimate) {
+        	nodes = new Object[capacity];
+        	parents = new Object[capacity];
+        	counts = new int[capacity];
+        	split = new boolean[capacity];
+        	this.estimate = estimate;
+        }
+
+        /**
+         * Pushes a subtree onto the stack.
+         *
+         * @param node The root of the subtree.
+         * @param parent Its parent, or <code>null</code>.
+         * @param isSplit Whether its children have been pushed already.
+         */
+        private void push(Tree<V> node, Tree<V> parent, boolean isSplit) {
+        	if (size == nodes.length) {
+        		nodes = Arrays.copyOf(nodes, size * 2);
+        		parents = Arrays.copyOf(parents, size * 2);
+        		counts = Arrays.copyOf(counts, size * 2);
+        		split = Arrays.copyOf(split, size * 2);
+        	}
+        	nodes[size] = node;
+        	parents[size] = parent;
+        	counts[size] = parent == null ? 0 : parent.modCount;
+        	split[size] = isSplit;
+        	size++;
+        }
+
+        /**
+         * Pushes the children of a node, the first on top.
+         *
+         * @param node The node.
+         */
+        private void pushChildren(Tree<V> node) {
+        	for (int i = node.getNumberOfChildren() - 1; i >= 0; i--) {
+        		push(node.getChild(i), node, false);
+        	}
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Tree<V>> action) {
+        	if (size == 0) {return false;}
+
+        	size--;
+        	@SuppressWarnings("unchecked")
+        	Tree<V> node = (Tree<V>) nodes[size];
+        	@SuppressWarnings("unchecked")
+        	Tree<V> parent = (Tree<V>) parents[size];
+        	nodes[size] = null;
+        	parents[size] = null;
+        	if (parent != null && parent.modCount != counts[size]) {
+        		throw new ConcurrentModificationException();
+        	}
+
+        	if (!split[size]) {pushChildren(node);}
+        	action.accept(node);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Tree<V>> trySplit() {
+        	if (size == 1 && !split[0]) {
+        		@SuppressWarnings("unchecked")
+        		Tree<V> node = (Tree<V>) nodes[0];
+        		if (node.getNumberOfChildren() == 0) {return null;}
+
+        		// Leave the root on top, with its children stacked below it
+        		split[0] = true;
+        		size = 0;
+        		Object parent = parents[0];
+        		int count = counts[0];
+        		pushChildren(node);
+        		push(node, null, true);
+        		parents[size - 1] = parent;
+        		counts[size - 1] = count;
+        	}
+        	if (size < 2) {return null;}
+
+        	// The top half comes first, so it is the prefix handed over
+        	int half = size / 2;
+        	int from = size - half;
+        	estimate >>>= 1;
+        	Nodes<V> prefix = new Nodes<V>(Math.max(half, 16), estimate);
+        	System.arraycopy(nodes, from, prefix.nodes, 0, half);
+        	System.arraycopy(parents, from, prefix.parents, 0, half);
+        	System.arraycopy(counts, from, prefix.counts, 0, half);
+        	System.arraycopy(split, from, prefix.split, 0, half);
+        	prefix.size = half;
+
+        	Arrays.fill(nodes, from, size, null);
+        	Arrays.fill(parents, from, size, null);
+        	size = from;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return size == 0 ? 0 : estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
@@ -1,8 +1,20 @@
 package tree;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.StringTokenizer;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Tree API assignment for CIT594, Spring 2015.
@@ -13,6 +25,16 @@ import java.util.StringTokenizer;
 public class Tree<V> implements Iterable<Tree<V>> {
     private V value;
     private ArrayList<Tree<V>> children;
+    // The nodes having this one as a child: the first, and any others,
+    // which are rare unless subtrees are shared
+    private Tree<V> parent;
+    private ArrayList<Tree<V>> otherParents;
+    // The cached structural hash code, valid only while hashed is set. If a
+    // node's hash code is cached, so are those of all its descendants.
+    private int hash;
+    private volatile boolean hashed;
+    // Counts changes to the children, so that traversals can detect them
+    int modCount;
     
     /**
      * Constructs a Tree with the given value in the root node,
@@ -21,12 +43,13 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * @param value The value to be put in the root.
      * @param children The immediate children of the root.
      */
+    @SafeVarargs
     public Tree(V value, Tree<V>... children) {
         this.value = value;
         this.children = new ArrayList<Tree<V>>();
         
         for (Tree<V> t : children) {
-        	this.children.add(t);
+        	this.adopt(t);
         }
     }
     
@@ -37,6 +60,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     public void setValue(V value) {
     	this.value = value;
+    	this.invalidate();
     }
     
     /**
@@ -59,9 +83,12 @@ public class Tree<V> implements Iterable<Tree<V>> {
      *         If the operation would create a circular Tree.
      */
     public void addChild(int index, Tree<V> child) {
-    	if (child.contains(this)) {throw new IllegalArgumentException("Trees cannot have cycles");}
+    	if (this.hasAncestor(child)) {throw new IllegalArgumentException("Trees cannot have cycles");}
     	
         this.children.add(index, child);
+        this.modCount++;
+        child.addParent(this);
+        this.invalidate();
     }
     
     /**
@@ -71,9 +98,9 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * 		   If the operation would create a circular Tree.
      */
     public void addChild(Tree<V> child) {
-    	if (child.contains(this)) {throw new IllegalArgumentException("Trees cannot have cycles");}
+    	if (this.hasAncestor(child)) {throw new IllegalArgumentException("Trees cannot have cycles");}
     	
-        this.children.add(child);
+        this.adopt(child);
     }
 
     /**
@@ -85,8 +112,8 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     public void addChildren(Tree<V>... children) {
         for (Tree<V> child : children) {
-        	if (child.contains(this)) {throw new IllegalArgumentException("Trees cannot have cycles");}
-        	this.children.add(child);
+        	if (this.hasAncestor(child)) {throw new IllegalArgumentException("Trees cannot have cycles");}
+        	this.adopt(child);
         }
     }
     
@@ -108,9 +135,66 @@ public class Tree<V> implements Iterable<Tree<V>> {
      *     is greater than or equal to the current number of children of this node.
      */
     public Tree<V> getChild(int index) {
+    	// The message of ArrayList's own exception differs between JDKs
+    	if (index < 0 || index >= children.size()) {
+    		throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + children.size());
+    	}
     	return this.children.get(index);
     }
     
+    /**
+     * Returns the nodes of this tree in preorder: each node before its
+     * children, and the children in order. The iteration is lazy and does
+     * not recurse, so it suits trees of any size and depth.
+     * 
+     * @return The nodes of this tree, this node first.
+     * @throws ConcurrentModificationException From the iterator, if
+     *         children are added to a node while its children are being visited.
+     */
+    public Iterable<Tree<V>> preorder() {
+        return () -> new Traversal.Preorder<V>(this);
+    }
+    
+    /**
+     * Returns the nodes of this tree in postorder: each node after its
+     * children, and the children in order. The iteration is lazy, as that
+     * of <code>preorder()</code> is.
+     * 
+     * @return The nodes of this tree, this node last.
+     * @throws ConcurrentModificationException From the iterator, if
+     *         children are added to a node while its children are being visited.
+     */
+    public Iterable<Tree<V>> postorder() {
+        return () -> new Traversal.Postorder<V>(this);
+    }
+    
+    /**
+     * Returns the nodes of this tree in level order: this node, then its
+     * children, then theirs, and so on, each level from left to right. The
+     * iteration is lazy, and holds at most about two levels of nodes.
+     * 
+     * @return The nodes of this tree, this node first.
+     * @throws ConcurrentModificationException From the iterator, if
+     *         children are added to a node while its children are being visited.
+     */
+    public Iterable<Tree<V>> levelOrder() {
+        return () -> new Traversal.LevelOrder<V>(this);
+    }
+    
+    /**
+     * Returns a stream of the nodes of this tree in preorder. In a
+     * parallel stream the tree is split into subtrees that are traversed
+     * on different threads. A subtree shared by several parents is met
+     * once for each.
+     * 
+     * @return The nodes of this tree, this node first.
+     * @throws ConcurrentModificationException From the stream, if
+     *         children are added to a node while its children are being visited.
+     */
+    public Stream<Tree<V>> nodes() {
+        return StreamSupport.stream(new Traversal.Nodes<V>(this), false);
+    }
+    
     /**
      * Returns an iterator for the children of this node. 
      * 
@@ -118,7 +202,7 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     @Override
     public Iterator<Tree<V>> iterator() {
-    	return this.children.iterator();
+    	return Collections.unmodifiableList(this.children).iterator();
     }
     
     /**
@@ -130,14 +214,123 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     boolean contains(Tree<V> node) {
     	if (this == node) {return true;}
+    	if (this.children.isEmpty()) {return false;}
     	
-    	for (Tree<V> t : this.children) {
-    		if (t.contains(node)) {return true;}
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		Tree<V> t = path.top();
+    		int i = path.advance();
+    		
+    		if (i < t.children.size()) {
+    			Tree<V> child = t.children.get(i);
+    			if (child == node) {return true;}
+    			if (!child.children.isEmpty()) {path.push(child);}
+    		} else {
+    			path.pop();
+    		}
     	}
     	
     	return false;
     }
     
+    /**
+     * Tests whether the given node is this node or one of its ancestors,
+     * that is, whether this node is in the Tree rooted at <code>node</code>.
+     * This walks up from this node rather than down from <code>node</code>,
+     * so it takes time proportional to the depth of this node.
+     * 
+     * @param node The node to be searched for.
+     * @return <code>true</code> iff the node is found.
+     */
+    private boolean hasAncestor(Tree<V> node) {
+    	Tree<V> t = this;
+    	while (t != null && t.otherParents == null) {
+    		if (t == node) {return true;}
+    		t = t.parent;
+    	}
+    	if (t == null) {return false;}
+    	
+    	// Above a shared subtree, search every ancestor, each only once
+    	Set<Tree<V>> seen = Collections.newSetFromMap(new IdentityHashMap<Tree<V>, Boolean>());
+    	ArrayList<Tree<V>> pending = new ArrayList<Tree<V>>();
+    	seen.add(t);
+    	pending.add(t);
+    	while (!pending.isEmpty()) {
+    		t = pending.remove(pending.size() - 1);
+    		if (t == node) {return true;}
+    		
+    		if (t.parent != null && seen.add(t.parent)) {pending.add(t.parent);}
+    		if (t.otherParents != null) {
+    			for (Tree<V> p : t.otherParents) {
+    				if (seen.add(p)) {pending.add(p);}
+    			}
+    		}
+    	}
+    	return false;
+    }
+    
+    /**
+     * Adds the child as the new last child of this node without checking
+     * for cycles, which the caller knows cannot occur.
+     * 
+     * @param child A node that does not contain this node.
+     */
+    void adopt(Tree<V> child) {
+        this.children.add(child);
+        this.modCount++;
+        child.addParent(this);
+        this.invalidate();
+    }
+    
+    /**
+     * Tests whether this node has been made a child more than once, so that
+     * it occurs in more than one place.
+     * 
+     * @return <code>true</code> iff this node is shared.
+     */
+    boolean isShared() {
+        return this.otherParents != null;
+    }
+    
+    /**
+     * Records that this node has been made a child of the given node.
+     * 
+     * @param node The new parent.
+     */
+    private void addParent(Tree<V> node) {
+    	if (this.parent == null) {
+    		this.parent = node;
+    	} else {
+    		if (this.otherParents == null) {this.otherParents = new ArrayList<Tree<V>>(2);}
+    		this.otherParents.add(node);
+    	}
+    }
+    
+    /**
+     * Discards the cached hash codes of this node and all of its ancestors.
+     * An ancestor without a cached hash code has none above it either, so
+     * the walk stops there.
+     */
+    private void invalidate() {
+    	ArrayList<Tree<V>> pending = null;
+    	Tree<V> node = this;
+    	
+    	while (true) {
+    		while (node != null && node.hashed) {
+    			node.hashed = false;
+    			if (node.otherParents != null) {
+    				if (pending == null) {pending = new ArrayList<Tree<V>>();}
+    				pending.addAll(node.otherParents);
+    			}
+    			node = node.parent;
+    		}
+    		
+    		if (pending == null || pending.isEmpty()) {return;}
+    		node = pending.remove(pending.size() - 1);
+    	}
+    }
+    
     /**
      * Returns a one-line string representing this tree.
      * The form of the output is:<br>
@@ -147,41 +340,98 @@ public class Tree<V> implements Iterable<Tree<V>> {
      */
     @Override
     public String toString() {
-    	String s = value.toString();
-    	
-    	int numChil = this.getNumberOfChildren();
+    	if (this.getNumberOfChildren() == 0) {return value.toString();}
     	
-    	if (this.getNumberOfChildren() == 0) {return s;}
-    	
-    	s += " (";
-    	
-    	for (int i = 0; i < numChil - 1; i++){
-    		s += this.children.get(i).toString() + " ";
+    	StringBuilder builder = new StringBuilder();
+    	try {
+    		writeTo(builder);
+    	} catch (IOException e) {
+    		throw new AssertionError(e);
     	}
-    	s += this.children.get(numChil - 1).toString();
+    	return builder.toString();
+    }
+    
+    /**
+     * Writes the one-line string representing this tree, as returned by
+     * <code>toString()</code>, to the given sink. The string is written
+     * in a single pass without being built; for large trees, the sink
+     * should be buffered.
+     * 
+     * @param out Where the string is written.
+     * @throws IOException If <code>out</code> cannot be written.
+     */
+    public void writeTo(Appendable out) throws IOException {
+    	out.append(value.toString());
+    	if (this.getNumberOfChildren() == 0) {return;}
+    	out.append(" (");
     	
-    	s += ")";
-    	return s;
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int i = path.advance();
+    		
+    		if (i == node.children.size()) {
+    			out.append(')');
+    			path.pop();
+    			continue;
+    		}
+    		
+    		if (i > 0) {out.append(' ');}
+    		Tree<V> child = node.children.get(i);
+    		out.append(child.value.toString());
+    		if (!child.children.isEmpty()) {
+    			out.append(" (");
+    			path.push(child);
+    		}
+    	}
     }
     
     /**
-     * Prints this tree as an indented structure.
+     * Prints this tree as an indented structure, each node indented by
+     * one more space than its parent.
      */
     public void print() {
-        print(this, "");
-    }   
+    	Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+    	try {
+    		print(out);
+    		out.flush();
+    	} catch (IOException e) {
+    		throw new AssertionError(e);
+    	}
+    }
     
     /**
-     * Prints the given tree as an indented structure, with the
-     * given node indented by the given amount.
-     * @param node The root of the tree or subtree to be printed.
-     * @param indent The amount to indent the root.
+     * Prints this tree to the given sink as an indented structure, one
+     * node per line, each node indented by one more space than its parent.
+     * For large trees, the sink should be buffered.
+     * 
+     * @param out Where the tree is printed.
+     * @throws IOException If <code>out</code> cannot be written.
      */
-    private static void print(Tree<?> node, String indent) {
+    public void print(Appendable out) throws IOException {
+    	String newline = System.lineSeparator();
+    	// Indents are appended from a run of spaces as long as the deepest one so far
+    	StringBuilder spaces = new StringBuilder();
+    	out.append(value.toString()).append(newline);
     	
-    	System.out.println(indent + node.getValue().toString());
-    	for (Tree<?> t : node.children) {
-    		print(t, indent + " ");
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int i = path.advance();
+    		
+    		if (i < node.children.size()) {
+    			Tree<V> child = node.children.get(i);
+    			int indent = path.depth();
+    			while (spaces.length() < indent) {
+    				spaces.append(' ');
+    			}
+    			out.append(spaces, 0, indent).append(child.value.toString()).append(newline);
+    			if (!child.children.isEmpty()) {path.push(child);}
+    		} else {
+    			path.pop();
+    		}
     	}
     }
     
@@ -198,22 +448,50 @@ public class Tree<V> implements Iterable<Tree<V>> {
     	if (!(obj instanceof Tree<?>)) {return false;}
     	
     	Tree<V> other = (Tree<V>) obj;
+    	if (this == other) {return true;}
+    	if (!sameNode(this, other)) {return false;}
     	
-    	// Check that they have the same root value
-    	if (!this.equals(this.getValue(), other.getValue())) {return false;}
-    	
-    	// Check that they have same number of children
-    	int numChil = this.getNumberOfChildren();
-    	if (numChil != other.getNumberOfChildren()) {return false;}
-    	
-    	// Check that all of the children are the same
-    	for (int i = 0; i < numChil; i++) {
-    		if (!this.getChild(i).equals(other.getChild(i))) {return false;}
+    	// Walk both trees in step; their shapes agree wherever they have been compared
+    	TreePath<V> mine = new TreePath<V>();
+    	TreePath<V> theirs = new TreePath<V>();
+    	mine.push(this);
+    	theirs.push(other);
+    	while (!mine.isEmpty()) {
+    		Tree<V> node = mine.top();
+    		int i = mine.advance();
+    		theirs.advance();
+    		
+    		if (i == node.children.size()) {
+    			mine.pop();
+    			theirs.pop();
+    			continue;
+    		}
+    		
+    		Tree<V> child = node.children.get(i);
+    		Tree<V> otherChild = theirs.top().children.get(i);
+    		if (child == otherChild) {continue;}
+    		if (!sameNode(child, otherChild)) {return false;}
+    		mine.push(child);
+    		theirs.push(otherChild);
     	}
     	
     	return true;
     }
     
+    /**
+     * Tests whether two nodes have the same value and number of children,
+     * and do not have different cached hash codes.
+     * 
+     * @param a The first node.
+     * @param b The second node.
+     * @return <code>true</code> iff the nodes match, apart from their children.
+     */
+    private boolean sameNode(Tree<V> a, Tree<V> b) {
+    	if (a.hashed && b.hashed && a.hash != b.hash) {return false;}
+        return this.equals(a.getValue(), b.getValue())
+            && a.getNumberOfChildren() == b.getNumberOfChildren();
+    }
+    
     /**
      * Tests whether two values are equal (either == or <code>equals(obj)</code>),
      * when one or both values may be <code>null</code>.
@@ -230,24 +508,42 @@ public class Tree<V> implements Iterable<Tree<V>> {
     }
     
     /**
-     * Determines a hash code for this object by adding up the hash codes of the
-     * strings that represent all of the children of this tree. The root node's string's
-     * hash code is also included in this sum.
+     * Determines a hash code for this object from the hash code of the value
+     * in each node and the shape of the tree. The hash code is computed in
+     * one pass over the nodes whose hash codes are not already known, and
+     * cached in each node until <code>setValue</code> or <code>addChild</code>
+     * changes the node or one of its descendants. Changes made inside the
+     * values themselves are not noticed.
      * 
      * @return integer hash code
      */
     @Override
     public int hashCode() {
-    	int hash = this.toString().hashCode();
-    	
-    	int numChil = this.getNumberOfChildren();
-    	if (numChil == 0) {return hash;}
+    	if (this.hashed) {return this.hash;}
     	
-    	for (int i = 0; i < numChil; i++) {
-    		hash += this.getChild(i).hashCode();
+    	// Each node is hashed after its children
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(this);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int i = path.advance();
+    		
+    		if (i < node.children.size()) {
+    			Tree<V> child = node.children.get(i);
+    			if (!child.hashed) {path.push(child);}
+    			continue;
+    		}
+    		
+    		int h = node.value == null ? 0 : node.value.hashCode();
+    		for (int j = 0; j < i; j++) {
+    			h = 31 * h + node.children.get(j).hash;
+    		}
+    		node.hash = h;
+    		node.hashed = true;
+    		path.pop();
     	}
     	
-    	return hash;
+    	return this.hash;
     }
     
     /**
@@ -260,7 +556,71 @@ public class Tree<V> implements Iterable<Tree<V>> {
      * @throws IllegalArgumentException If the input string is malformed.
      */
     public static Tree<String> parse(String input) {
-        PushbackStringTokenizer tokenizer = new PushbackStringTokenizer(input);
+        return parse(input, false);
+    }
+    
+    /**
+     * Creates a Tree of Strings from the input characters, as
+     * <code>parse(String)</code> does. If <code>intern</code> is
+     * <code>true</code>, nodes with equal values share a single String,
+     * which saves memory when the same values occur many times.
+     * 
+     * @param input A representation of a Tree.
+     * @param intern Whether equal values should share one String.
+     * @return The Tree represented by the input characters.
+     * @throws IllegalArgumentException If the input is malformed.
+     */
+    public static Tree<String> parse(CharSequence input, boolean intern) {
+        return parse(input, intern, new TreeAssembler());
+    }
+    
+    /**
+     * Creates a CompactTree of Strings from the input characters, which
+     * must have the form accepted by <code>parse(String)</code>. The nodes
+     * are stored directly in the arrays of the CompactTree, without any
+     * Tree being built.
+     * 
+     * @param input A representation of a Tree.
+     * @return The CompactTree represented by the input characters.
+     * @throws IllegalArgumentException If the input is malformed.
+     */
+    public static CompactTree<String> parseCompact(CharSequence input) {
+        return parse(input, true, CompactTree.assembler());
+    }
+    
+    /**
+     * Reads a tree from the input characters into the given assembler,
+     * which may itself reject the input by throwing
+     * <code>IllegalArgumentException</code>.
+     * 
+     * @param input A representation of a Tree.
+     * @param intern Whether equal values should share one String.
+     * @param assembler What builds the tree.
+     * @return The tree represented by the input characters.
+     * @throws IllegalArgumentException If the input is malformed.
+     */
+    static <T> T parse(CharSequence input, boolean intern, Assembler<T> assembler) {
+    	Instrumentation.Listener listener = Instrumentation.listener;
+    	if (listener == null) {return read(input, intern, assembler);}
+    	
+    	long start = System.nanoTime();
+    	Instrumentation.CountingAssembler<T> counter = new Instrumentation.CountingAssembler<T>(assembler);
+    	read(input, intern, counter);
+    	return counter.record(listener, start);
+    }
+    
+    /**
+     * Reads a tree from the input characters into the given assembler,
+     * without reporting it to any Instrumentation listener.
+     * 
+     * @param input A representation of a Tree.
+     * @param intern Whether equal values should share one String.
+     * @param assembler What builds the tree.
+     * @return The tree represented by the input characters.
+     * @throws IllegalArgumentException If the input is malformed.
+     */
+    private static <T> T read(CharSequence input, boolean intern, Assembler<T> assembler) {
+        PushbackStringTokenizer tokenizer = new PushbackStringTokenizer(input, intern);
         
         // Get root value
     	String root = tokenizer.next();
@@ -272,85 +632,397 @@ public class Tree<V> implements Iterable<Tree<V>> {
     		throw new IllegalArgumentException("Unexpected null");
     	}
     	
-    	if (!tokenizer.hasNext()) {return new Tree<String>(root);}
-        
-        Tree<String> tree = parse(tokenizer, root);
+    	if (!tokenizer.hasNext()) {
+    		assembler.leaf(root);
+    		return assembler.result();
+    	}
         
-        return tree;
+        return parse(tokenizer, root, assembler);
     }
     
     /**
-     * Uses the input <code>tokenizer</code> to read and return a single Tree.
-     * Additional tokens are ignored.
+     * Creates a Tree of Strings from the text read from <code>input</code>,
+     * which must contain exactly one Tree in the form accepted by
+     * <code>parse(String)</code>. The input is tokenized incrementally from a
+     * small buffer, so it is never held in memory as a whole. The reader is
+     * not closed.
      * 
-     * @param tokenizer The source of tokens from which to build a Tree.
-     * @return A Tree built from the string being tokenized.
-     * @throws IllegalArgumentException If the tokenized string is malformed.
+     * @param input The source of a representation of a Tree.
+     * @return The Tree represented by the input.
+     * @throws IllegalArgumentException If the input is malformed.
+     * @throws IOException If the input cannot be read.
+     * @see TreeReader
      */
-    static Tree<String> parse(PushbackStringTokenizer tokenizer, String root)
-            throws IllegalArgumentException {
-    	
-    	// Make sure first token is "("
-    	String token = tokenizer.next();
-    	if (!"(".equals(token)) {
-    		throw new IllegalArgumentException("Unexpected expression: " + token);
-    	}
+    public static Tree<String> parse(Reader input) throws IOException {
+        return parse(new TreeReader(input));
+    }
+    
+    /**
+     * Creates a Tree of Strings from the UTF-8 text read from
+     * <code>input</code>, as <code>parse(Reader)</code> does. The channel is
+     * not closed.
+     * 
+     * @param input The source of a representation of a Tree.
+     * @return The Tree represented by the input.
+     * @throws IllegalArgumentException If the input is malformed.
+     * @throws IOException If the input cannot be read.
+     */
+    public static Tree<String> parse(ReadableByteChannel input) throws IOException {
+        return parse(new TreeReader(input));
+    }
+    
+    /**
+     * Reads the only Tree from the given TreeReader.
+     * 
+     * @param reader The source of a single Tree.
+     * @return The Tree.
+     * @throws IllegalArgumentException If there is no Tree, or if there is
+     *         anything after it.
+     * @throws IOException If the input cannot be read.
+     */
+    private static Tree<String> parse(TreeReader reader) throws IOException {
+    	Tree<String> tree = reader.read();
+    	if (tree == null) {throw new IllegalArgumentException("Unexpected null");}
     	
-    	// Create the root of the tree that will eventually be returned
-    	Tree<String> result = new Tree<String>(root);
+    	String extra = reader.peek();
+    	if (extra != null) {throw new IllegalArgumentException("Unexpected expression: " + extra);}
     	
-    	// Find the value of the (first) child
-    	String nodeValue = tokenizer.next();
+    	return tree;
+    }
+    
+    /**
+     * Uses the input <code>tokenizer</code> to read a single tree into the
+     * given assembler. Additional tokens are ignored. The nodes being read
+     * are kept on an explicit stack, so the depth of the tree is limited
+     * only by memory.
+     * 
+     * @param tokenizer The source of tokens from which to build a tree.
+     * @param root The value of the root, which has already been read.
+     * @param assembler What builds the tree.
+     * @return The tree built from the string being tokenized.
+     * @throws IllegalArgumentException If the tokenized string is malformed.
+     */
+    static <T> T parse(Tokenizer tokenizer, String root, Assembler<T> assembler)
+            throws IllegalArgumentException {
     	
-    	if ("(".equals(nodeValue)) {
-    		throw new IllegalArgumentException("Unexpected expression: " + nodeValue);
-    	}
+    	// The value of the next child of each node whose children are being
+    	// read, innermost last; the child is a leaf unless "(" follows
+    	ArrayList<String> pending = new ArrayList<String>();
+    	open(tokenizer, root, assembler, pending);
     	
-    	Tree<String> subtree;
-	    
-    	do {
-    		token = tokenizer.next();
+    	while (true) {
+    		int top = pending.size() - 1;
+    		String nodeValue = pending.get(top);
+    		String token = tokenizer.next();
     		
     		if (token == null) {
     			throw new IllegalArgumentException("Unexpected null");
     		}
     		
-    		// Reached the end of the children - add last child and then exit loop
+    		// Reached the end of the children - add last child and close the node
 	    	if (")".equals(token)) {
-	        	subtree = new Tree<String>(nodeValue);
-	        	result.addChild(subtree);
-	        
-	        // Reached a child of this child node - recurse
+	    		assembler.leaf(nodeValue);
+	    		
+	    		// Closing a node closes its parent too if ")" follows it
+	    		while (true) {
+	    			assembler.end();
+	    			pending.remove(top);
+	    			if (top == 0) {return assembler.result();}
+	    			
+	    			top--;
+	    			token = tokenizer.next();
+	    			pending.set(top, token);
+	    			if (!")".equals(token)) {break;}
+	    		}
+	    		
+	    	// Reached a child of this child node - descend into it
     		} else if ("(".equals(token)) {
 	    		tokenizer.pushBack(token);
-	    		subtree = parse(tokenizer, nodeValue);
-	    		result.addChild(subtree);
-	    		token = tokenizer.next();
-	    		nodeValue = token;
+	    		open(tokenizer, nodeValue, assembler, pending);
 	    		
-	    	// Reached a child; store its value in "nodeValue"
+	    	// Reached a child; store its value as the pending one
 	    	} else {
-	    		subtree = new Tree<String>(nodeValue);
-	    		result.addChild(subtree);
-	    		nodeValue = token;
+	    		assembler.leaf(nodeValue);
+	    		pending.set(top, token);
 	    	}
-	    	
-    	} while (!")".equals(token));
+    	}
+    }
+    
+    /**
+     * Reads the "(" and the value of the first child that begin the children
+     * of a node, and begins the node.
+     * 
+     * @param tokenizer The source of tokens.
+     * @param value The value of the node.
+     * @param assembler What builds the tree.
+     * @param pending The value of the next child of each open node.
+     * @throws IllegalArgumentException If the tokenized string is malformed.
+     */
+    private static void open(Tokenizer tokenizer, String value,
+            Assembler<?> assembler, List<String> pending) {
+    	
+    	// Make sure first token is "("
+    	String token = tokenizer.next();
+    	if (!"(".equals(token)) {
+    		throw new IllegalArgumentException("Unexpected expression: " + token);
+    	}
+    	
+    	// Find the value of the (first) child
+    	String nodeValue = tokenizer.next();
+    	
+    	if ("(".equals(nodeValue)) {
+    		throw new IllegalArgumentException("Unexpected expression: " + nodeValue);
+    	}
     	
-    	return result;
+    	assembler.begin(value);
+    	pending.add(nodeValue);
     }
     
     //---------------------------------------------------------------------
     
+    /**
+     * Assembles a Tree from the top down, for example:<pre>
+     * Tree&lt;String&gt; tree = new Tree.Builder&lt;String&gt;("+")
+     *     .leaf("1")
+     *     .begin("*").leaf("2").leaf("x").end()
+     *     .add(existingTree)
+     *     .build();</pre>
+     * Nodes are linked without <code>addChild</code>'s cycle check, so
+     * building takes time proportional to the number of nodes, however deep
+     * the Tree. No check is needed: the nodes under construction cannot be
+     * reached from outside the builder, so no Tree added to them can contain
+     * them. <code>build()</code> checks only that every node begun has been
+     * ended.
+     * 
+     * @param <V> The type of value held in each Tree node.
+     */
+    public static class Builder<V> {
+        private final ArrayList<Tree<V>> open = new ArrayList<Tree<V>>();
+        private Tree<V> root;
+        
+        /**
+         * Starts a Tree with the given value in its root.
+         * 
+         * @param value The value to be put in the root.
+         */
+        public Builder(V value) {
+            root = new Tree<V>(value);
+            open.add(root);
+        }
+        
+        /**
+         * Adds a new node as the last child of the current node, and makes
+         * it the current node, so that the nodes added next are its children.
+         * 
+         * @param value The value of the new node.
+         * @return This builder.
+         * @throws IllegalStateException If the Tree has already been built.
+         */
+        public Builder<V> begin(V value) {
+        	Tree<V> node = new Tree<V>(value);
+        	current().adopt(node);
+        	open.add(node);
+        	return this;
+        }
+        
+        /**
+         * Makes the parent of the current node the current node again.
+         * 
+         * @return This builder.
+         * @throws IllegalStateException If the current node is the root, or
+         *         if the Tree has already been built.
+         */
+        public Builder<V> end() {
+        	current();
+        	if (open.size() == 1) {throw new IllegalStateException("No node to end");}
+        	open.remove(open.size() - 1);
+        	return this;
+        }
+        
+        /**
+         * Adds a new leaf as the last child of the current node.
+         * 
+         * @param value The value of the new leaf.
+         * @return This builder.
+         * @throws IllegalStateException If the Tree has already been built.
+         */
+        public Builder<V> leaf(V value) {
+        	current().adopt(new Tree<V>(value));
+        	return this;
+        }
+        
+        /**
+         * Adds an existing Tree as the last child of the current node. The
+         * Tree is shared, not copied.
+         * 
+         * @param subtree The Tree to be added.
+         * @return This builder.
+         * @throws IllegalStateException If the Tree has already been built.
+         */
+        public Builder<V> add(Tree<V> subtree) {
+        	current().adopt(subtree);
+        	return this;
+        }
+        
+        /**
+         * Returns the Tree built. The builder cannot be used afterwards.
+         * 
+         * @return The root of the Tree.
+         * @throws IllegalStateException If a node begun has not been ended,
+         *         or if the Tree has already been built.
+         */
+        public Tree<V> build() {
+        	Tree<V> node = current();
+        	if (open.size() > 1) {throw new IllegalStateException("Node not ended: " + node.getValue());}
+        	
+        	Tree<V> result = root;
+        	root = null;
+        	open.clear();
+        	return result;
+        }
+        
+        /**
+         * Returns the node to which children are being added.
+         * 
+         * @return The current node.
+         * @throws IllegalStateException If the Tree has already been built.
+         */
+        private Tree<V> current() {
+        	if (root == null) {throw new IllegalStateException("Tree already built");}
+        	return open.get(open.size() - 1);
+        }
+    }
+    
+    
+    /**
+     * Builds a tree as the parser reads it, from the top down.
+     * 
+     * @param <T> The type of tree built.
+     */
+    interface Assembler<T> {
+        
+        /**
+         * Adds a node that has children, all of which are added before the
+         * matching call to <code>end()</code>.
+         * 
+         * @param value The value of the node.
+         */
+        void begin(String value);
+        
+        /**
+         * Adds a node that has no children.
+         * 
+         * @param value The value of the node.
+         */
+        void leaf(String value);
+        
+        /**
+         * Ends the innermost node begun and not yet ended.
+         */
+        void end();
+        
+        /**
+         * Returns the tree built.
+         * 
+         * @return The root of the tree.
+         */
+        T result();
+    }
+    
+    /**
+     * Returns a new Assembler of Trees.
+     * 
+     * @return The Assembler.
+     */
+    static Assembler<Tree<String>> assembler() {
+        return new TreeAssembler();
+    }
+    
+    /**
+     * An Assembler of Trees.
+     */
+    private static class TreeAssembler implements Assembler<Tree<String>> {
+        private final ArrayList<Tree<String>> open = new ArrayList<Tree<String>>();
+        private Tree<String> root;
+        
+        @Override
+        public void begin(String value) {
+        	Tree<String> node = new Tree<String>(value);
+        	attach(node);
+        	open.add(node);
+        }
+        
+        @Override
+        public void leaf(String value) {
+            attach(new Tree<String>(value));
+        }
+        
+        @Override
+        public void end() {
+            open.remove(open.size() - 1);
+        }
+        
+        @Override
+        public Tree<String> result() {
+            return root;
+        }
+        
+        /**
+         * Adds a new node as the last child of the innermost open node, or
+         * as the root.
+         * 
+         * @param node The new node.
+         */
+        private void attach(Tree<String> node) {
+        	if (open.isEmpty()) {
+        		root = node;
+        	} else {
+        		open.get(open.size() - 1).adopt(node);
+        	}
+        }
+    }
+    
+    /**
+     * A source of tokens for the parser, each of which is a left
+     * parenthesis, a right parenthesis, or a sequence of non-whitespace,
+     * non-parenthesis characters.
+     */
+    interface Tokenizer {
+        
+        /**
+         * Tests if there are more tokens.
+         * 
+         * @return <code>true</code> if there may be more tokens.
+         */
+        boolean hasNext();
+        
+        /**
+         * Returns the next token (or a pushed back token, if there is one.)
+         * 
+         * @return The next token, or <code>null</code> if there are no more.
+         */
+        String next();
+        
+        /**
+         * Returns a token to this tokenizer so that it will be returned by
+         * the next call to the <code>next()</code> method.
+         * 
+         * @param token The token to be reused.
+         */
+        void pushBack(String token);
+    }
+    
     /**
      * A Tokenizer that returns one of four things: a left parenthesis, a
      * right parenthesis, a sequence of non-whitespace, non-parenthesis
      * characters, or <code>null</code> if there are no more tokens.
+     * Parentheses are returned as shared constant strings, and whitespace
+     * is skipped without being materialized, so only value tokens allocate.
      * 
      * @author David Matuszek
      */
-    static class PushbackStringTokenizer {
-        private StringTokenizer tokenizer;
+    static class PushbackStringTokenizer implements Tokenizer {
+        private final CharTokenizer tokenizer;
         private String pushedValue = null;
         
         /**
@@ -360,8 +1032,18 @@ public class Tree<V> implements Iterable<Tree<V>> {
          * @param input The string to be tokenized.
          */
         PushbackStringTokenizer(String input) {
-            tokenizer = new StringTokenizer(input, " \t\n\r\f()", true);
-            pushedValue = null;
+            this(input, false);
+        }
+        
+        /**
+         * Constructs a tokenizer for the input that uses whitespace and
+         * parentheses as delimiters.
+         * 
+         * @param input The characters to be tokenized.
+         * @param intern Whether equal values should be returned as one String.
+         */
+        PushbackStringTokenizer(CharSequence input, boolean intern) {
+            tokenizer = new CharTokenizer(input, intern);
         }
         
         /**
@@ -370,8 +1052,9 @@ public class Tree<V> implements Iterable<Tree<V>> {
          * @return <code>true</code> if there are more tokens,
          *         <code>false</code> otherwise.         
          */
-        boolean hasNext() {
-            return pushedValue != null || tokenizer.hasMoreTokens();
+        @Override
+        public boolean hasNext() {
+            return pushedValue != null || tokenizer.hasNext();
         }
         
         /**
@@ -384,17 +1067,24 @@ public class Tree<V> implements Iterable<Tree<V>> {
          * 
          * @return The next token, or <code>null</code> if there are no more.
          */
-        String next() {
+        @Override
+        public String next() {
             String temp = pushedValue;
-            if (temp == null && tokenizer.hasMoreTokens()) {
-                temp = tokenizer.nextToken().trim();
+            if (temp != null) {
+            	pushedValue = null;
+            	return temp;
             }
-            pushedValue = null;
-            // skip whitespace tokens
-            if (temp != null && temp.length() == 0) {
-                temp = next();
+            
+            switch (tokenizer.advance()) {
+            case CharTokenizer.LEFT:
+            	return "(";
+            case CharTokenizer.RIGHT:
+            	return ")";
+            case CharTokenizer.VALUE:
+            	return tokenizer.value();
+            default:
+            	return null;
             }
-            return temp;
         }
         
         /**
@@ -403,7 +1093,8 @@ public class Tree<V> implements Iterable<Tree<V>> {
          * 
          * @param token The token to be reused.
          */
-        void pushBack(String token) {
+        @Override
+        public void pushBack(String token) {
             pushedValue = token;
         }
     }
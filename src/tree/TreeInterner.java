@@ -0,0 +1,163 @@
+package tree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hash-consing factory for Trees. Every Tree returned by an interner is
+ * canonical: structurally equal Trees obtained from the same interner are
+ * the same object, so repeated subtrees are stored only once and the
+ * result is a directed acyclic graph of shared nodes.
+ * <p>
+ * Because they are shared, canonical Trees must not be changed with
+ * <code>setValue</code> or <code>addChild</code>; doing so would change
+ * every place the node appears and corrupt the interner.
+ *
+ * @author Anders Schneider
+ * @param <V> The type of value held in each Tree node.
+ */
+public class TreeInterner<V> {
+    private final Map<Key<V>, Tree<V>> nodes = new HashMap<Key<V>, Tree<V>>();
+
+    /**
+     * Returns the canonical Tree structurally equal to the given one,
+     * interning any of its subtrees not seen before. The given Tree is not
+     * changed, nor made part of the result. Each node is interned after its
+     * children, without recursion, so Trees of any depth can be interned.
+     *
+     * @param tree The tree to be interned.
+     * @return The canonical equivalent of <code>tree</code>.
+     */
+    public Tree<V> intern(Tree<V> tree) {
+    	// The canonical form of each node already interned, so that a node
+    	// reached more than once is interned only once
+    	Map<Tree<V>, Tree<V>> done = new IdentityHashMap<Tree<V>, Tree<V>>();
+    	// The canonical children of the nodes on the path, in order
+    	List<Tree<V>> interned = new ArrayList<Tree<V>>();
+    	TreePath<V> path = new TreePath<V>();
+    	path.push(tree);
+    	while (!path.isEmpty()) {
+    		Tree<V> node = path.top();
+    		int i = path.advance();
+
+    		if (i < node.getNumberOfChildren()) {
+    			Tree<V> child = node.getChild(i);
+    			Tree<V> canonical = done.get(child);
+    			if (canonical == null) {
+    				path.push(child);
+    			} else {
+    				interned.add(canonical);
+    			}
+    		} else {
+    			path.pop();
+    			List<Tree<V>> children = interned.subList(interned.size() - i, interned.size());
+    			Tree<V> canonical = node(node.getValue(), new ArrayList<Tree<V>>(children));
+    			children.clear();
+    			done.put(node, canonical);
+    			interned.add(canonical);
+    		}
+    	}
+    	return interned.get(0);
+    }
+
+    /**
+     * Returns the canonical Tree with the given value and children, which
+     * must themselves be canonical Trees from this interner.
+     *
+     * @param value The value of the root.
+     * @param children The canonical children of the root.
+     * @return The canonical Tree.
+     */
+    @SafeVarargs
+    public final Tree<V> node(V value, Tree<V>... children) {
+    	List<Tree<V>> list = new ArrayList<Tree<V>>(children.length);
+    	for (Tree<V> child : children) {
+    		list.add(child);
+    	}
+        return node(value, list);
+    }
+
+    /**
+     * Returns the canonical Tree with the given value and canonical children.
+     *
+     * @param value The value of the root.
+     * @param children The canonical children of the root.
+     * @return The canonical Tree.
+     */
+    private Tree<V> node(V value, List<Tree<V>> children) {
+    	Key<V> key = new Key<V>(value, children);
+    	Tree<V> canonical = nodes.get(key);
+
+    	if (canonical == null) {
+    		// A new node cannot occur below its children, so skip addChild's
+    		// cycle check, which would walk each shared subtree repeatedly
+    		@SuppressWarnings("unchecked")
+    		Tree<V>[] array = children.toArray((Tree<V>[]) new Tree<?>[children.size()]);
+    		canonical = new Tree<V>(value, array);
+    		nodes.put(key, canonical);
+    	}
+    	return canonical;
+    }
+
+    /**
+     * Returns the number of distinct nodes interned so far.
+     *
+     * @return The number of canonical Trees.
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * Identifies a node by its value and the identities of its (canonical)
+     * children, so that lookups never need to compare whole subtrees.
+     *
+     * @param <V> The type of value held in each Tree node.
+     */
+    private static class Key<V> {
+        private final V value;
+        private final List<Tree<V>> children;
+        private final int hash;
+
+        /**
+         * Constructs a Key.
+         *
+         * @param value The value of the node.
+         * @param children The canonical children of the node.
+         */
+        Key(V value, List<Tree<V>> children) {
+            this.value = value;
+            this.children = children;
+
+            int h = value == null ? 0 : value.hashCode();
+            for (Tree<V> child : children) {
+            	h = 31 * h + System.identityHashCode(child);
+            }
+            this.hash = h;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+        	if (!(obj instanceof Key<?>)) {return false;}
+
+        	Key<?> other = (Key<?>) obj;
+        	if (hash != other.hash || children.size() != other.children.size()) {return false;}
+        	if (value == null ? other.value != null : !value.equals(other.value)) {return false;}
+
+        	for (int i = 0; i < children.size(); i++) {
+        		if (children.get(i) != other.children.get(i)) {return false;}
+        	}
+        	return true;
+        }
+    }
+}
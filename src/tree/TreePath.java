@@ -0,0 +1,90 @@
+package tree;
+
+import java.util.Arrays;
+
+/**
+ * The path from the root of a Tree to the node currently being visited in
+ * a depth-first traversal, kept on the heap rather than on the thread's
+ * call stack. Each node on the path remembers how many of its children
+ * have been visited, so traversals of arbitrarily deep Trees are simple
+ * loops:
+ * <pre>
+ * path.push(root);
+ * while (!path.isEmpty()) {
+ *     int i = path.advance();
+ *     if (i &lt; path.top().getNumberOfChildren()) {
+ *         path.push(path.top().getChild(i));
+ *     } else {
+ *         path.pop();
+ *     }
+ * }</pre>
+ *
+ * @author Anders Schneider
+ * @param <V> The type of value held in each Tree node.
+ */
+final class TreePath<V> {
+    private Object[] nodes = new Object[16];
+    private int[] next = new int[16];
+    private int depth = 0;
+
+    /**
+     * Descends to the given node, none of whose children has been visited.
+     *
+     * @param node A child of the current node, or the root.
+     */
+    void push(Tree<V> node) {
+    	if (depth == nodes.length) {
+    		nodes = Arrays.copyOf(nodes, depth * 2);
+    		next = Arrays.copyOf(next, depth * 2);
+    	}
+    	nodes[depth] = node;
+    	next[depth] = 0;
+    	depth++;
+    }
+
+    /**
+     * Returns the node currently being visited.
+     *
+     * @return The last node on the path.
+     */
+    @SuppressWarnings("unchecked")
+    Tree<V> top() {
+        return (Tree<V>) nodes[depth - 1];
+    }
+
+    /**
+     * Returns the index of the next child of the current node to be
+     * visited, and counts it as visited. This is also the number of its
+     * children visited before.
+     *
+     * @return The index of the next child.
+     */
+    int advance() {
+        return next[depth - 1]++;
+    }
+
+    /**
+     * Returns to the parent of the current node.
+     */
+    void pop() {
+        nodes[--depth] = null;
+    }
+
+    /**
+     * Tests whether the traversal is over.
+     *
+     * @return <code>true</code> iff the path is empty.
+     */
+    boolean isEmpty() {
+        return depth == 0;
+    }
+
+    /**
+     * Returns the depth of the current node, the root being at depth 1.
+     *
+     * @return The number of nodes on the path.
+     */
+    int depth() {
+        return depth;
+    }
+}
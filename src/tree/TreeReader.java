@@ -0,0 +1,264 @@
+package tree;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a sequence of Trees of Strings, one after another, from a stream of
+ * text in the form produced by <code>Tree.toString()</code>. For example,
+ * the text <code>"a (b c) d e (f)"</code> holds the three Trees
+ * <code>a (b c)</code>, <code>d</code> and <code>e (f)</code>.
+ * <p>
+ * The text is tokenized incrementally from a fixed-size buffer, and only the
+ * values of nodes are ever copied out of it, so the memory used while
+ * parsing is proportional to the Tree being built rather than to the input.
+ *
+ * @author Anders Schneider
+ */
+public class TreeReader implements Closeable {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader input;
+    private final ReaderTokenizer tokenizer;
+
+    /**
+     * Constructs a TreeReader over the given text.
+     *
+     * @param input The source of the text.
+     */
+    public TreeReader(Reader input) {
+        this(input, BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a TreeReader over the given UTF-8 encoded text.
+     *
+     * @param input The source of the text.
+     */
+    public TreeReader(ReadableByteChannel input) {
+        this(Channels.newReader(input, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE),
+            BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a TreeReader with the given buffer size.
+     *
+     * @param input The source of the text.
+     * @param bufferSize The number of characters to read at a time.
+     */
+    TreeReader(Reader input, int bufferSize) {
+        this.input = input;
+        this.tokenizer = new ReaderTokenizer(input, bufferSize);
+    }
+
+    /**
+     * Reads the next Tree.
+     *
+     * @return The next Tree, or <code>null</code> at the end of the input.
+     * @throws IllegalArgumentException If the input is malformed.
+     * @throws IOException If the input cannot be read.
+     */
+    public Tree<String> read() throws IOException {
+    	Instrumentation.Listener listener = Instrumentation.listener;
+    	if (listener == null) {return read(Tree.assembler());}
+
+    	long start = System.nanoTime();
+    	Instrumentation.CountingAssembler<Tree<String>> counter =
+    			new Instrumentation.CountingAssembler<Tree<String>>(Tree.assembler());
+    	if (read(counter) == null) {return null;}
+    	return counter.record(listener, start);
+    }
+
+    /**
+     * Reads the next Tree into the given assembler.
+     *
+     * @param assembler What builds the Tree.
+     * @return The next Tree, or <code>null</code> at the end of the input.
+     * @throws IllegalArgumentException If the input is malformed.
+     * @throws IOException If the input cannot be read.
+     */
+    private Tree<String> read(Tree.Assembler<Tree<String>> assembler) throws IOException {
+    	try {
+    		String root = tokenizer.next();
+    		if (root == null) {return null;}
+
+    		if ("(".equals(root) || ")".equals(root)) {
+    			throw new IllegalArgumentException("Unexpected expression: " + root);
+    		}
+
+    		// A root without children is followed by the next Tree, if any
+    		String token = tokenizer.next();
+    		tokenizer.pushBack(token);
+    		if (!"(".equals(token)) {
+    			assembler.leaf(root);
+    			return assembler.result();
+    		}
+
+    		return Tree.parse(tokenizer, root, assembler);
+    	} catch (ReaderTokenizer.Failure e) {
+    		throw e.getCause();
+    	}
+    }
+
+    /**
+     * Returns the next token without consuming it.
+     *
+     * @return The next token, or <code>null</code> at the end of the input.
+     * @throws IOException If the input cannot be read.
+     */
+    String peek() throws IOException {
+    	try {
+    		String token = tokenizer.next();
+    		tokenizer.pushBack(token);
+    		return token;
+    	} catch (ReaderTokenizer.Failure e) {
+    		throw e.getCause();
+    	}
+    }
+
+    /**
+     * Closes the underlying input.
+     *
+     * @throws IOException If the input cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+    	input.close();
+    }
+
+    //---------------------------------------------------------------------
+
+    /**
+     * A Tokenizer that reads characters from a Reader into a fixed-size
+     * buffer as they are needed. Parentheses are returned as shared
+     * constant strings; only value tokens are copied out of the buffer.
+     */
+    private static class ReaderTokenizer implements Tree.Tokenizer {
+        private final Reader input;
+        private final char[] buffer;
+        private int position = 0;
+        private int limit = 0;
+        private String pushedValue = null;
+
+        /**
+         * Constructs a ReaderTokenizer.
+         *
+         * @param input The source of the text.
+         * @param bufferSize The number of characters to read at a time.
+         */
+        ReaderTokenizer(Reader input, int bufferSize) {
+            this.input = input;
+            this.buffer = new char[bufferSize];
+        }
+
+        @Override
+        public boolean hasNext() {
+            return pushedValue != null || skipWhitespace();
+        }
+
+        @Override
+        public String next() {
+        	String temp = pushedValue;
+        	if (temp != null) {
+        		pushedValue = null;
+        		return temp;
+        	}
+        	if (!skipWhitespace()) {return null;}
+
+        	char c = buffer[position];
+        	if (c == '(') {
+        		position++;
+        		return "(";
+        	} else if (c == ')') {
+        		position++;
+        		return ")";
+        	}
+
+        	// A value may straddle the end of the buffer
+        	StringBuilder spill = null;
+        	int start = position;
+        	while (true) {
+        		if (position == limit) {
+        			if (spill == null) {spill = new StringBuilder();}
+        			spill.append(buffer, start, position - start);
+        			start = 0;
+        			if (!fill()) {break;}
+        		} else if (CharTokenizer.isDelimiter(buffer[position])) {
+        			break;
+        		} else {
+        			position++;
+        		}
+        	}
+
+        	if (spill == null) {return new String(buffer, start, position - start);}
+        	return spill.append(buffer, start, position - start).toString();
+        }
+
+        @Override
+        public void pushBack(String token) {
+            pushedValue = token;
+        }
+
+        /**
+         * Advances past any whitespace.
+         *
+         * @return <code>true</code> if there is a character after it,
+         *         <code>false</code> at the end of the input.
+         */
+        private boolean skipWhitespace() {
+        	while (true) {
+        		if (position == limit && !fill()) {return false;}
+        		if (!CharTokenizer.isWhitespace(buffer[position])) {return true;}
+        		position++;
+        	}
+        }
+
+        /**
+         * Refills the buffer from the start.
+         *
+         * @return <code>false</code> at the end of the input.
+         * @throws Failure If the input cannot be read.
+         */
+        private boolean fill() {
+        	position = 0;
+        	limit = 0;
+        	try {
+        		int n;
+        		do {
+        			n = input.read(buffer);
+        		} while (n == 0);
+        		if (n < 0) {return false;}
+        		limit = n;
+        		return true;
+        	} catch (IOException e) {
+        		throw new Failure(e);
+        	}
+        }
+
+        /**
+         * Carries an IOException through the parser, which is written in
+         * terms of Tokenizers that cannot throw checked exceptions.
+         */
+        static class Failure extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            /**
+             * Constructs a Failure.
+             *
+             * @param cause The exception that prevented reading.
+             */
+            Failure(IOException cause) {
+                super(cause);
+            }
+
+            @Override
+            public IOException getCause() {
+                return (IOException) super.getCause();
+            }
+        }
+    }
+}
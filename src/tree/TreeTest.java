@@ -2,7 +2,26 @@ package tree;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -23,7 +42,7 @@ public class TreeTest {
     	t1.addChild(t3);
     	t2.addChild(t4);
     	
-    	assertEquals(1684627318, t1.hashCode());
+    	assertEquals(3010, t1.hashCode());
     	
     	Tree<Integer> s1 = new Tree<Integer>(1);
     	Tree<Integer> s2 = new Tree<Integer>(2);
@@ -34,7 +53,7 @@ public class TreeTest {
     	s1.addChild(s3);
     	s1.addChild(s4);
     	
-    	assertEquals(-127595902, s1.hashCode());
+    	assertEquals(31810, s1.hashCode());
     	
     	assertNotEquals(s1.hashCode(), t1.hashCode());
     }
@@ -389,4 +408,759 @@ public class TreeTest {
     	}
     }
 
+    @Test
+    public final void testTreeInterner() {
+    	TreeInterner<String> interner = new TreeInterner<String>();
+    	
+    	Tree<String> t1 = Tree.parse("one (two (x y) three two (x y) four (two (x y)))");
+    	Tree<String> s1 = interner.intern(t1);
+    	
+    	assertTrue(t1.equals(s1));
+    	assertNotSame(t1, s1);
+    	assertSame(s1.getChild(0), s1.getChild(2));
+    	assertSame(s1.getChild(0), s1.getChild(3).getChild(0));
+    	// one, two, x, y, three, four
+    	assertEquals(6, interner.size());
+    	
+    	Tree<String> s2 = interner.intern(Tree.parse("two (x y)"));
+    	assertSame(s1.getChild(0), s2);
+    	assertSame(s2, interner.node("two", interner.node("x"), interner.node("y")));
+    	assertNotSame(s2, interner.node("two", interner.node("y"), interner.node("x")));
+    	assertEquals(7, interner.size());
+    	
+    	TreeInterner<Integer> numbers = new TreeInterner<Integer>();
+    	assertSame(numbers.node(null), numbers.node(null));
+    	assertNotSame(numbers.node(1), numbers.node(1, numbers.node(null)));
+    }
+
+    @Test
+    public final void testParseReader() throws IOException {
+    	String[] inputs = {"one (two three (four five (six seven eight) nine))", "hello",
+    			"hello (goodbye)", "1 (2 (3 (4 (5))))", "1 (2 (3) 4 5 6 (7) 8 9 (10 (11) 12))"};
+    	
+    	for (String input : inputs) {
+    		assertEquals(input, Tree.parse(new StringReader(input)).toString());
+    		assertEquals(input, Tree.parse(Channels.newChannel(
+    				new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)))).toString());
+    	}
+    	
+    	assertEquals("caf\u00e9 (\u00fcber na\u00efve)", Tree.parse(Channels.newChannel(
+    			new ByteArrayInputStream("caf\u00e9(\u00fcber\tna\u00efve)".getBytes(StandardCharsets.UTF_8))))
+    			.toString());
+    	
+    	String[][] bad = {{"5 + 6", "Unexpected expression: +"}, {"(1)", "Unexpected expression: ("},
+    			{"1 (2 (3 (4))", "Unexpected null"}, {"", "Unexpected null"}, {"  ", "Unexpected null"},
+    			{"1 )2 (3 (4))", "Unexpected expression: )"}, {"a (b) c", "Unexpected expression: c"}};
+    	for (String[] b : bad) {
+    		try {
+    			Tree.parse(new StringReader(b[0]));
+    			fail(b[0]);
+    		} catch (IllegalArgumentException e) {
+    			assertEquals(b[0], b[1], e.getMessage());
+    		}
+    	}
+    }
+
+    @Test
+    public final void testTreeReader() throws IOException {
+    	String input = "a (b c)  d\ne (f)\n\n long_value_that_straddles_buffers (x (y z))";
+    	
+    	// Tiny buffers make every token cross a buffer boundary
+    	for (int bufferSize : new int[] {1, 2, 3, 5, 8192}) {
+    		TreeReader reader = new TreeReader(new StringReader(input), bufferSize);
+    		assertEquals("a (b c)", reader.read().toString());
+    		assertEquals("d", reader.read().toString());
+    		assertEquals("e (f)", reader.read().toString());
+    		assertEquals("long_value_that_straddles_buffers (x (y z))", reader.read().toString());
+    		assertNull(reader.read());
+    		assertNull(reader.read());
+    		reader.close();
+    	}
+    	
+    	Reader failing = new Reader() {
+    		private boolean first = true;
+    		
+    		@Override
+    		public int read(char[] cbuf, int off, int len) throws IOException {
+    			if (!first) {throw new IOException("Disk on fire");}
+    			first = false;
+    			cbuf[off] = 'a';
+    			return 1;
+    		}
+    		
+    		@Override
+    		public void close() {}
+    	};
+    	try {
+    		new TreeReader(failing, 1).read();
+    		fail();
+    	} catch (IOException e) {
+    		assertEquals("Disk on fire", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testParseCharSequence() {
+    	String input = "+ (1 *(1 x) -(x 1) x)";
+    	
+    	Tree<String> plain = Tree.parse(input, false);
+    	Tree<String> interned = Tree.parse(CharBuffer.wrap(input.toCharArray()), true);
+    	assertEquals("+ (1 * (1 x) - (x 1) x)", plain.toString());
+    	assertTrue(plain.equals(interned));
+    	
+    	assertNotSame(plain.getChild(0).getValue(), plain.getChild(1).getChild(0).getValue());
+    	assertSame(interned.getChild(0).getValue(), interned.getChild(1).getChild(0).getValue());
+    	assertSame(interned.getChild(3).getValue(), interned.getChild(2).getChild(0).getValue());
+    	
+    	// Enough distinct values to grow the intern table
+    	StringBuilder many = new StringBuilder("root (");
+    	for (int i = 0; i < 200; i++) {
+    		many.append(" v").append(i % 100);
+    	}
+    	Tree<String> t = Tree.parse(many.append(')'), true);
+    	assertEquals(200, t.getNumberOfChildren());
+    	assertSame(t.getChild(7).getValue(), t.getChild(107).getValue());
+    	assertEquals("v7", t.getChild(107).getValue());
+    	
+    	CharTokenizer tokenizer = new CharTokenizer(" ab( c)\t", false);
+    	assertEquals(CharTokenizer.VALUE, tokenizer.advance());
+    	assertEquals(1, tokenizer.start());
+    	assertEquals(3, tokenizer.end());
+    	assertEquals("ab", tokenizer.value());
+    	assertEquals(CharTokenizer.LEFT, tokenizer.advance());
+    	assertEquals(3, tokenizer.start());
+    	assertEquals(CharTokenizer.VALUE, tokenizer.advance());
+    	assertEquals(CharTokenizer.RIGHT, tokenizer.advance());
+    	assertTrue(!tokenizer.hasNext());
+    	assertEquals(CharTokenizer.END, tokenizer.advance());
+    }
+
+    @Test
+    public final void testDeepTree() {
+    	int depth = 1000000;
+    	String input = deepChain(depth, "a (", "b", ")");
+    	
+    	Tree<String> tree = Tree.parse(input);
+    	Tree<String> deepest = tree;
+    	for (int i = 0; i < depth; i++) {
+    		assertEquals("a", deepest.getValue());
+    		assertEquals(1, deepest.getNumberOfChildren());
+    		deepest = deepest.getChild(0);
+    	}
+    	assertEquals("b", deepest.getValue());
+    	assertEquals(0, deepest.getNumberOfChildren());
+    	
+    	assertEquals(input, tree.toString());
+    	
+    	Tree<String> copy = Tree.parse(input);
+    	assertTrue(tree.equals(copy));
+    	assertEquals(tree.hashCode(), copy.hashCode());
+    	copy.getChild(0).getChild(0).setValue("c");
+    	assertFalse(tree.equals(copy));
+    	
+    	TreeInterner<String> interner = new TreeInterner<String>();
+    	Tree<String> canonical = interner.intern(tree);
+    	assertEquals(depth + 1, interner.size());
+    	assertTrue(tree.equals(canonical));
+    	assertSame(canonical, interner.intern(Tree.parse(input)));
+    	
+    	assertTrue(tree.contains(deepest));
+    	assertFalse(tree.contains(copy));
+    	try {
+    		deepest.addChild(tree);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    }
+
+    @Test
+    public final void testCachedHashCode() {
+    	Tree<String> tree = Tree.parse("x (a (b c (d e f)) (g h) i (j (k (l m))))");
+    	Tree<String> same = Tree.parse(tree.toString());
+    	int hash = tree.hashCode();
+    	assertEquals(structuralHash(tree), hash);
+    	assertEquals(hash, tree.hashCode());
+    	assertEquals(hash, same.hashCode());
+    	
+    	// Changes deep inside invalidate the cached hash codes above them
+    	Tree<String> d = tree.getChild(0).getChild(1);
+    	d.getChild(2).setValue("z");
+    	assertEquals(structuralHash(tree), tree.hashCode());
+    	assertTrue(hash != tree.hashCode());
+    	assertFalse(tree.equals(same));
+    	d.getChild(2).setValue("f");
+    	assertEquals(hash, tree.hashCode());
+    	assertTrue(tree.equals(same));
+    	
+    	d.addChild(new Tree<String>("n"));
+    	assertEquals(structuralHash(tree), tree.hashCode());
+    	d.addChild(0, new Tree<String>("n"));
+    	assertEquals(structuralHash(tree), tree.hashCode());
+    	d.addChildren(new Tree<String>("p"), new Tree<String>("q"));
+    	assertEquals(structuralHash(tree), tree.hashCode());
+    	assertFalse(tree.equals(same));
+    	
+    	// A subtree shared by two parents invalidates both
+    	Tree<String> shared = Tree.parse("s (t u)");
+    	Tree<String> left = new Tree<String>("left", shared);
+    	Tree<String> right = new Tree<String>("right");
+    	right.addChild(shared);
+    	Tree<String> both = new Tree<String>("both", left, right);
+    	int before = both.hashCode();
+    	shared.getChild(1).setValue("v");
+    	assertEquals(structuralHash(left), left.hashCode());
+    	assertEquals(structuralHash(right), right.hashCode());
+    	assertEquals(structuralHash(both), both.hashCode());
+    	assertTrue(before != both.hashCode());
+    	
+    	assertEquals(0, new Tree<String>(null).hashCode());
+    	
+    	try {
+    		Iterator<Tree<String>> iter = tree.iterator();
+    		iter.next();
+    		iter.remove();
+    		fail();
+    	} catch (UnsupportedOperationException e) {
+    		// expected
+    	}
+    }
+    
+    private static int structuralHash(Tree<String> tree) {
+    	int hash = tree.getValue() == null ? 0 : tree.getValue().hashCode();
+    	for (Tree<String> child : tree) {
+    		hash = 31 * hash + structuralHash(child);
+    	}
+    	return hash;
+    }
+
+    // The text of a chain depth levels deep: every level's opening, the leaf, every level's closing
+    static String deepChain(int depth, String open, String leaf, String close) {
+    	StringBuilder sb = new StringBuilder(depth * (open.length() + close.length()) + leaf.length());
+    	for (int i = 0; i < depth; i++) {
+    		sb.append(open);
+    	}
+    	sb.append(leaf);
+    	for (int i = 0; i < depth; i++) {
+    		sb.append(close);
+    	}
+        return sb.toString();
+    }
+
+    @Test
+    public final void testPrintDeepTree() {
+    	int depth = 20000;
+    	Tree<String> tree = new Tree<String>("0");
+    	Tree<String> end = tree;
+    	for (int i = 1; i <= depth; i++) {
+    		Tree<String> next = new Tree<String>(String.valueOf(i % 10));
+    		end.addChild(next);
+    		end = next;
+    	}
+    	
+    	final long[] counts = new long[2];
+    	PrintStream out = System.out;
+    	System.setOut(new PrintStream(new OutputStream() {
+    		@Override
+    		public void write(int b) {
+    			counts[b == '\n' ? 0 : 1]++;
+    		}
+
+    		@Override
+    		public void write(byte[] b, int off, int len) {
+    			for (int i = off; i < off + len; i++) {
+    				write(b[i]);
+    			}
+    		}
+    	}));
+    	try {
+    		tree.print();
+    	} finally {
+    		System.setOut(out);
+    	}
+    	
+    	// Line i has i spaces and one digit
+    	assertEquals(depth + 1, counts[0]);
+    	assertEquals((long) depth * (depth + 1) / 2 + depth + 1, counts[1]);
+    }
+
+    @Test
+    public final void testWriteTo() throws IOException {
+    	for (String input : new String[] {"a", "a (b)", "a (b c (d e f) g (h (i)))"}) {
+    		Tree<String> tree = Tree.parse(input);
+    		StringWriter out = new StringWriter();
+    		tree.writeTo(out);
+    		assertEquals(input, out.toString());
+    		assertEquals(input, tree.toString());
+    	}
+    	
+    	Appendable broken = new Appendable() {
+    		public Appendable append(CharSequence csq) throws IOException {
+    			throw new IOException("Broken");
+    		}
+    		public Appendable append(CharSequence csq, int start, int end) throws IOException {
+    			throw new IOException("Broken");
+    		}
+    		public Appendable append(char c) throws IOException {
+    			throw new IOException("Broken");
+    		}
+    	};
+    	try {
+    		Tree.parse("a (b)").writeTo(broken);
+    		fail();
+    	} catch (IOException e) {
+    		assertEquals("Broken", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testPrintAppendable() throws IOException {
+    	String newline = System.lineSeparator();
+    	StringBuilder out = new StringBuilder();
+    	Tree.parse("a (b (c d) e (f (g)) h)").print(out);
+    	assertEquals("a" + newline + " b" + newline + "  c" + newline + "  d" + newline
+    			+ " e" + newline + "  f" + newline + "   g" + newline + " h" + newline,
+    			out.toString());
+    	
+    	out.setLength(0);
+    	new Tree<String>("x").print(out);
+    	assertEquals("x" + newline, out.toString());
+    }
+
+    @Test
+    public final void testBuildLargeTree() {
+    	int size = 1000000;
+    	
+    	// Bottom up, each new root adopting the last
+    	Tree<Integer> chain = new Tree<Integer>(0);
+    	Tree<Integer> deepest = chain;
+    	for (int i = 1; i < size; i++) {
+    		Tree<Integer> parent = new Tree<Integer>(i);
+    		parent.addChild(chain);
+    		chain = parent;
+    	}
+    	try {
+    		deepest.addChild(chain);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    	
+    	// Top down, with a builder
+    	Tree.Builder<Integer> builder = new Tree.Builder<Integer>(size - 1);
+    	for (int i = size - 2; i > 0; i--) {
+    		builder.begin(i);
+    	}
+    	builder.leaf(0);
+    	for (int i = size - 2; i > 0; i--) {
+    		builder.end();
+    	}
+    	Tree<Integer> built = builder.build();
+    	assertTrue(chain.equals(built));
+    	assertEquals(chain.hashCode(), built.hashCode());
+    	
+    	// Wide and shallow
+    	Tree<Integer> wide = new Tree<Integer>(0);
+    	for (int i = 1; i < 1000; i++) {
+    		wide.addChild(new Tree<Integer>(i));
+    	}
+    	for (int i = 1000; i < size; i++) {
+    		wide.getChild(i % 999).addChild(new Tree<Integer>(i));
+    	}
+    	assertEquals(999, wide.getNumberOfChildren());
+    }
+
+    @Test
+    public final void testBuilder() {
+    	Tree<String> x = Tree.parse("x (y)");
+    	Tree<String> tree = new Tree.Builder<String>("+")
+    			.leaf("1")
+    			.begin("*").leaf("2").add(x).end()
+    			.begin("-").begin("/").leaf("3").leaf("4").end().leaf("5").end()
+    			.build();
+    	assertEquals("+ (1 * (2 x (y)) - (/ (3 4) 5))", tree.toString());
+    	assertSame(x, tree.getChild(1).getChild(1));
+    	
+    	// The shared subtree is now below two parents
+    	Tree<String> other = new Tree<String>("other", x);
+    	try {
+    		x.getChild(0).addChild(tree);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    	try {
+    		x.addChild(other);
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		// expected
+    	}
+    	x.addChild(new Tree<String>("y"));
+    	assertEquals("+ (1 * (2 x (y y)) - (/ (3 4) 5))", tree.toString());
+    	assertEquals("other (x (y y))", other.toString());
+    	
+    	Tree.Builder<String> unfinished = new Tree.Builder<String>("a").begin("b").leaf("c");
+    	try {
+    		unfinished.build();
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Node not ended: b", e.getMessage());
+    	}
+    	unfinished.end();
+    	try {
+    		unfinished.end();
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("No node to end", e.getMessage());
+    	}
+    	assertEquals("a (b (c))", unfinished.build().toString());
+    	try {
+    		unfinished.leaf("d");
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Tree already built", e.getMessage());
+    	}
+    }
+
+    @Test
+    public final void testPersistentTree() {
+    	Tree<String> tree = Tree.parse("a (b (c d) e (f g))");
+    	PersistentTree<String> t = PersistentTree.from(tree);
+    	assertEquals("a (b (c d) e (f g))", t.toString());
+    	assertEquals(tree.hashCode(), t.hashCode());
+    	assertTrue(tree.equals(t.toTree()));
+    	assertNotSame(t.toTree(), t.toTree());
+    	
+    	// Editing copies only the path to the change
+    	PersistentTree<String> u = t.replace(new int[] {0, 1}, PersistentTree.of("x"));
+    	assertEquals("a (b (c d) e (f g))", t.toString());
+    	assertEquals("a (b (c x) e (f g))", u.toString());
+    	assertSame(t.get(0, 0), u.get(0, 0));
+    	assertSame(t.get(1), u.get(1));
+    	assertNotSame(t.get(0), u.get(0));
+    	assertFalse(t.equals(u));
+    	assertTrue(u.equals(PersistentTree.from(Tree.parse(u.toString()))));
+    	
+    	PersistentTree<String> v = u.replace(new int[] {1}, u.get(1).withValue("h").withChildAdded(0, PersistentTree.of("i")));
+    	assertEquals("a (b (c x) h (i f g))", v.toString());
+    	assertEquals("a (h (i f g))", v.withChildRemoved(0).toString());
+    	assertEquals("a (b (c x) z)", v.withChild(1, PersistentTree.of("z")).toString());
+    	assertEquals("q", v.replace(new int[0], PersistentTree.of("q")).toString());
+    	assertEquals("r (s)", PersistentTree.of("r").withChildAdded(PersistentTree.of("s")).toString());
+    	assertEquals("r", PersistentTree.of("r", PersistentTree.of("s")).withChildRemoved(0).toString());
+    	assertEquals(Tree.parse(v.toString()).hashCode(), v.hashCode());
+    	
+    	try {
+    		t.replace(new int[] {0, 2}, PersistentTree.of("x"));
+    		fail();
+    	} catch (IndexOutOfBoundsException e) {
+    		assertEquals("Index: 2, Size: 2", e.getMessage());
+    	}
+    	try {
+    		t.iterator().remove();
+    		fail();
+    	} catch (UnsupportedOperationException e) {
+    		// expected
+    	}
+    	
+    	// Shared subtrees stay shared
+    	Tree<String> shared = Tree.parse("s (t)");
+    	PersistentTree<String> p = PersistentTree.from(new Tree<String>("p", shared, shared));
+    	assertSame(p.getChild(0), p.getChild(1));
+    	
+    	// Deep trees
+    	int depth = 100000;
+    	Tree.Builder<String> builder = new Tree.Builder<String>("n");
+    	for (int i = 1; i < depth; i++) {
+    		builder.begin("n");
+    	}
+    	for (int i = 1; i < depth; i++) {
+    		builder.end();
+    	}
+    	Tree<String> chain = builder.build();
+    	PersistentTree<String> deep = PersistentTree.from(chain);
+    	assertEquals(chain.hashCode(), deep.hashCode());
+    	assertTrue(chain.equals(deep.toTree()));
+    	assertTrue(deep.equals(PersistentTree.from(chain)));
+    	assertEquals(chain.toString(), deep.toString());
+    }
+
+    @Test
+    public final void testCompactTree() {
+    	String input = "a (b (c d) e (f g (h)) b)";
+    	CompactTree<String> compact = Tree.parseCompact(input);
+    	Tree<String> tree = Tree.parse(input);
+    	assertEquals(input, compact.toString());
+    	assertEquals(9, compact.size());
+    	assertEquals(8, compact.getNumberOfValues());
+    	assertEquals(tree.hashCode(), compact.hashCode());
+    	assertTrue(tree.equals(compact.toTree()));
+    	assertTrue(compact.equals(CompactTree.from(tree)));
+    	assertFalse(compact.equals(Tree.parseCompact("a (b (c d) e (f g (i)) b)")));
+    	
+    	// Nodes are numbered in preorder
+    	assertEquals("a", compact.getValue(0));
+    	assertEquals(3, compact.getNumberOfChildren(0));
+    	assertEquals(4, compact.getChild(0, 1));
+    	assertEquals("e", compact.getValue(4));
+    	assertEquals(0, compact.getParent(4));
+    	assertEquals(CompactTree.NONE, compact.getParent(0));
+    	assertEquals(5, compact.getFirstChild(4));
+    	assertEquals(6, compact.getNextSibling(5));
+    	assertEquals(CompactTree.NONE, compact.getNextSibling(8));
+    	assertEquals(CompactTree.NONE, compact.getFirstChild(8));
+    	
+    	CompactTree.Node<String> root = compact.getRoot();
+    	assertEquals("e (f g (h))", root.getChild(1).toString());
+    	assertEquals("g", root.getChild(1).getChild(1).getValue());
+    	assertEquals(root.getChild(2), root.getChild(2));
+    	StringBuilder values = new StringBuilder();
+    	for (CompactTree.Node<String> child : root) {
+    		values.append(child.getValue()).append(child.getNumberOfChildren());
+    	}
+    	assertEquals("b2e2b0", values.toString());
+    	
+    	try {
+    		compact.getChild(0, 3);
+    		fail();
+    	} catch (IndexOutOfBoundsException e) {
+    		assertEquals("Index: 3, Size: 3", e.getMessage());
+    	}
+    	try {
+    		compact.getValue(9);
+    		fail();
+    	} catch (IndexOutOfBoundsException e) {
+    		assertEquals("Node: 9, Size: 9", e.getMessage());
+    	}
+    	
+    	assertEquals("x", Tree.parseCompact("x").toString());
+    	try {
+    		Tree.parseCompact("a (b");
+    		fail();
+    	} catch (IllegalArgumentException e) {
+    		assertEquals("Unexpected null", e.getMessage());
+    	}
+    	
+    	CompactTree.Builder<Integer> builder = new CompactTree.Builder<Integer>();
+    	builder.begin(1).leaf(2).begin(3).leaf(4).end().end();
+    	try {
+    		builder.leaf(5);
+    		fail();
+    	} catch (IllegalStateException e) {
+    		assertEquals("Tree already has a root", e.getMessage());
+    	}
+    	assertEquals("1 (2 3 (4))", builder.build().toString());
+    	
+    	// Deep trees
+    	int depth = 100000;
+    	String deep = deepChain(depth, "n (", "m", ")");
+    	CompactTree<String> chain = Tree.parseCompact(deep);
+    	assertEquals(depth + 1, chain.size());
+    	assertEquals(deep, chain.toString());
+    	assertEquals(Tree.parse(deep, false).hashCode(), chain.hashCode());
+    	assertTrue(chain.equals(CompactTree.from(chain.toTree())));
+    }
+    
+    @Test
+    public final void testMappedTree() throws IOException {
+    	String input = "a (b (c d) e (f g (h)) b (\u00e9t\u00e9))";
+    	Tree<String> tree = Tree.parse(input);
+    	Path file = Files.createTempFile("tree", ".bin");
+    	try {
+    		MappedTree.write(tree, file);
+    		MappedTree mapped = MappedTree.open(file);
+    		assertFalse(mapped.isExpression());
+    		assertEquals(10, mapped.size());
+    		assertTrue(tree.equals(mapped.toTree()));
+    		assertEquals("a", mapped.getValue(0));
+    		assertEquals("\u00e9t\u00e9", mapped.getValue(9));
+    		assertEquals(4, mapped.getChild(0, 1));
+    		assertEquals(0, mapped.getParent(4));
+    		assertEquals(MappedTree.NONE, mapped.getParent(0));
+    		assertEquals(5, mapped.getFirstChild(4));
+    		assertEquals(6, mapped.getNextSibling(5));
+    		assertEquals(MappedTree.NONE, mapped.getNextSibling(8));
+    		assertEquals(MappedTree.NONE, mapped.getFirstChild(9));
+    		assertTrue(mapped.getVariables().isEmpty());
+    		try {
+    			mapped.getChild(0, 3);
+    			fail();
+    		} catch (IndexOutOfBoundsException e) {
+    			assertEquals("Index: 3, Size: 3", e.getMessage());
+    		}
+    		try {
+    			mapped.getValue(10);
+    			fail();
+    		} catch (IndexOutOfBoundsException e) {
+    			assertEquals("Node: 10, Size: 10", e.getMessage());
+    		}
+    		try {
+    			mapped.evaluate();
+    			fail();
+    		} catch (IllegalStateException e) {
+    			assertEquals("Not an Expression", e.getMessage());
+    		}
+    		
+    		// Segments far smaller than the file, so that values span them
+    		MappedTree segmented = MappedTree.open(file, 3);
+    		assertTrue(tree.equals(segmented.toTree()));
+    		
+    		// Deep trees
+    		int depth = 100000;
+    		StringBuilder deep = new StringBuilder();
+    		for (int i = 0; i < depth; i++) {
+    			deep.append("n").append(i % 10).append(" (");
+    		}
+    		deep.append("m");
+    		for (int i = 0; i < depth; i++) {
+    			deep.append(')');
+    		}
+    		CompactTree<String> chain = Tree.parseCompact(deep);
+    		MappedTree.write(chain, file);
+    		mapped = MappedTree.open(file);
+    		assertEquals(depth + 1, mapped.size());
+    		assertEquals("m", mapped.getValue(depth));
+    		assertEquals(depth - 1, mapped.getParent(depth));
+    		assertEquals(deep.toString(), mapped.toTree().toString());
+    		
+    		Files.write(file, "a (b c)".getBytes(StandardCharsets.UTF_8));
+    		try {
+    			MappedTree.open(file);
+    			fail();
+    		} catch (IOException e) {
+    			assertEquals("Not a tree file: " + file, e.getMessage());
+    		}
+    	} finally {
+    		Files.delete(file);
+    	}
+    }
+    
+    /**
+     * Joins the values of the given nodes.
+     */
+    private static String values(Iterable<Tree<String>> nodes) {
+    	StringBuilder sb = new StringBuilder();
+    	for (Tree<String> node : nodes) {
+    		sb.append(node.getValue());
+    	}
+    	return sb.toString();
+    }
+    
+    @Test
+    public final void testTraversals() {
+    	Tree<String> tree = Tree.parse("a (b (c d) e (f g (h)) i)");
+    	assertEquals("abcdefghi", values(tree.preorder()));
+    	assertEquals("cdbfhgeia", values(tree.postorder()));
+    	assertEquals("abeicdfgh", values(tree.levelOrder()));
+    	assertEquals("abcdefghi", tree.nodes().map(Tree::getValue).collect(Collectors.joining()));
+    	assertEquals("h", values(Tree.parse("h").preorder()));
+    	assertEquals("h", values(Tree.parse("h").postorder()));
+    	assertEquals("h", values(Tree.parse("h").levelOrder()));
+    	
+    	// Iteration is lazy
+    	Iterator<Tree<String>> it = tree.preorder().iterator();
+    	assertEquals("a", it.next().getValue());
+    	assertEquals("b", it.next().getValue());
+    	try {
+    		it.remove();
+    		fail();
+    	} catch (UnsupportedOperationException e) {
+    		// expected
+    	}
+    	
+    	// Adding children to a node whose children are being visited
+    	it = tree.preorder().iterator();
+    	it.next();
+    	it.next();
+    	tree.addChild(new Tree<String>("j"));
+    	try {
+    		while (it.hasNext()) {it.next();}
+    		fail();
+    	} catch (ConcurrentModificationException e) {
+    		// expected
+    	}
+    	for (Iterable<Tree<String>> nodes : Arrays.asList(tree.postorder(), tree.levelOrder())) {
+    		it = nodes.iterator();
+    		it.next();
+    		it.next();
+    		tree.addChild(0, new Tree<String>("k"));
+    		try {
+    			while (it.hasNext()) {it.next();}
+    			fail();
+    		} catch (ConcurrentModificationException e) {
+    			// expected
+    		}
+    	}
+    	try {
+    		tree.nodes().forEach(node -> {
+    			if (node.getValue().equals("d")) {tree.addChild(new Tree<String>("l"));}
+    		});
+    		fail();
+    	} catch (ConcurrentModificationException e) {
+    		// expected
+    	}
+    	
+    	// Children added to a node not yet reached are visited
+    	final Iterator<Tree<String>> partial = tree.preorder().iterator();
+    	partial.next();
+    	Tree<String> last = tree.getChild(tree.getNumberOfChildren() - 1);
+    	last.addChild(new Tree<String>("m"));
+    	assertTrue(values(() -> partial).endsWith("m"));
+    	
+    	it = new Tree<String>("x").preorder().iterator();
+    	it.next();
+    	assertFalse(it.hasNext());
+    	try {
+    		it.next();
+    		fail();
+    	} catch (NoSuchElementException e) {
+    		// expected
+    	}
+    	
+    	// Deep and wide trees
+    	int depth = 1000000;
+    	Tree<String> chain = new Tree<String>("0");
+    	Tree<String> bottom = chain;
+    	for (int i = 1; i < depth; i++) {
+    		Tree<String> next = new Tree<String>(Integer.toString(i % 10));
+    		bottom.adopt(next);
+    		bottom = next;
+    	}
+    	assertSame(bottom, chain.postorder().iterator().next());
+    	int count = 0;
+    	for (Tree<String> node : chain.levelOrder()) {
+    		count++;
+    	}
+    	assertEquals(depth, count);
+    	assertEquals(depth, chain.nodes().parallel().count());
+    	
+    	Tree<String> wide = new Tree<String>("+");
+    	for (int i = 0; i < 1000; i++) {
+    		Tree<String> child = new Tree<String>("*");
+    		for (int j = 0; j < 100; j++) {
+    			child.adopt(new Tree<String>(Integer.toString(j)));
+    		}
+    		wide.adopt(child);
+    	}
+    	assertEquals(101001, wide.nodes().parallel().count());
+    	assertEquals(1000 * 4950L, wide.nodes().parallel()
+    			.filter(n -> n.getNumberOfChildren() == 0)
+    			.mapToLong(n -> Long.parseLong(n.getValue())).sum());
+    	List<String> parallel = wide.nodes().parallel().map(Tree::getValue).collect(Collectors.toList());
+    	List<String> sequential = new ArrayList<String>();
+    	for (Tree<String> node : wide.preorder()) {
+    		sequential.add(node.getValue());
+    	}
+    	assertEquals(sequential, parallel);
+    	
+    	// Splitting hands over a prefix
+    	Spliterator<Tree<String>> rest = tree.nodes().spliterator();
+    	Spliterator<Tree<String>> prefix = rest.trySplit();
+    	StringBuilder sb = new StringBuilder();
+    	prefix.forEachRemaining(n -> sb.append(n.getValue()));
+    	rest.forEachRemaining(n -> sb.append(n.getValue()));
+    	assertEquals(values(tree.preorder()), sb.toString());
+    	assertNull(new Tree<String>("x").nodes().spliterator().trySplit());
+    }
+
 }
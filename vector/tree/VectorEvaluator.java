@@ -0,0 +1,171 @@
+package tree;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Evaluates an <code>Expression</code> over columns of variable values
+ * using the SIMD instructions of the Vector API.
+ * <p>
+ * Like <code>Expression.evaluate(Map, int[])</code>, this applies each
+ * instruction of the compiled <code>Program</code> to a block of rows at a
+ * time, but adds, subtracts and multiplies as many rows per machine
+ * instruction as the preferred <code>IntVector</code> species allows,
+ * finishing each block with a scalar loop. Results are identical to the
+ * scalar path: additions and multiplications wrap around, division
+ * truncates toward zero, and division by zero throws
+ * <code>ArithmeticException</code>.
+ * <p>
+ * The Vector API is an incubator module, so this class lives outside the
+ * main source tree and needs Java 16 or later with
+ * <code>--add-modules jdk.incubator.vector</code> when compiling and running.
+ *
+ * @author Anders Schneider
+ */
+public final class VectorEvaluator {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int BLOCK = 1024;
+
+    private final Expression expression;
+    private final int[] code;
+    private final int maxStack;
+
+    /**
+     * Constructs a VectorEvaluator for the given Expression.
+     *
+     * @param expression The Expression to be evaluated.
+     */
+    public VectorEvaluator(Expression expression) {
+        this.expression = expression;
+        Program program = expression.compile();
+        this.code = program.getCode();
+        this.maxStack = program.getMaxStack();
+    }
+
+    /**
+     * Evaluates the Expression once for every row of a table of variable
+     * values, storing the value for row <code>r</code> in <code>out[r]</code>.
+     *
+     * @param columns The values of each variable, by name, then by row.
+     * @param out Where the value of each row is stored.
+     * @throws IllegalArgumentException If a variable has no column, or its
+     *         column is shorter than <code>out</code>.
+     * @throws ArithmeticException If any row divides by zero; the contents
+     *         of <code>out</code> are then unspecified.
+     */
+    public void evaluate(Map<String, int[]> columns, int[] out) {
+    	evaluate(expression.columnsByIndex(columns, out.length), out);
+    }
+
+    /**
+     * Evaluates the Expression once for every element of <code>out</code>,
+     * taking the value of variable <code>v</code> in row <code>r</code> from
+     * <code>columns[v][r]</code>.
+     *
+     * @param columns The values of each variable, by index, then by row.
+     * @param out Where the value of each row is stored.
+     * @throws ArithmeticException If any row divides by zero.
+     */
+    public void evaluate(int[][] columns, int[] out) {
+    	if (out.length == 0) {return;}
+
+    	int[][] stack = new int[maxStack][Math.min(BLOCK, out.length)];
+
+    	for (int from = 0; from < out.length; from += BLOCK) {
+    		int n = Math.min(BLOCK, out.length - from);
+    		int sp = 0;
+    		int pc = 0;
+
+    		while (pc < code.length) {
+    			int op = code[pc++];
+    			switch (op) {
+    			case Program.PUSH:
+    				Arrays.fill(stack[sp++], 0, n, code[pc++]);
+    				break;
+    			case Program.LOAD:
+    				System.arraycopy(columns[code[pc++]], from, stack[sp++], 0, n);
+    				break;
+    			case Program.ADD:
+    				add(stack[sp - 2], stack[--sp], n);
+    				break;
+    			case Program.SUB:
+    				subtract(stack[sp - 2], stack[--sp], n);
+    				break;
+    			case Program.MUL:
+    				multiply(stack[sp - 2], stack[--sp], n);
+    				break;
+    			case Program.DIV:
+    				divide(stack[sp - 2], stack[--sp], n);
+    				break;
+    			default:
+    				throw new IllegalStateException("Bad opcode: " + op);
+    			}
+    		}
+
+    		System.arraycopy(stack[0], 0, out, from, n);
+    	}
+    }
+
+    /**
+     * Sets <code>a[i] += b[i]</code> for the first <code>n</code> elements.
+     *
+     * @param a The left operands, replaced by the results.
+     * @param b The right operands.
+     * @param n The number of elements.
+     */
+    private static void add(int[] a, int[] b, int n) {
+    	int i = 0;
+    	for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+    		IntVector.fromArray(SPECIES, a, i).add(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+    	}
+    	for (; i < n; i++) {a[i] += b[i];}
+    }
+
+    /**
+     * Sets <code>a[i] -= b[i]</code> for the first <code>n</code> elements.
+     *
+     * @param a The left operands, replaced by the results.
+     * @param b The right operands.
+     * @param n The number of elements.
+     */
+    private static void subtract(int[] a, int[] b, int n) {
+    	int i = 0;
+    	for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+    		IntVector.fromArray(SPECIES, a, i).sub(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+    	}
+    	for (; i < n; i++) {a[i] -= b[i];}
+    }
+
+    /**
+     * Sets <code>a[i] *= b[i]</code> for the first <code>n</code> elements.
+     *
+     * @param a The left operands, replaced by the results.
+     * @param b The right operands.
+     * @param n The number of elements.
+     */
+    private static void multiply(int[] a, int[] b, int n) {
+    	int i = 0;
+    	for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+    		IntVector.fromArray(SPECIES, a, i).mul(IntVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+    	}
+    	for (; i < n; i++) {a[i] *= b[i];}
+    }
+
+    /**
+     * Sets <code>a[i] /= b[i]</code> for the first <code>n</code> elements.
+     * Common SIMD instruction sets have no integer division, and the Vector
+     * API falls back to a much slower per-lane loop for it, so this is
+     * always scalar.
+     *
+     * @param a The left operands, replaced by the results.
+     * @param b The right operands.
+     * @param n The number of elements.
+     * @throws ArithmeticException If any <code>b[i]</code> is zero.
+     */
+    private static void divide(int[] a, int[] b, int n) {
+    	for (int i = 0; i < n; i++) {a[i] /= b[i];}
+    }
+}
@@ -0,0 +1,72 @@
+package tree;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class VectorEvaluatorTest {
+
+    @Before
+    public void setUp() throws Exception {}
+
+    @Test
+    public final void testEvaluate() {
+    	String[] inputs = {"7", "x", "+(x y)", "-(x *(y 3))", "/(x y)",
+    			"+(*(x 3) -(y x) /(y 7) *(x y 2) -(z /(x 3)))"};
+    	
+    	// Lengths chosen to exercise partial vectors and partial blocks
+    	for (int rows : new int[] {0, 1, 3, 17, 1024, 1025, 5000}) {
+    		Random random = new Random(rows);
+    		Map<String, int[]> columns = new HashMap<String, int[]>();
+    		for (String name : new String[] {"x", "y", "z"}) {
+    			int[] column = new int[rows];
+    			for (int r = 0; r < rows; r++) {
+    				column[r] = random.nextInt();
+    				if (column[r] == 0) {column[r] = Integer.MIN_VALUE;}
+    			}
+    			columns.put(name, column);
+    		}
+    		if (rows > 1) {
+    			columns.get("x")[0] = Integer.MIN_VALUE;
+    			columns.get("y")[0] = -1;
+    		}
+    		
+    		for (String input : inputs) {
+    			Expression exp = new Expression(input);
+    			int[] expected = new int[rows];
+    			int[] actual = new int[rows];
+    			exp.evaluate(columns, expected);
+    			new VectorEvaluator(exp).evaluate(columns, actual);
+    			assertArrayEquals(input + " over " + rows, expected, actual);
+    		}
+    	}
+    }
+
+    @Test
+    public final void testDivideByZero() {
+    	// A row count that is not a multiple of any vector length, so the last
+    	// row is always in the scalar tail and row 42 in a full vector
+    	int rows = 101;
+    	for (int zero : new int[] {42, rows - 1}) {
+    		int[] y = new int[rows];
+    		for (int r = 0; r < rows; r++) {
+    			y[r] = r + 1;
+    		}
+    		y[zero] = 0;
+    		Map<String, int[]> columns = new HashMap<String, int[]>();
+    		columns.put("y", y);
+    		
+    		try {
+    			new VectorEvaluator(new Expression("/(10 y)")).evaluate(columns, new int[rows]);
+    			fail("No exception for a zero in row " + zero);
+    		} catch (ArithmeticException e) {
+    			// expected, as for the scalar path
+    		}
+    	}
+    }
+}